@@ -0,0 +1,278 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.kafka.common.record.RecordBatch;
+
+/**
+ * A thread-safe cache of decrypted record batches, so that consumers of
+ * different groups fetching the same batches cost one decryption per batch.
+ * Batches are keyed by topic, partition, key reference, base offset and the
+ * checksum of the encrypted batch, which tells apart batches of a deleted and
+ * recreated topic.
+ * <p>
+ * Decrypted batches are held in heap buffers, so that the memory of evicted
+ * batches is reclaimed as other garbage is. The cache is bounded by the total
+ * size of the batches held. It is divided into stripes, each holding a share
+ * of the batches and of the size, and evicting its least recently used batch,
+ * so that concurrent lookups rarely wait on each other. Held batches are
+ * plaintext, so those of a key are dropped when the key is purged.
+ */
+public class DecryptedBatchCache {
+
+    // the smallest share of the size which justifies a stripe, and the most stripes:
+    private static final long MIN_STRIPE_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_STRIPES = 16;
+
+    private final Stripe[] stripes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * The batches of a topic partition encrypted with a given key.
+     */
+    public static final class Partition {
+        final String topic;
+        final int partition;
+        final String keyRef;
+
+        public Partition(String topic, int partition, String keyRef) {
+            this.topic = Objects.requireNonNull(topic);
+            this.partition = partition;
+            this.keyRef = Objects.requireNonNull(keyRef);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Partition)) {
+                return false;
+            }
+            Partition other = (Partition) o;
+            return partition == other.partition && topic.equals(other.topic)
+                    && keyRef.equals(other.keyRef);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * topic.hashCode() + partition) + keyRef.hashCode();
+        }
+    }
+
+    /**
+     * Creates a cache with one stripe per 64 MiB of its size, up to 16.
+     *
+     * @param maxBytes the maximum total size of the batches held
+     */
+    public DecryptedBatchCache(long maxBytes) {
+        this(maxBytes, (int) Math.max(1, Math.min(MAX_STRIPES, maxBytes / MIN_STRIPE_BYTES)));
+    }
+
+    /**
+     * @param maxBytes the maximum total size of the batches held
+     * @param numStripes the number of stripes, each bounded by an equal share
+     *                   of the size
+     */
+    public DecryptedBatchCache(long maxBytes, int numStripes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxBytes);
+        }
+        if (numStripes <= 0 || numStripes > maxBytes) {
+            throw new IllegalArgumentException("Invalid number of stripes: " + numStripes);
+        }
+        stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Stripe(maxBytes / numStripes);
+        }
+    }
+
+    /**
+     * @param partition the batch's partition
+     * @param encrypted the encrypted batch
+     * @return the decrypted batch, or null if not cached. The returned buffer
+     *         is a read-only view which the caller may consume.
+     */
+    public ByteBuffer get(Partition partition, RecordBatch encrypted) {
+        BatchKey key = new BatchKey(partition, encrypted);
+        ByteBuffer decrypted = stripe(key).get(key);
+        if (decrypted == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return decrypted.asReadOnlyBuffer();
+    }
+
+    /**
+     * Caches a decrypted batch, evicting the least recently used batches of
+     * its stripe to make room. Batches larger than a stripe are not cached.
+     *
+     * @param partition the batch's partition
+     * @param encrypted the encrypted batch
+     * @param decrypted the decrypted batch, between its position and limit,
+     *                  which is copied
+     */
+    public void put(Partition partition, RecordBatch encrypted, ByteBuffer decrypted) {
+        BatchKey key = new BatchKey(partition, encrypted);
+        Stripe stripe = stripe(key);
+        int size = decrypted.remaining();
+        if (size > stripe.maxBytes) {
+            return;
+        }
+        // copied outside the lock:
+        ByteBuffer copy = ByteBuffer.allocate(size);
+        copy.put(decrypted.duplicate()).flip();
+        evictions.add(stripe.put(key, copy));
+    }
+
+    /**
+     * Drops the batches decrypted with a key.
+     *
+     * @param keyRef the key reference
+     */
+    public void purge(String keyRef) {
+        for (Stripe stripe : stripes) {
+            stripe.purge(keyRef);
+        }
+    }
+
+    public long sizeInBytes() {
+        long size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.sizeInBytes();
+        }
+        return size;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the fraction of lookups which were hits, or 0 if there were none.
+     */
+    public double hitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d batches, %d bytes, hits %d, misses %d, hit rate %.3f, evictions %d",
+                size(), sizeInBytes(), hits(), misses(), hitRate(), evictions());
+    }
+
+    private Stripe stripe(BatchKey key) {
+        int h = key.hashCode();
+        return stripes[Math.floorMod(h ^ (h >>> 16), stripes.length)];
+    }
+
+    /**
+     * A share of the cache, in least recently used order.
+     */
+    private static final class Stripe {
+        final long maxBytes;
+        private final Map<BatchKey, ByteBuffer> batches = new LinkedHashMap<>(16, 0.75f, true);
+        private long sizeInBytes;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized ByteBuffer get(BatchKey key) {
+            return batches.get(key);
+        }
+
+        /**
+         * @return the number of batches evicted.
+         */
+        synchronized int put(BatchKey key, ByteBuffer batch) {
+            ByteBuffer previous = batches.put(key, batch);
+            if (previous != null) {
+                sizeInBytes -= previous.capacity();
+            }
+            sizeInBytes += batch.capacity();
+            int evicted = 0;
+            Iterator<ByteBuffer> lru = batches.values().iterator();
+            while (sizeInBytes > maxBytes) {
+                sizeInBytes -= lru.next().capacity();
+                lru.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized void purge(String keyRef) {
+            Iterator<Map.Entry<BatchKey, ByteBuffer>> it = batches.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<BatchKey, ByteBuffer> e = it.next();
+                if (e.getKey().partition.keyRef.equals(keyRef)) {
+                    sizeInBytes -= e.getValue().capacity();
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized long sizeInBytes() {
+            return sizeInBytes;
+        }
+
+        synchronized int size() {
+            return batches.size();
+        }
+    }
+
+    private static final class BatchKey {
+        final Partition partition;
+        final long baseOffset;
+        final long checksum;
+
+        BatchKey(Partition partition, RecordBatch batch) {
+            this.partition = partition;
+            this.baseOffset = batch.baseOffset();
+            this.checksum = batch.checksum();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey) o;
+            return baseOffset == other.baseOffset && checksum == other.checksum
+                    && partition.equals(other.partition);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * partition.hashCode() + Long.hashCode(baseOffset))
+                    + Long.hashCode(checksum);
+        }
+    }
+}
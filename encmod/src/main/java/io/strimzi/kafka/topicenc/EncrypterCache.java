@@ -0,0 +1,380 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import io.strimzi.kafka.topicenc.enc.CounterNonceGenerator;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.enc.NonceGenerator;
+import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
+
+/**
+ * A thread-safe cache of encrypters, keyed by key management system instance
+ * and key reference. One instance is shared by all EncryptionModules in the
+ * JVM by default, so that new connections or filter instances do not retrieve
+ * keys from the KMS again.
+ * <p>
+ * The cache is bounded in size, evicting the least recently used entry, and
+ * entries expire a fixed time after being loaded so that keys are periodically
+ * retrieved from the KMS again. Concurrent requests for the same key are
+ * served by a single load.
+ * <p>
+ * The use of each encrypter is tracked, so that its key can be rotated once
+ * it has encrypted enough. A rotated encrypter is served until its
+ * replacement is loaded, and replacements are loaded on a thread of the
+ * cache's own, so that rotation never holds up callers.
+ * <p>
+ * The cache also holds the nonce generators of KMS keys, by key reference, so
+ * that the encrypters of a key loaded again after expiry or eviction, by any
+ * KMS instance, carry on counting its encryptions. They are only dropped when
+ * the key is purged.
+ */
+public class EncrypterCache {
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final Duration DEFAULT_TTL = Duration.ofHours(1);
+
+    private static final EncrypterCache SHARED = new EncrypterCache(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+
+    // runs the loaders of replacements, which may block on the KMS whatever
+    // their signature. Threads are created on demand and die when idle:
+    private static final ExecutorService ROTATION_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "encrypter-rotation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Loads the encrypter for a key on a cache miss.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        EncrypterDecrypter load() throws Exception;
+    }
+
+    /**
+     * Starts loading the encrypter for a key on a cache miss, without blocking.
+     */
+    @FunctionalInterface
+    public interface AsyncLoader {
+        CompletionStage<EncrypterDecrypter> load();
+    }
+
+    /**
+     * The use made of a cached encrypter.
+     */
+    public interface Usage {
+
+        /**
+         * @return the number of records encrypted.
+         */
+        long records();
+
+        /**
+         * @return the number of bytes encrypted.
+         */
+        long bytes();
+
+        /**
+         * @return the time since the encrypter was loaded.
+         */
+        long ageNanos(long nowNanos);
+    }
+
+    private final Map<CacheKey, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, NonceGenerator> nonceGenerators = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long ttlNanos;
+
+    /**
+     * @param maxSize the maximum number of encrypters held
+     * @param ttl the time after loading at which an encrypter is dropped
+     */
+    public EncrypterCache(int maxSize, Duration ttl) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * @return the time after loading at which an encrypter is dropped.
+     */
+    public Duration getTtl() {
+        return Duration.ofNanos(ttlNanos);
+    }
+
+    /**
+     * @return the cache shared by all users in this JVM.
+     */
+    public static EncrypterCache getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns the cached encrypter for a key, loading it if absent or expired.
+     * If another thread is already loading the key, waits for that load rather
+     * than starting another.
+     *
+     * @param kms the key management system holding the key
+     * @param keyRef the reference of the key within the KMS
+     * @param loader creates the encrypter on a cache miss
+     * @return the encrypter
+     * @throws Exception the exception thrown by the loader
+     */
+    public EncrypterDecrypter get(KeyMgtSystem kms, String keyRef, Loader loader) throws Exception {
+        CompletableFuture<EncrypterDecrypter> future = getAsync(kms, keyRef, () -> {
+            try {
+                return CompletableFuture.completedFuture(loader.load());
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Returns the cached encrypter for a key, loading it if absent or expired,
+     * without waiting for the load. Concurrent requests for a key being loaded
+     * share the load's future.
+     *
+     * @param kms the key management system holding the key
+     * @param keyRef the reference of the key within the KMS
+     * @param loader starts creating the encrypter on a cache miss
+     * @return a future completed with the encrypter, or the loader's failure
+     */
+    public CompletableFuture<EncrypterDecrypter> getAsync(KeyMgtSystem kms, String keyRef,
+            AsyncLoader loader) {
+        CacheKey key = new CacheKey(kms, keyRef);
+        long now = System.nanoTime();
+        Entry entry = entries.get(key);
+        if (entry == null || entry.isExpired(now, ttlNanos)) {
+            Entry loading = new Entry(now);
+            entry = entries.compute(key, (k, e) -> e == null || e.isExpired(now, ttlNanos) ? loading : e);
+            if (entry == loading) {
+                evictIfFull();
+                CompletionStage<EncrypterDecrypter> loaded;
+                try {
+                    loaded = loader.load();
+                } catch (RuntimeException e) {
+                    loaded = CompletableFuture.failedFuture(e);
+                }
+                loaded.whenComplete((enc, e) -> {
+                    if (e != null) {
+                        // failures are not cached, the next request retries.
+                        entries.remove(key, loading);
+                        loading.future.completeExceptionally(
+                                e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    } else {
+                        loading.future.complete(enc);
+                    }
+                });
+            }
+        }
+        entry.lastAccess = now;
+        return entry.future;
+    }
+
+    /**
+     * Drops the given encrypter, if still cached, so that the next request for
+     * its key loads a new one. Used when the encrypter must be retired, for
+     * example when it has been used for as many encryptions as its key allows.
+     *
+     * @param enc the encrypter to drop
+     */
+    public void invalidate(EncrypterDecrypter enc) {
+        entries.entrySet().removeIf(e -> e.getValue().future.getNow(null) == enc);
+    }
+
+    /**
+     * Records encryptions by a cached encrypter.
+     *
+     * @param kms the key management system holding the key
+     * @param keyRef the reference of the key within the KMS
+     * @param enc the encrypter used
+     * @param records the number of records encrypted
+     * @param bytes the number of bytes encrypted
+     * @return the encrypter's use so far, or null if it is no longer cached
+     */
+    public Usage recordUse(KeyMgtSystem kms, String keyRef, EncrypterDecrypter enc,
+            long records, long bytes) {
+        Entry entry = entries.get(new CacheKey(kms, keyRef));
+        if (entry == null || entry.future.getNow(null) != enc) {
+            return null;
+        }
+        entry.records.add(records);
+        entry.bytes.add(bytes);
+        return entry;
+    }
+
+    /**
+     * Starts loading a replacement for a cached encrypter, unless one is
+     * already being loaded. The loader is run on the cache's rotation thread
+     * rather than the caller's. The encrypter is served until the replacement
+     * is loaded, which then takes its place atomically. If the load fails, the
+     * encrypter stays in place and may be rotated again.
+     *
+     * @param kms the key management system holding the key
+     * @param keyRef the reference of the key within the KMS
+     * @param enc the encrypter to replace
+     * @param loader starts creating the replacement
+     * @return a future completed with the replacement, or null if the
+     *         encrypter is no longer cached or is already being replaced
+     */
+    public CompletableFuture<EncrypterDecrypter> rotate(KeyMgtSystem kms, String keyRef,
+            EncrypterDecrypter enc, AsyncLoader loader) {
+        CacheKey key = new CacheKey(kms, keyRef);
+        Entry entry = entries.get(key);
+        if (entry == null || entry.future.getNow(null) != enc
+                || !entry.rotating.compareAndSet(false, true)) {
+            return null;
+        }
+        return CompletableFuture.supplyAsync(loader::load, ROTATION_EXECUTOR)
+                .thenCompose(Function.identity())
+                .whenComplete((replacement, e) -> {
+                    if (e != null) {
+                        entry.rotating.set(false);
+                        return;
+                    }
+                    Entry rotated = new Entry(System.nanoTime());
+                    rotated.future.complete(replacement);
+                    // unless invalidated, purged or evicted meanwhile:
+                    entries.replace(key, entry, rotated);
+                });
+    }
+
+    /**
+     * Returns the nonce generator for the encrypters of a KMS key, created on
+     * first use.
+     *
+     * @param keyRef the reference of the key
+     * @return the key's nonce generator
+     */
+    public NonceGenerator getNonceGenerator(String keyRef) {
+        return nonceGenerators.computeIfAbsent(keyRef, k -> new CounterNonceGenerator());
+    }
+
+    /**
+     * Drops the encrypters and nonce generator for a key reference, in every
+     * KMS. Used once the key has been replaced in its KMS.
+     *
+     * @param keyRef the key reference
+     */
+    public void purge(String keyRef) {
+        entries.keySet().removeIf(k -> k.keyRef.equals(keyRef));
+        nonceGenerators.remove(keyRef);
+    }
+
+    /**
+     * @return the number of cached encrypters, including those being loaded.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Makes room for one entry, dropping expired entries and then, if still at
+     * capacity, the least recently used.
+     */
+    private void evictIfFull() {
+        if (entries.size() <= maxSize) {
+            return;
+        }
+        long now = System.nanoTime();
+        entries.values().removeIf(e -> e.future.isDone() && e.isExpired(now, ttlNanos));
+        while (entries.size() > maxSize) {
+            Map.Entry<CacheKey, Entry> lru = null;
+            for (Map.Entry<CacheKey, Entry> e : entries.entrySet()) {
+                if (e.getValue().future.isDone()
+                        && (lru == null || e.getValue().lastAccess - lru.getValue().lastAccess < 0)) {
+                    lru = e;
+                }
+            }
+            if (lru == null) {
+                // everything is still loading.
+                return;
+            }
+            entries.remove(lru.getKey(), lru.getValue());
+        }
+    }
+
+    private static final class CacheKey {
+        // KMS instances are compared by identity, each being configured once.
+        final KeyMgtSystem kms;
+        final String keyRef;
+
+        CacheKey(KeyMgtSystem kms, String keyRef) {
+            this.kms = kms;
+            this.keyRef = Objects.requireNonNull(keyRef);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return kms == other.kms && keyRef.equals(other.keyRef);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(kms) + keyRef.hashCode();
+        }
+    }
+
+    private static final class Entry implements Usage {
+        final CompletableFuture<EncrypterDecrypter> future = new CompletableFuture<>();
+        final long loadTime;
+        volatile long lastAccess;
+        final LongAdder records = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        // set while a replacement is being loaded:
+        final AtomicBoolean rotating = new AtomicBoolean();
+
+        Entry(long loadTime) {
+            this.loadTime = loadTime;
+            this.lastAccess = loadTime;
+        }
+
+        boolean isExpired(long now, long ttlNanos) {
+            return now - loadTime >= ttlNanos;
+        }
+
+        @Override
+        public long records() {
+            return records.sum();
+        }
+
+        @Override
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        @Override
+        public long ageNanos(long nowNanos) {
+            return nowNanos - loadTime;
+        }
+    }
+}
@@ -6,9 +6,23 @@ package io.strimzi.kafka.topicenc;
 
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.util.HashMap;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 
 import org.apache.kafka.common.message.FetchResponseData;
@@ -16,16 +30,20 @@ import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
 import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
 import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
 import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.DefaultRecordBatch;
 import org.apache.kafka.common.record.MemoryRecords;
 import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.MutableRecordBatch;
 import org.apache.kafka.common.record.RecordBatch;
-import org.apache.kafka.common.record.SimpleRecord;
 import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.utils.BufferSupplier;
+import org.apache.kafka.common.utils.ByteBufferOutputStream;
+import org.apache.kafka.common.utils.CloseableIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.strimzi.kafka.topicenc.enc.AesGcmEncrypter;
-import io.strimzi.kafka.topicenc.enc.EncData;
+import io.strimzi.kafka.topicenc.enc.CounterNonceGenerator;
 import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
 import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
 import io.strimzi.kafka.topicenc.kms.KmsException;
@@ -33,32 +51,93 @@ import io.strimzi.kafka.topicenc.policy.PolicyRepository;
 import io.strimzi.kafka.topicenc.policy.TopicPolicy;
 import io.strimzi.kafka.topicenc.ser.AesGcmV1SerDer;
 import io.strimzi.kafka.topicenc.ser.EncSerDer;
+import io.strimzi.kafka.topicenc.ser.EncSerDer.DecrypterResolver;
 import io.strimzi.kafka.topicenc.ser.EncSerDerException;
 
 /**
  * This class is the main component encompassing the Kafka topic encryption
- * implementation.
+ * implementation. Instances are thread-safe and may be shared, for example by
+ * all event loops of a proxy.
+ * <p>
+ * Topics with envelope encryption are encrypted with data keys generated by
+ * the module, one per KMS key at a time, and wrapped by the KMS key. The
+ * wrapped data key is stored with each record, so that consumers unwrap it
+ * once per data key rather than retrieving the KMS key.
+ * <p>
+ * Data keys are rotated when they require rekeying, when a topic policy's
+ * rotation triggers are reached, or ahead of their expiry from the cache, and
+ * KMS keys are retrieved again ahead of their expiry. The replacement is
+ * prepared in the background while the current key keeps encrypting, so that
+ * produce requests do not wait on the KMS.
  */
 public class EncryptionModule implements EncModControl {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(EncryptionModule.class);
 
-    private Map<String, EncrypterDecrypter> keyCache;
-    private EncSerDer encSerDer;
-    private PolicyRepository policyRepo;
+    // keys are rotated once this fraction of their time to live has passed,
+    // before their expiry would make the next request wait for a load:
+    private static final double ROTATE_AHEAD_OF_EXPIRY = 0.9;
+
+    // values of a batch are only left compressed when that saves more than an eighth:
+    private static final int MIN_VALUE_COMPRESSION_GAIN = 8;
+
+    // the module is shared by all threads of the proxy, so its state is
+    // either immutable or thread-safe:
+    private final EncrypterCache encrypterCache;
+    // the encrypters of the current data keys of envelope encryption:
+    private final EncrypterCache dataKeyCache =
+            new EncrypterCache(EncrypterCache.DEFAULT_MAX_SIZE, EncrypterCache.DEFAULT_TTL);
+    // the decrypters of data keys, unwrapped or being unwrapped, least recently
+    // used first. Concurrent requests for a data key share its unwrap:
+    private final Map<DataKeyId, CompletableFuture<EncrypterDecrypter>> unwrappedKeys =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<DataKeyId, CompletableFuture<EncrypterDecrypter>> eldest) {
+                    return size() > EncrypterCache.DEFAULT_MAX_SIZE;
+                }
+            };
+    // the references of KMS keys whose rekey has been signalled, to warn once per key:
+    private final Set<String> keysToReplace = ConcurrentHashMap.newKeySet();
+    private final EncSerDer encSerDer;
+    private final PolicyRepository policyRepo;
+    // null unless decrypted batches are cached:
+    private final DecryptedBatchCache batchCache;
 
+    /**
+     * Creates a module using the encrypter cache shared within the JVM.
+     */
     public EncryptionModule(PolicyRepository policyRepo) {
+        this(policyRepo, EncrypterCache.getShared());
+    }
+
+    public EncryptionModule(PolicyRepository policyRepo, EncrypterCache encrypterCache) {
+        this(policyRepo, encrypterCache, null);
+    }
+
+    /**
+     * Creates a module caching decrypted batches, so that batches fetched by
+     * several consumers are decrypted once.
+     *
+     * @param policyRepo the topic policies
+     * @param encrypterCache the encrypter cache
+     * @param batchCache the decrypted batch cache, or null for none
+     */
+    public EncryptionModule(PolicyRepository policyRepo, EncrypterCache encrypterCache,
+            DecryptedBatchCache batchCache) {
         this.policyRepo = policyRepo;
-        keyCache = new HashMap<>();
+        this.encrypterCache = encrypterCache;
+        this.batchCache = batchCache;
         encSerDer = new AesGcmV1SerDer();
     }
 
     public boolean encrypt(TopicProduceData topicData)
             throws EncSerDerException, GeneralSecurityException, KmsException {
 
+        TopicPolicy policy = policyRepo.getTopicPolicy(topicData.name());
         final EncrypterDecrypter encrypter;
         try {
-            encrypter = getTopicEncrypter(topicData.name());
+            encrypter = policy == null ? null : getTopicEncrypter(policy);
         } catch (Exception e) {
             String msg = String.format("Error obtaining encrypter for topic: %s", topicData.name());
             throw new KmsException(msg, e);
@@ -72,43 +151,136 @@ public class EncryptionModule implements EncModControl {
 
         // If this far, the data should be encrypted.
         // Navigate into each record and encrypt.
+        long records = 0;
+        long bytes = 0;
         for (PartitionProduceData partitionData : topicData.partitionData()) {
 
             MemoryRecords recs = (MemoryRecords) partitionData.records();
-            MemoryRecordsBuilder builder = createMemoryRecsBuilder(recs.buffer().capacity());
-            for (org.apache.kafka.common.record.Record record : recs.records()) {
-                if (record.hasValue()) {
-                    // encrypt record value:
-                    byte[] plaintext = new byte[record.valueSize()];
-                    record.value().get(plaintext);
-                    EncData ciphertext = encrypter.encrypt(plaintext);
-
-                    // serialize the ciphertext and metadata, add to the builder:
-                    encSerDer.serialize(builder, record, ciphertext);
+            for (RecordBatch batch : recs.batches()) {
+                if (!batch.isControlBatch()) {
+                    // produced batches have consecutive offsets:
+                    records += batch.lastOffset() - batch.baseOffset() + 1;
                 }
             }
+            bytes += recs.sizeInBytes();
             // overwrite the partition's memoryrecords with the encrypted records:
-            partitionData.setRecords(builder.build());
+            partitionData.setRecords(rewriteRecords(recs, encrypter, !policy.isCompacted(), null,
+                    Long.MIN_VALUE, null));
+        }
+
+        EncrypterCache cache = policy.isEnvelopeEncryption() ? dataKeyCache : encrypterCache;
+        EncrypterCache.Usage usage = cache.recordUse(policy.getKms(), policy.getKeyReference(),
+                encrypter, records, bytes);
+        if (encrypter.isRekeyRequired()) {
+            // the key is near the limit of nonces it may be used with.
+            if (policy.isEnvelopeEncryption()) {
+                rotate(topicData.name(), policy, cache, encrypter, "rekey required");
+            } else if (keysToReplace.add(policy.getKeyReference())) {
+                // only the KMS can provide a new key. Encryption fails at the
+                // invocation limit rather than reuse the key with new nonces.
+                LOGGER.error("Key {} of topic {} must be replaced: it is near the limit of "
+                        + "encryptions, after which the topic's records are refused. Configure "
+                        + "a new key reference or envelope encryption.",
+                        policy.getKeyReference(), topicData.name());
+            }
+        } else if (usage != null) {
+            String reason = rotationReason(policy, usage, cache.getTtl());
+            if (reason != null) {
+                rotate(topicData.name(), policy, cache, encrypter, reason);
+            }
         }
         return true;
     }
 
+    /**
+     * @return why an encrypter is due for replacement, or null if it is not.
+     *         The rotation triggers of a policy only apply to data keys.
+     */
+    private static String rotationReason(TopicPolicy policy, EncrypterCache.Usage usage,
+            Duration ttl) {
+        long ageMs = TimeUnit.NANOSECONDS.toMillis(usage.ageNanos(System.nanoTime()));
+        if (policy.isEnvelopeEncryption()) {
+            if (policy.getRotateAfterRecords() > 0 && usage.records() >= policy.getRotateAfterRecords()) {
+                return usage.records() + " records encrypted";
+            }
+            if (policy.getRotateAfterBytes() > 0 && usage.bytes() >= policy.getRotateAfterBytes()) {
+                return usage.bytes() + " bytes encrypted";
+            }
+            if (policy.getRotateAfterMs() > 0 && ageMs >= policy.getRotateAfterMs()) {
+                return "key age " + ageMs + " ms";
+            }
+        }
+        if (ageMs >= ttl.toMillis() * ROTATE_AHEAD_OF_EXPIRY) {
+            return "key expiring";
+        }
+        return null;
+    }
+
+    /**
+     * Prepares the replacement of a topic's encrypter in the background, the
+     * encrypter serving requests until the replacement is swapped in. With
+     * envelope encryption, the replacement encrypts with a new data key.
+     * Otherwise it encrypts with the same KMS key, retrieved again ahead of
+     * the encrypter's expiry from the cache, and with the same nonces.
+     */
+    private void rotate(String topicName, TopicPolicy policy, EncrypterCache cache,
+            EncrypterDecrypter encrypter, String reason) {
+        KeyMgtSystem kms = policy.getKms();
+        String keyRef = policy.getKeyReference();
+        CompletableFuture<EncrypterDecrypter> rotated = cache.rotate(kms, keyRef, encrypter,
+                () -> policy.isEnvelopeEncryption()
+                        ? createDataKeyEncrypterAsync(kms, keyRef)
+                        : kms.getKeyAsync(keyRef).thenApply(key -> createEncrypter(keyRef, key)));
+        if (rotated == null) {
+            // already being rotated, or no longer cached.
+            return;
+        }
+        if (policy.isEnvelopeEncryption()) {
+            LOGGER.info("Rotating the data key of key {} of topic {}: {}", keyRef, topicName, reason);
+        } else {
+            LOGGER.debug("Refreshing key {} of topic {} from its KMS: {}", keyRef, topicName, reason);
+        }
+        rotated.whenComplete((enc, e) -> {
+            if (e != null) {
+                LOGGER.warn("Error replacing the encrypter of key {}, the current one remains in use",
+                        keyRef, e);
+            } else {
+                LOGGER.debug("Replaced the encrypter of key {}", keyRef);
+            }
+        });
+    }
+
     public boolean decrypt(FetchableTopicResponse fetchRsp)
             throws EncSerDerException, GeneralSecurityException, KmsException {
+        return decrypt(fetchRsp, Collections.emptyMap());
+    }
 
-        String topicName = fetchRsp.topic();
-        final EncrypterDecrypter encrypter;
-        try {
-            encrypter = getTopicEncrypter(topicName);
-        } catch (Exception e) {
-            String msg = String.format("Error obtaining encrypter for topic: %s ", topicName);
-            throw new KmsException(msg, e);
-        }
+    /**
+     * Decrypts a topic's fetched records, except those below the offset the
+     * consumer fetched from. Brokers return whole batches, so the first batch
+     * may begin with records the consumer would discard. These are dropped
+     * rather than decrypted, each batch keeping its offsets.
+     *
+     * @param fetchRsp the topic's fetched records
+     * @param fetchOffsets the fetch offset of each partition, by partition index.
+     *                     Partitions without one are decrypted whole.
+     * @return false if the topic is not encrypted
+     */
+    public boolean decrypt(FetchableTopicResponse fetchRsp, Map<Integer, Long> fetchOffsets)
+            throws EncSerDerException, GeneralSecurityException, KmsException {
 
-        if (encrypter == null) {
+        String topicName = fetchRsp.topic();
+        TopicPolicy policy = policyRepo.getTopicPolicy(topicName);
+        if (policy == null) {
             LOGGER.debug("No decryption - topic {} is not configured for encryption", topicName);
             return false;
         }
+        // records are decrypted with the KMS key or with the data key they
+        // carry, whatever the policy's current encryption method:
+        DecrypterResolver decrypters = new TopicDecrypters(topicName, policy);
+
+        // the key the topic's batches are cached under:
+        String keyRef = batchCache != null ? policy.getKeyReference() : null;
 
         // If this far, the data was encrypted.
         // Navigate into each record and decrypt.
@@ -124,40 +296,50 @@ public class EncryptionModule implements EncModControl {
             }
 
             MemoryRecords recs = (MemoryRecords) partitionData.records();
-
-            long firstOffset = getFirstOffset(recs);
-            MemoryRecordsBuilder builder = createMemoryRecsBuilder(recs.sizeInBytes(),
-                    partitionData.currentLeader().leaderEpoch(), firstOffset);
-            for (org.apache.kafka.common.record.Record record : recs.records()) {
-                if (record.hasValue()) {
-                    byte[] ciphertext = new byte[record.valueSize()];
-                    record.value().get(ciphertext);
-
-                    // serialize value into version, iv, ciphertext:
-                    EncData md = encSerDer.deserialize(ciphertext);
-
-                    // decrypt, add to records builder:
-                    byte[] plaintext = encrypter.decrypt(md);
-
-                    SimpleRecord newRec = new SimpleRecord(record.timestamp(), record.key(),
-                            ByteBuffer.wrap(plaintext),
-                            record.headers());
-                    builder.append(newRec);
-                }
-            }
+            Long fetchOffset = fetchOffsets.get(partitionData.partitionIndex());
             // overwrite the partition's memoryrecords with the decrypted records:
-            MemoryRecords newRecs = builder.build();
-            partitionData.setRecords(newRecs);
+            DecryptedBatchCache.Partition cachePartition = keyRef == null ? null
+                    : new DecryptedBatchCache.Partition(topicName, partitionData.partitionIndex(), keyRef);
+            partitionData.setRecords(rewriteRecords(recs, null, false, decrypters,
+                    fetchOffset != null ? fetchOffset : Long.MIN_VALUE, cachePartition));
         }
         return true;
     }
 
     /**
-     * EncMod control interface. Empty, placeholder implementation for the time
-     * being.
+     * EncMod control interface. Drops the encrypters for the key from the
+     * encrypter cache, so that the key is retrieved from its KMS again, and
+     * the data keys wrapped by the key.
      */
     @Override
     public void purgeKey(String keyref) {
+        encrypterCache.purge(keyref);
+        dataKeyCache.purge(keyref);
+        keysToReplace.remove(keyref);
+        synchronized (unwrappedKeys) {
+            unwrappedKeys.keySet().removeIf(id -> id.keyRef.equals(keyref));
+        }
+        if (batchCache != null) {
+            batchCache.purge(keyref);
+        }
+    }
+
+    /**
+     * @return the decrypted batch cache, or null if batches are not cached.
+     */
+    public DecryptedBatchCache getDecryptedBatchCache() {
+        return batchCache;
+    }
+
+    /**
+     * Consults the policy db whether a topic is to be encrypted, without
+     * retrieving its key.
+     *
+     * @param topicName the topic name
+     * @return true if the topic has an encryption policy
+     */
+    public boolean isEncrypted(String topicName) {
+        return policyRepo.getTopicPolicy(topicName) != null;
     }
 
     /**
@@ -168,67 +350,574 @@ public class EncryptionModule implements EncModControl {
      */
     protected EncrypterDecrypter getTopicEncrypter(String topicName) throws Exception {
 
-        String topicKey = topicName.toLowerCase();
-
-        // first check cache
-        EncrypterDecrypter enc = keyCache.get(topicKey);
-        if (enc != null) {
-            return enc;
-        }
-
         // query policy db for a policy for this topic:
-        TopicPolicy policy = policyRepo.getTopicPolicy(topicKey);
+        TopicPolicy policy = policyRepo.getTopicPolicy(topicName);
         if (policy == null) {
             // No encryption policy for this topic, return null,
             // indicating encryption not required for this topic.
             return null;
         }
+        return getTopicEncrypter(policy);
+    }
 
-        // encryption policy exists for this topic. Retrieve key
+    private EncrypterDecrypter getTopicEncrypter(TopicPolicy policy) throws Exception {
+        // encryption policy exists for this topic. Topics sharing a key share
+        // the encrypter, retrieving the key only on a cache miss:
         KeyMgtSystem kms = policy.getKms();
-        SecretKey key = kms.getKey(policy.getKeyReference());
+        String keyRef = policy.getKeyReference();
+        if (policy.isEnvelopeEncryption()) {
+            return dataKeyCache.get(kms, keyRef, () -> {
+                SecretKey dataKey = generateDataKey();
+                return createDataKeyEncrypter(keyRef, dataKey, kms.wrapKey(keyRef, dataKey));
+            });
+        }
+        return encrypterCache.get(kms, keyRef, () -> createEncrypter(keyRef, kms.getKey(keyRef)));
+    }
+
+    /**
+     * Loads the encrypters of the given topics into the encrypter cache without
+     * blocking, retrieving keys with the asynchronous KMS API. Once the returned
+     * stage completes, encrypt() and decrypt() find the topics' encrypters in
+     * the cache rather than waiting on the KMS.
+     * 
+     * @param topicNames the names of the topics about to be encrypted or decrypted
+     * @return a stage completing when the encrypters are cached, or with the
+     *         first error in retrieving a key
+     */
+    public CompletionStage<Void> loadEncrypters(Collection<String> topicNames) {
+        List<CompletableFuture<EncrypterDecrypter>> loads = new ArrayList<>();
+        for (String topicName : topicNames) {
+            TopicPolicy policy = policyRepo.getTopicPolicy(topicName);
+            if (policy == null) {
+                continue;
+            }
+            KeyMgtSystem kms = policy.getKms();
+            String keyRef = policy.getKeyReference();
+            CompletableFuture<EncrypterDecrypter> load;
+            if (policy.isEnvelopeEncryption()) {
+                load = dataKeyCache.getAsync(kms, keyRef, () -> createDataKeyEncrypterAsync(kms, keyRef));
+            } else {
+                load = encrypterCache.getAsync(kms, keyRef,
+                        () -> kms.getKeyAsync(keyRef).thenApply(key -> createEncrypter(keyRef, key)));
+            }
+            if (!load.isDone() || load.isCompletedExceptionally()) {
+                loads.add(load);
+            }
+        }
+        return allOf(loads);
+    }
+
+    /**
+     * As loadEncrypters(), for fetched records about to be decrypted. The
+     * first record of each batch is inspected, a batch being encrypted with
+     * one key: the data keys records carry are unwrapped with the
+     * asynchronous KMS API, and the KMS key loaded only if records were
+     * encrypted with it. Consumers thus never cause data keys to be generated,
+     * and decrypt() finds the keys rather than waiting on the KMS.
+     * 
+     * @param topicRsps the fetched records about to be decrypted, by topic
+     * @return a stage completing when the decrypters are cached, or with the
+     *         first error in retrieving or unwrapping a key
+     */
+    public CompletionStage<Void> loadDecrypters(Collection<FetchableTopicResponse> topicRsps) {
+        List<CompletableFuture<EncrypterDecrypter>> loads = new ArrayList<>();
+        for (FetchableTopicResponse topicRsp : topicRsps) {
+            TopicPolicy policy = policyRepo.getTopicPolicy(topicRsp.topic());
+            if (policy == null) {
+                continue;
+            }
+            KeyMgtSystem kms = policy.getKms();
+            String keyRef = policy.getKeyReference();
+            boolean kmsKeyRequired = false;
+            Set<ByteBuffer> wrappedKeys = new HashSet<>();
+            for (FetchResponseData.PartitionData partitionData : topicRsp.partitions()) {
+                for (MutableRecordBatch batch : ((MemoryRecords) partitionData.records()).batches()) {
+                    ByteBuffer value = firstValue(batch);
+                    if (value == null) {
+                        continue;
+                    }
+                    ByteBuffer wrappedKey;
+                    try {
+                        if (encSerDer.getKeyDigest(value) != null) {
+                            // the record carrying the key was compacted away,
+                            // the key is looked up when the batch is decrypted.
+                            continue;
+                        }
+                        wrappedKey = encSerDer.getWrappedKey(value);
+                    } catch (EncSerDerException e) {
+                        // reported when the batch is decrypted.
+                        continue;
+                    }
+                    if (wrappedKey == null) {
+                        kmsKeyRequired = true;
+                    } else {
+                        wrappedKeys.add(wrappedKey);
+                    }
+                }
+            }
+            List<CompletableFuture<EncrypterDecrypter>> topicLoads = new ArrayList<>();
+            if (kmsKeyRequired) {
+                topicLoads.add(encrypterCache.getAsync(kms, keyRef,
+                        () -> kms.getKeyAsync(keyRef).thenApply(key -> createEncrypter(keyRef, key))));
+            }
+            for (ByteBuffer wrappedKey : wrappedKeys) {
+                byte[] wrapped = new byte[wrappedKey.remaining()];
+                wrappedKey.duplicate().get(wrapped);
+                topicLoads.add(unwrapDataKey(kms, keyRef, wrapped));
+            }
+            for (CompletableFuture<EncrypterDecrypter> load : topicLoads) {
+                if (!load.isDone() || load.isCompletedExceptionally()) {
+                    loads.add(load);
+                }
+            }
+        }
+        return allOf(loads);
+    }
+
+    private static CompletionStage<Void> allOf(List<CompletableFuture<EncrypterDecrypter>> loads) {
+        if (loads.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.allOf(loads.toArray(new CompletableFuture[0]));
+    }
 
-        // Instantiate the encrypter/decrypter for this topic.
+    /**
+     * @return the value of the first record of a batch with records to
+     *         decrypt, or null if there is none. Only as much of a compressed
+     *         batch is decompressed as the record requires.
+     */
+    private static ByteBuffer firstValue(RecordBatch batch) {
+        Integer count = batch.countOrNull();
+        if (batch.isControlBatch() || (count != null && count == 0)) {
+            return null;
+        }
+        try (CloseableIterator<org.apache.kafka.common.record.Record> records =
+                batch.streamingIterator(BufferSupplier.NO_CACHING)) {
+            while (records.hasNext()) {
+                org.apache.kafka.common.record.Record record = records.next();
+                if (record.hasValue()) {
+                    return record.value();
+                }
+            }
+        }
+        return null;
+    }
+
+    private EncrypterDecrypter createEncrypter(String keyRef, SecretKey key) {
+        // Instantiate the encrypter/decrypter for this key.
         // We always assume AES GCM encrypter now.
         // TODO: factory for creating type of encrypter according to policy
-        enc = new AesGcmEncrypter(key);
+        // Ciphers are reused per thread as the encrypter is used for every record of the topic.
+        // IVs are 96-bit counter-based nonces, avoiding a shared random source per record,
+        // counted per key across reloads of the key.
+        return new AesGcmEncrypter(key, true, encrypterCache.getNonceGenerator(keyRef));
+    }
+
+    private static SecretKey generateDataKey() throws GeneralSecurityException {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        return keyGen.generateKey();
+    }
+
+    private CompletionStage<EncrypterDecrypter> createDataKeyEncrypterAsync(KeyMgtSystem kms,
+            String keyRef) {
+        final SecretKey dataKey;
+        try {
+            dataKey = generateDataKey();
+        } catch (GeneralSecurityException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return kms.wrapKeyAsync(keyRef, dataKey)
+                .thenApply(wrapped -> createDataKeyEncrypter(keyRef, dataKey, wrapped));
+    }
 
-        // add to cache and return
-        keyCache.put(topicKey, enc);
+    /**
+     * Creates the encrypter of a new data key. Its decrypter is cached as
+     * unwrapped, sparing the KMS when the proxy consumes what it produced.
+     */
+    private EncrypterDecrypter createDataKeyEncrypter(String keyRef, SecretKey dataKey,
+            byte[] wrappedKey) {
+        EncrypterDecrypter enc = new AesGcmEncrypter(dataKey, true, new CounterNonceGenerator(),
+                wrappedKey);
+        synchronized (unwrappedKeys) {
+            unwrappedKeys.put(new DataKeyId(keyRef, wrappedKey), CompletableFuture.completedFuture(enc));
+        }
         return enc;
     }
 
-    private long getFirstOffset(MemoryRecords recs) {
-        for (org.apache.kafka.common.record.Record r : recs.records()) {
-            if (r.hasValue()) {
-                return r.offset();
+    /**
+     * Returns the decrypter of a wrapped data key, unwrapping it with the
+     * asynchronous KMS API on a cache miss. A failed unwrap is dropped from the
+     * cache, to be retried by the next request for the key.
+     */
+    private CompletableFuture<EncrypterDecrypter> unwrapDataKey(KeyMgtSystem kms, String keyRef,
+            byte[] wrappedKey) {
+        DataKeyId id = new DataKeyId(keyRef, wrappedKey);
+        CompletableFuture<EncrypterDecrypter> unwrap;
+        synchronized (unwrappedKeys) {
+            unwrap = unwrappedKeys.get(id);
+            if (unwrap != null) {
+                return unwrap;
+            }
+            unwrap = new CompletableFuture<>();
+            unwrappedKeys.put(id, unwrap);
+        }
+        CompletableFuture<EncrypterDecrypter> result = unwrap;
+        kms.unwrapKeyAsync(keyRef, wrappedKey).whenComplete((key, e) -> {
+            if (e != null) {
+                synchronized (unwrappedKeys) {
+                    unwrappedKeys.remove(id, result);
+                }
+                result.completeExceptionally(e);
+            } else {
+                result.complete(new AesGcmEncrypter(key, true, new CounterNonceGenerator(), wrappedKey));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Returns the decrypter of a wrapped data key. Keys are unwrapped by
+     * loadDecrypters() ahead of decryption, so this only waits on the KMS for
+     * keys it did not see.
+     */
+    private EncrypterDecrypter getDataKeyDecrypter(KeyMgtSystem kms, String keyRef,
+            byte[] wrappedKey) throws KmsException {
+        CompletableFuture<EncrypterDecrypter> unwrap = unwrapDataKey(kms, keyRef, wrappedKey);
+        if (!unwrap.isDone()) {
+            LOGGER.debug("Waiting on the unwrap of a data key of key {}", keyRef);
+        }
+        try {
+            return unwrap.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KmsException("Interrupted unwrapping data key with key " + keyRef, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof KmsException) {
+                throw (KmsException) e.getCause();
+            }
+            throw new KmsException("Error unwrapping data key with key " + keyRef, e.getCause());
+        }
+    }
+
+    /**
+     * Resolves the decrypters of the records of a topic fetch. The KMS key's
+     * decrypter is only obtained for records encrypted with it, and the last
+     * data key is remembered, records of a batch mostly sharing one.
+     */
+    private final class TopicDecrypters implements DecrypterResolver {
+        private final String topicName;
+        private final TopicPolicy policy;
+        private EncrypterDecrypter kmsKeyDecrypter;
+        private ByteBuffer lastWrappedKey;
+        private EncrypterDecrypter lastDataKeyDecrypter;
+
+        TopicDecrypters(String topicName, TopicPolicy policy) {
+            this.topicName = topicName;
+            this.policy = policy;
+        }
+
+        @Override
+        public EncrypterDecrypter resolve(ByteBuffer wrappedKey) throws KmsException {
+            if (wrappedKey == null) {
+                if (kmsKeyDecrypter == null) {
+                    KeyMgtSystem kms = policy.getKms();
+                    String keyRef = policy.getKeyReference();
+                    try {
+                        kmsKeyDecrypter = encrypterCache.get(kms, keyRef,
+                                () -> createEncrypter(keyRef, kms.getKey(keyRef)));
+                    } catch (Exception e) {
+                        String msg = String.format("Error obtaining encrypter for topic: %s ", topicName);
+                        throw new KmsException(msg, e);
+                    }
+                }
+                return kmsKeyDecrypter;
+            }
+            if (!wrappedKey.equals(lastWrappedKey)) {
+                byte[] wrapped = new byte[wrappedKey.remaining()];
+                wrappedKey.duplicate().get(wrapped);
+                lastDataKeyDecrypter = getDataKeyDecrypter(policy.getKms(),
+                        policy.getKeyReference(), wrapped);
+                lastWrappedKey = ByteBuffer.wrap(wrapped);
+            }
+            return lastDataKeyDecrypter;
+        }
+
+        @Override
+        public EncrypterDecrypter resolveDigest(ByteBuffer keyDigest) {
+            if (lastWrappedKey != null
+                    && keyDigest.equals(ByteBuffer.wrap(encSerDer.digestKey(lastWrappedKey.array())))) {
+                return lastDataKeyDecrypter;
+            }
+            // the batch's first record, carrying the key, was removed by the
+            // log cleaner. Known if the key was seen since it was unwrapped or generated:
+            String keyRef = policy.getKeyReference();
+            synchronized (unwrappedKeys) {
+                for (Map.Entry<DataKeyId, CompletableFuture<EncrypterDecrypter>> entry : unwrappedKeys.entrySet()) {
+                    DataKeyId id = entry.getKey();
+                    CompletableFuture<EncrypterDecrypter> unwrap = entry.getValue();
+                    if (id.keyRef.equals(keyRef) && unwrap.isDone() && !unwrap.isCompletedExceptionally()
+                            && keyDigest.equals(ByteBuffer.wrap(encSerDer.digestKey(id.wrappedKey)))) {
+                        lastWrappedKey = ByteBuffer.wrap(id.wrappedKey);
+                        lastDataKeyDecrypter = unwrap.join();
+                        return lastDataKeyDecrypter;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A data key, by the reference of the KMS key which wrapped it and its
+     * wrapped bytes.
+     */
+    private static final class DataKeyId {
+        final String keyRef;
+        final byte[] wrappedKey;
+
+        DataKeyId(String keyRef, byte[] wrappedKey) {
+            this.keyRef = keyRef;
+            this.wrappedKey = wrappedKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DataKeyId)) {
+                return false;
+            }
+            DataKeyId other = (DataKeyId) o;
+            return keyRef.equals(other.keyRef) && Arrays.equals(wrappedKey, other.wrappedKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * keyRef.hashCode() + Arrays.hashCode(wrappedKey);
+        }
+    }
+
+    /**
+     * Rewrites records batch by batch, encrypting or decrypting record values.
+     * Each batch keeps its offsets, timestamps, producer id, epoch, base
+     * sequence, transactional flag and partition leader epoch, so that
+     * idempotent and transactional producers and consumer position tracking
+     * work through the proxy as they do with the broker. Values are encrypted
+     * with encrypter, unless it is null, otherwise decrypted with the decrypters
+     * resolved. Records of v2 batches below minOffset are dropped. Decrypted
+     * batches are looked up in and added to the batch cache under
+     * cachePartition, unless it is null.
+     */
+    private MemoryRecords rewriteRecords(MemoryRecords recs, EncrypterDecrypter encrypter,
+            boolean referToKeys, DecrypterResolver decrypters, long minOffset, DecryptedBatchCache.Partition cachePartition)
+            throws EncSerDerException, GeneralSecurityException, KmsException {
+        boolean encrypt = encrypter != null;
+        ByteBufferOutputStream out = new ByteBufferOutputStream(recs.sizeInBytes());
+        ByteBuffer valueBuf = null;
+        int consumed = 0;
+        for (MutableRecordBatch batch : recs.batches()) {
+            consumed += batch.sizeInBytes();
+            Integer count = batch.countOrNull();
+            if (batch.isControlBatch() || (count != null && count == 0)) {
+                // nothing to encrypt or decrypt. Copied so that consumers still see
+                // transaction markers and the offsets of compacted batches.
+                batch.writeTo(out);
+                continue;
+            }
+            // decrypted batches are written uncompressed, sparing a recompression
+            // the consumer would only undo.
+            // older formats have no empty batches to carry the offsets of dropped records:
+            boolean trim = batch.magic() >= RecordBatch.MAGIC_VALUE_V2;
+            if (trim && batch.lastOffset() < minOffset) {
+                writeEmptyBatch(out, batch);
+                continue;
+            }
+            if (cachePartition != null) {
+                ByteBuffer cached = batchCache.get(cachePartition, batch);
+                if (cached != null) {
+                    // the whole batch, of which the consumer skips any records
+                    // below its fetch offset.
+                    out.write(cached);
+                    continue;
+                }
+            }
+            if (encrypt) {
+                valueBuf = encryptBatch(out, batch, encrypter, referToKeys, valueBuf);
+                continue;
+            }
+            int batchStart = out.position();
+            boolean trimmed = false;
+            MemoryRecordsBuilder builder = createMemoryRecsBuilder(out, batch, CompressionType.NONE);
+            for (org.apache.kafka.common.record.Record record : batch) {
+                if (trim && record.offset() < minOffset) {
+                    trimmed = true;
+                    continue;
+                }
+                ByteBuffer value = null;
+                if (record.hasValue()) {
+                    // deserialize value into version, iv, ciphertext and decrypt,
+                    // without copying the ciphertext out of the batch.
+                    ByteBuffer src = record.value();
+                    valueBuf = ensureCapacity(valueBuf, encSerDer.getMaxPlaintextLength(src));
+                    encSerDer.deserializeAndDecrypt(decrypters, src, valueBuf);
+                    value = valueBuf.flip();
+                }
+                // tombstones are passed on as they are:
+                builder.appendWithOffset(record.offset(), record.timestamp(), record.key(), value,
+                        record.headers());
+            }
+            if (builder.numRecords() == 0) {
+                // all records dropped. Closing leaves out as it was.
+                builder.close();
+                writeEmptyBatch(out, batch);
+                continue;
+            }
+            // the last offset may exceed the last record's if records were compacted away:
+            builder.overrideLastOffset(batch.lastOffset());
+            builder.close();
+            if (cachePartition != null && !trimmed) {
+                ByteBuffer decrypted = out.buffer().duplicate();
+                decrypted.limit(out.position()).position(batchStart);
+                batchCache.put(cachePartition, batch, decrypted);
+            }
+        }
+        if (consumed < recs.sizeInBytes()) {
+            // a fetch response may end with a partial batch, which the
+            // consumer skips or uses to detect oversized batches. Keep it.
+            ByteBuffer partial = recs.buffer().duplicate();
+            partial.position(partial.position() + consumed);
+            out.write(partial);
+        }
+        return MemoryRecords.readableRecords(out.buffer().flip());
+    }
+
+    /**
+     * Writes the given batch to out with its record values encrypted. Encrypted
+     * values no longer compress, so values are first encrypted into valueBuf,
+     * each compressed with the batch's codec where it pays, and the batch is
+     * then written uncompressed: the codec would only recompress ciphertext.
+     * Where compressing values saves little, as for small values, they are
+     * encrypted again uncompressed and the batch keeps its codec, which still
+     * compresses keys, headers and framing.
+     * <p>
+     * Values stay separately encrypted, since the log cleaner removes records
+     * from within batches, so the redundancy between values a compressed batch
+     * removes is lost, and encrypted batches of small similar values are
+     * several times larger than the producer's. Unless referToKeys is false,
+     * only the first value carries the wrapped data key of envelope encryption,
+     * later values referring to it by digest.
+     *
+     * @return the buffer values were encrypted into, for reuse
+     */
+    private ByteBuffer encryptBatch(ByteBufferOutputStream out, RecordBatch batch,
+            EncrypterDecrypter encrypter, boolean referToKeys, ByteBuffer valueBuf)
+            throws EncSerDerException, GeneralSecurityException {
+        // records of compressed batches are decompressed once, kept for the second pass:
+        List<org.apache.kafka.common.record.Record> records = new ArrayList<>();
+        int serializedLen = 0;
+        for (org.apache.kafka.common.record.Record record : batch) {
+            records.add(record);
+            if (record.hasValue()) {
+                // values after the first may refer to its wrapped key:
+                serializedLen += encSerDer.getSerializedLength(encrypter, record.valueSize(),
+                        referToKeys && serializedLen > 0);
+            }
+        }
+        valueBuf = ensureCapacity(valueBuf, serializedLen);
+        ByteBuffer[] values = new ByteBuffer[records.size()];
+        boolean valuesCompressed = encryptValues(records, encrypter, referToKeys, valueBuf, values,
+                batch.compressionType());
+        if (valuesCompressed && serializedLen - valueBuf.position() < serializedLen / MIN_VALUE_COMPRESSION_GAIN) {
+            valuesCompressed = encryptValues(records, encrypter, referToKeys, valueBuf.clear(), values,
+                    CompressionType.NONE);
+        }
+        MemoryRecordsBuilder builder = createMemoryRecsBuilder(out, batch,
+                valuesCompressed ? CompressionType.NONE : batch.compressionType());
+        for (int i = 0; i < values.length; i++) {
+            org.apache.kafka.common.record.Record record = records.get(i);
+            // tombstones are passed on as they are:
+            builder.appendWithOffset(record.offset(), record.timestamp(), record.key(), values[i],
+                    record.headers());
+        }
+        // the last offset may exceed the last record's if records were compacted away:
+        builder.overrideLastOffset(batch.lastOffset());
+        builder.close();
+        return valueBuf;
+    }
+
+    /**
+     * Encrypts the values of the given records, each into its slice of
+     * valueBuf, compressed with the given codec where it pays. Values after the
+     * first refer to its wrapped data key if referToKeys is true.
+     *
+     * @return whether any value was compressed
+     */
+    private boolean encryptValues(List<org.apache.kafka.common.record.Record> records,
+            EncrypterDecrypter encrypter, boolean referToKeys, ByteBuffer valueBuf, ByteBuffer[] values,
+            CompressionType compression) throws EncSerDerException, GeneralSecurityException {
+        boolean valuesCompressed = false;
+        boolean keyWritten = false;
+        for (int i = 0; i < values.length; i++) {
+            org.apache.kafka.common.record.Record record = records.get(i);
+            if (record.hasValue()) {
+                // encrypt the record value directly into its serialized form:
+                int start = valueBuf.position();
+                encSerDer.encryptAndSerialize(encrypter, record.value(), valueBuf, compression,
+                        referToKeys && keyWritten);
+                keyWritten = true;
+                values[i] = valueBuf.duplicate().limit(valueBuf.position()).position(start);
+                valuesCompressed |= encSerDer.getCompression(values[i]) != CompressionType.NONE;
             }
         }
-        return 0;
+        return valuesCompressed;
     }
 
-    private MemoryRecordsBuilder createMemoryRecsBuilder(int bufSize) {
-        return createMemoryRecsBuilder(bufSize, RecordBatch.NO_PARTITION_LEADER_EPOCH);
+    /**
+     * Returns a cleared buffer of at least the given capacity, reusing the
+     * provided buffer where it is large enough. Record values are encrypted into
+     * and decrypted from this buffer before being copied into the batch builder.
+     */
+    private static ByteBuffer ensureCapacity(ByteBuffer buf, int capacity) {
+        if (buf == null || buf.capacity() < capacity) {
+            return ByteBuffer.allocate(capacity);
+        }
+        buf.clear();
+        return buf;
     }
 
-    private MemoryRecordsBuilder createMemoryRecsBuilder(int bufSize, int partitionEpoch) {
-        return createMemoryRecsBuilder(bufSize, partitionEpoch, 0L);
+    /**
+     * Writes a batch without records in place of the given batch, as the log
+     * cleaner does, so that the consumer still moves past the batch's offsets.
+     */
+    private static void writeEmptyBatch(ByteBufferOutputStream out, RecordBatch batch) {
+        ByteBuffer header = ByteBuffer.allocate(DefaultRecordBatch.RECORD_BATCH_OVERHEAD);
+        DefaultRecordBatch.writeEmptyHeader(header, batch.magic(), batch.producerId(),
+                batch.producerEpoch(), batch.baseSequence(), batch.baseOffset(),
+                batch.lastOffset(), batch.partitionLeaderEpoch(), batch.timestampType(),
+                batch.maxTimestamp(), batch.isTransactional(), false);
+        out.write(header.flip());
     }
 
-    private MemoryRecordsBuilder createMemoryRecsBuilder(int bufSize, int partitionEpoch,
-            long baseOffset) {
-        ByteBuffer buffer = ByteBuffer.allocate(10); // will be expanded as needed
-        return new MemoryRecordsBuilder(buffer, RecordBatch.CURRENT_MAGIC_VALUE,
-                CompressionType.NONE,
-                TimestampType.CREATE_TIME,
-                baseOffset,
-                RecordBatch.NO_TIMESTAMP, // log appendTime
-                RecordBatch.NO_PRODUCER_ID,
-                RecordBatch.NO_PRODUCER_EPOCH,
-                0, // baseSequence. RecordBatch.NO_SEQUENCE
-                false, // isTransactional
-                false, // isBatch
-                partitionEpoch, // RecordBatch.NO_PARTITION_LEADER_EPOCH,
-                bufSize);
+    /**
+     * Creates a builder, appending to out, for a batch rewritten from the given
+     * batch. The batch's offsets, timestamps, producer state and partition
+     * leader epoch are carried over.
+     */
+    private static MemoryRecordsBuilder createMemoryRecsBuilder(ByteBufferOutputStream out,
+            RecordBatch batch, CompressionType compression) {
+        long logAppendTime = batch.timestampType() == TimestampType.LOG_APPEND_TIME
+                ? batch.maxTimestamp()
+                : RecordBatch.NO_TIMESTAMP;
+        return new MemoryRecordsBuilder(out, batch.magic(),
+                compression,
+                batch.timestampType(),
+                batch.baseOffset(),
+                logAppendTime,
+                batch.producerId(),
+                batch.producerEpoch(),
+                batch.baseSequence(),
+                batch.isTransactional(),
+                false, // isControlBatch, control batches are copied as they are
+                batch.partitionLeaderEpoch(),
+                Integer.MAX_VALUE); // writeLimit, the rewritten batch must fit whatever its size
     }
 }
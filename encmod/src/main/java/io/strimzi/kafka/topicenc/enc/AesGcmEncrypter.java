@@ -4,8 +4,8 @@
  */
 package io.strimzi.kafka.topicenc.enc;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.security.SecureRandom;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
@@ -13,32 +13,106 @@ import io.strimzi.kafka.topicenc.common.EncUtils;
 
 /**
  * An Encrypter/Decrypter for AES GCM.
+ * <p>
+ * By default a new Cipher is obtained from the JCE provider and fully
+ * initialized for every encryption and decryption. When constructed with
+ * cipher reuse enabled, initialized Cipher instances are kept per thread and
+ * are only re-initialized with the new IV on each operation. This avoids the
+ * provider lookup and, as the key does not change, the AES key expansion on
+ * the record path. Reused ciphers are confined to their thread so an
+ * encrypter instance may still be shared by many threads.
+ * <p>
+ * IVs are obtained from a NonceGenerator. Unless one is provided, random
+ * IVs of IV_SIZE bytes are used.
  */
 public class AesGcmEncrypter implements EncrypterDecrypter {
 
     public static final int IV_SIZE = 16; // bytes
     public static final int KEY_SIZE = 128; // for now
+    private static final int TAG_LEN = KEY_SIZE / Byte.SIZE; // bytes
     private static final String JCE_PROVIDER = "SunJCE"; // for now
 
     private final String transformation;
     private final SecretKey key;
-    private final SecureRandom random;
+    private final NonceGenerator nonceGenerator;
+    private final ThreadLocal<Cipher> encCiphers;
+    private final ThreadLocal<Cipher> decCiphers;
+    private final byte[] wrappedKey;
 
     public AesGcmEncrypter(SecretKey key) {
+        this(key, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param key          the AES key
+     * @param reuseCiphers if true, initialized Cipher instances are cached per
+     *                     thread and re-initialized with a new IV for each
+     *                     operation rather than being created anew.
+     */
+    public AesGcmEncrypter(SecretKey key, boolean reuseCiphers) {
+        this(key, reuseCiphers, new RandomNonceGenerator(IV_SIZE));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param key            the AES key
+     * @param reuseCiphers   if true, initialized Cipher instances are cached per
+     *                       thread.
+     * @param nonceGenerator the source of IVs for encryption.
+     */
+    public AesGcmEncrypter(SecretKey key, boolean reuseCiphers, NonceGenerator nonceGenerator) {
+        this(key, reuseCiphers, nonceGenerator, null);
+    }
+
+    /**
+     * Constructor for an encrypter using a data key of envelope encryption.
+     *
+     * @param key            the AES data key
+     * @param reuseCiphers   if true, initialized Cipher instances are cached per
+     *                       thread.
+     * @param nonceGenerator the source of IVs for encryption.
+     * @param wrappedKey     the data key as wrapped by the KMS, or null if the
+     *                       key is the KMS's own.
+     */
+    public AesGcmEncrypter(SecretKey key, boolean reuseCiphers, NonceGenerator nonceGenerator,
+            byte[] wrappedKey) {
         this.key = key;
+        this.wrappedKey = wrappedKey;
         this.transformation = EncUtils.AES256_GCM_NOPADDING;
-        this.random = new SecureRandom();
+        this.nonceGenerator = nonceGenerator;
+        if (reuseCiphers) {
+            this.encCiphers = new ThreadLocal<>();
+            this.decCiphers = new ThreadLocal<>();
+        } else {
+            this.encCiphers = null;
+            this.decCiphers = null;
+        }
+    }
+
+    @Override
+    public byte[] getWrappedKey() {
+        return wrappedKey;
+    }
+
+    /**
+     * @return true if this instance caches initialized ciphers per thread.
+     */
+    public boolean isReuseCiphers() {
+        return encCiphers != null;
     }
 
     @Override
     public EncData encrypt(byte[] plaintext) throws GeneralSecurityException {
-        byte[] iv = createIV();
+        byte[] iv = nonceGenerator.nextNonce();
         return encrypt(plaintext, iv);
     }
 
     @Override
     public EncData encrypt(byte[] plaintext, byte[] iv) throws GeneralSecurityException {
-        Cipher encCipher = createEncryptionCipher(transformation, key, iv);
+        Cipher encCipher = getCipher(Cipher.ENCRYPT_MODE, iv);
         byte[] ciphertext = encCipher.doFinal(plaintext);
         return new EncData(iv, ciphertext);
     }
@@ -46,34 +120,94 @@ public class AesGcmEncrypter implements EncrypterDecrypter {
     @Override
     public byte[] decrypt(EncData encData) throws GeneralSecurityException {
         // every encryption assumed to have its own IV
-        Cipher decCipher = createDecryptionCipher(transformation, key, encData.getIv());
+        Cipher decCipher = getCipher(Cipher.DECRYPT_MODE, encData.getIv());
         return decCipher.doFinal(encData.getCiphertext());
     }
 
-    private byte[] createIV() {
-        byte[] buf = new byte[IV_SIZE];
-        random.nextBytes(buf);
-        return buf;
+    @Override
+    public int encrypt(ByteBuffer src, ByteBuffer dst, byte[] iv) throws GeneralSecurityException {
+        return encrypt(src, dst, iv, null);
+    }
+
+    @Override
+    public int decrypt(ByteBuffer src, ByteBuffer dst, byte[] iv) throws GeneralSecurityException {
+        return decrypt(src, dst, iv, null);
     }
 
-    private static Cipher createEncryptionCipher(String transformation, SecretKey key, byte[] iv)
+    @Override
+    public int encrypt(ByteBuffer src, ByteBuffer dst, byte[] iv, ByteBuffer aad)
             throws GeneralSecurityException {
-        return createCipher(Cipher.ENCRYPT_MODE, transformation, key, iv);
+        Cipher encCipher = getCipher(Cipher.ENCRYPT_MODE, iv);
+        if (aad != null) {
+            encCipher.updateAAD(aad.duplicate());
+        }
+        return encCipher.doFinal(src, dst);
     }
 
-    private static Cipher createDecryptionCipher(String transformation, SecretKey key, byte[] iv)
+    @Override
+    public int decrypt(ByteBuffer src, ByteBuffer dst, byte[] iv, ByteBuffer aad)
             throws GeneralSecurityException {
-        return createCipher(Cipher.DECRYPT_MODE, transformation, key, iv);
+        Cipher decCipher = getCipher(Cipher.DECRYPT_MODE, iv);
+        if (aad != null) {
+            decCipher.updateAAD(aad.duplicate());
+        }
+        return decCipher.doFinal(src, dst);
+    }
+
+    @Override
+    public byte[] createIv() throws GeneralSecurityException {
+        return nonceGenerator.nextNonce();
+    }
+
+    @Override
+    public int getIvLength() {
+        return nonceGenerator.getNonceSize();
+    }
+
+    @Override
+    public int getCiphertextLength(int plaintextLength) {
+        // GCM appends the authentication tag to the ciphertext
+        return plaintextLength + TAG_LEN;
+    }
+
+    @Override
+    public boolean isRekeyRequired() {
+        return nonceGenerator.isRekeyRequired();
+    }
+
+    /**
+     * Returns a cipher initialized for the given mode and IV. Depending on how
+     * this instance was constructed, the cipher is either newly created or is
+     * the calling thread's cached cipher, re-initialized with the IV.
+     */
+    private Cipher getCipher(int mode, byte[] iv) throws GeneralSecurityException {
+        if (encCiphers == null) {
+            return createCipher(mode, transformation, key, iv);
+        }
+        ThreadLocal<Cipher> ciphers = mode == Cipher.ENCRYPT_MODE ? encCiphers : decCiphers;
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = createCipher(mode, transformation, key, iv);
+            ciphers.set(cipher);
+            return cipher;
+        }
+        // same key, so the provider retains its key schedule. Only the IV changes.
+        cipher.init(mode, key, createGcmSpec(iv));
+        return cipher;
     }
 
     private static Cipher createCipher(int mode, String transformation, SecretKey key, byte[] iv)
             throws GeneralSecurityException {
-        if (iv == null || iv.length == 0) {
-            throw new GeneralSecurityException("Initialization vector either null or empty.");
-        }
+        GCMParameterSpec gcmSpec = createGcmSpec(iv);
         Cipher cipher = Cipher.getInstance(transformation, JCE_PROVIDER);
-        GCMParameterSpec gcmSpec = new GCMParameterSpec(KEY_SIZE, iv);
         cipher.init(mode, key, gcmSpec);
         return cipher;
     }
+
+    private static GCMParameterSpec createGcmSpec(byte[] iv) throws GeneralSecurityException {
+        if (iv == null || iv.length == 0) {
+            throw new GeneralSecurityException("Initialization vector either null or empty.");
+        }
+        return new GCMParameterSpec(KEY_SIZE, iv);
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates 96-bit GCM nonces following the deterministic construction of NIST
+ * SP 800-38D: a 32-bit fixed field, chosen at random once per instance,
+ * followed by a 64-bit invocation counter. The counter starts at a random
+ * value so that two instances drawing the same prefix for the same key are
+ * still very unlikely to overlap.
+ * <p>
+ * Generation is lock-free: threads only contend on an atomic increment.
+ * Once the number of generated nonces reaches the rekey threshold,
+ * isRekeyRequired() returns true. At the invocation limit, nextNonce() fails
+ * rather than risk nonce reuse. Both limits apply per instance, so an
+ * instance must be used for the life of its key: a new instance for the same
+ * key would start counting afresh.
+ */
+public class CounterNonceGenerator implements NonceGenerator {
+
+    public static final int NONCE_SIZE = 12; // bytes
+    public static final long DEFAULT_INVOCATION_LIMIT = 1L << 32;
+    public static final long DEFAULT_REKEY_THRESHOLD = DEFAULT_INVOCATION_LIMIT / 2;
+
+    private final int prefix;
+    private final long initialCounter;
+    private final long rekeyThreshold;
+    private final long invocationLimit;
+    private final AtomicLong invocations = new AtomicLong();
+
+    public CounterNonceGenerator() {
+        this(DEFAULT_REKEY_THRESHOLD, DEFAULT_INVOCATION_LIMIT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param rekeyThreshold  the number of nonces after which a rekey is signaled.
+     * @param invocationLimit the maximum number of nonces this instance generates.
+     */
+    public CounterNonceGenerator(long rekeyThreshold, long invocationLimit) {
+        if (invocationLimit <= 0 || rekeyThreshold <= 0 || rekeyThreshold > invocationLimit) {
+            throw new IllegalArgumentException(
+                    "Require 0 < rekeyThreshold <= invocationLimit.");
+        }
+        SecureRandom random = new SecureRandom();
+        this.prefix = random.nextInt();
+        this.initialCounter = random.nextLong();
+        this.rekeyThreshold = rekeyThreshold;
+        this.invocationLimit = invocationLimit;
+    }
+
+    @Override
+    public byte[] nextNonce() throws GeneralSecurityException {
+        long invocation = invocations.getAndIncrement();
+        if (invocation >= invocationLimit) {
+            throw new GeneralSecurityException(
+                    "Nonce invocation limit reached, the key must be replaced.");
+        }
+        // wraps around modulo 2^64, so the counter never repeats within the limit.
+        long counter = initialCounter + invocation;
+        byte[] nonce = new byte[NONCE_SIZE];
+        ByteBuffer.wrap(nonce)
+                .putInt(prefix)
+                .putLong(counter);
+        return nonce;
+    }
+
+    @Override
+    public int getNonceSize() {
+        return NONCE_SIZE;
+    }
+
+    @Override
+    public boolean isRekeyRequired() {
+        return invocations.get() >= rekeyThreshold;
+    }
+}
@@ -4,6 +4,7 @@
  */
 package io.strimzi.kafka.topicenc.enc;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 
 /**
@@ -23,4 +24,80 @@ public interface EncrypterDecrypter {
 	EncData encrypt(byte[] plaintext, byte[] iv) throws GeneralSecurityException; 
 	
 	byte[] decrypt(EncData encMetadata) throws GeneralSecurityException; 
+
+	/**
+	 * Encrypt the remaining bytes of src into dst, without intermediate copies.
+	 * Either buffer may be direct. On return, src has been consumed and the
+	 * position of dst is advanced past the ciphertext.
+	 * @param src the plaintext
+	 * @param dst the buffer receiving the ciphertext, with at least
+	 *            getCiphertextLength(src.remaining()) bytes remaining.
+	 * @param iv the nonce/IV, typically obtained from createIv()
+	 * @return the number of bytes written to dst
+	 * @throws GeneralSecurityException
+	 */
+	int encrypt(ByteBuffer src, ByteBuffer dst, byte[] iv) throws GeneralSecurityException;
+
+	/**
+	 * Decrypt the remaining bytes of src into dst, without intermediate copies.
+	 * Either buffer may be direct.
+	 * @param src the ciphertext
+	 * @param dst the buffer receiving the plaintext
+	 * @param iv the nonce/IV the ciphertext was encrypted with
+	 * @return the number of bytes written to dst
+	 * @throws GeneralSecurityException
+	 */
+	int decrypt(ByteBuffer src, ByteBuffer dst, byte[] iv) throws GeneralSecurityException;
+
+	/**
+	 * As encrypt(ByteBuffer, ByteBuffer, byte[]), additionally authenticating
+	 * the remaining bytes of aad, which are not encrypted.
+	 * @param aad the additional authenticated data, which is not consumed, or null for none
+	 */
+	int encrypt(ByteBuffer src, ByteBuffer dst, byte[] iv, ByteBuffer aad) throws GeneralSecurityException;
+
+	/**
+	 * As decrypt(ByteBuffer, ByteBuffer, byte[]), for a ciphertext encrypted
+	 * with additional authenticated data. Decryption fails unless aad is the
+	 * same as on encryption.
+	 * @param aad the additional authenticated data, which is not consumed, or null for none
+	 */
+	int decrypt(ByteBuffer src, ByteBuffer dst, byte[] iv, ByteBuffer aad) throws GeneralSecurityException;
+
+	/**
+	 * @return a new nonce/IV for use with encrypt(ByteBuffer, ByteBuffer, byte[])
+	 * @throws GeneralSecurityException
+	 */
+	byte[] createIv() throws GeneralSecurityException;
+
+	/**
+	 * @return the length of the IVs returned by createIv()
+	 */
+	int getIvLength();
+
+	/**
+	 * @param plaintextLength the length of a plaintext
+	 * @return the length of the ciphertext produced for a plaintext of the given length.
+	 */
+	int getCiphertextLength(int plaintextLength);
+
+	/**
+	 * Indicates that this encrypter has used its key for as many encryptions
+	 * as can safely be performed, and that the key must be replaced. A fresh
+	 * instance for the same key does not lift the limit.
+	 * @return true if the key should be replaced.
+	 */
+	default boolean isRekeyRequired() {
+		return false;
+	}
+
+	/**
+	 * For envelope encryption, the data key of this encrypter as wrapped by the
+	 * KMS, which is stored with each message so that the key can be unwrapped
+	 * for decryption.
+	 * @return the wrapped data key, or null if this encrypter uses a KMS key directly.
+	 */
+	default byte[] getWrappedKey() {
+		return null;
+	}
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * A strategy for generating the nonces (aka IVs) used by an encrypter. A
+ * nonce must never be repeated for the same key. Implementations must be
+ * safe for use by multiple threads.
+ */
+public interface NonceGenerator {
+
+    /**
+     * Returns a new nonce.
+     *
+     * @return the nonce
+     * @throws GeneralSecurityException if no further nonces can be generated
+     *                                  safely with the current key.
+     */
+    byte[] nextNonce() throws GeneralSecurityException;
+
+    /**
+     * @return the size, in bytes, of the nonces returned by this generator.
+     */
+    int getNonceSize();
+
+    /**
+     * Indicates that the generator is approaching the limit of nonces it can
+     * safely generate and that the key, together with this generator, should be
+     * replaced. Nonces continue to be generated until the hard limit is reached.
+     *
+     * @return true if a rekey should be performed.
+     */
+    boolean isRekeyRequired();
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.enc;
+
+import java.security.SecureRandom;
+
+/**
+ * Generates nonces entirely from a SecureRandom. This is the original nonce
+ * strategy. Its random source is shared by all threads using the generator
+ * and random nonces are subject to the birthday bound, so prefer
+ * CounterNonceGenerator for high-volume encryption.
+ */
+public class RandomNonceGenerator implements NonceGenerator {
+
+    private final int nonceSize;
+    private final SecureRandom random;
+
+    public RandomNonceGenerator(int nonceSize) {
+        if (nonceSize <= 0) {
+            throw new IllegalArgumentException("Nonce size must be positive.");
+        }
+        this.nonceSize = nonceSize;
+        this.random = new SecureRandom();
+    }
+
+    @Override
+    public byte[] nextNonce() {
+        byte[] buf = new byte[nonceSize];
+        random.nextBytes(buf);
+        return buf;
+    }
+
+    @Override
+    public int getNonceSize() {
+        return nonceSize;
+    }
+
+    @Override
+    public boolean isRekeyRequired() {
+        return false;
+    }
+}
@@ -6,12 +6,10 @@ package io.strimzi.kafka.topicenc.policy;
 
 import java.util.List;
 import java.util.Objects;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 /**
  * This class is an in-memory repository of topic policies. Individual policies
- * are retrieved by name.
+ * are retrieved by topic name, matching exact, prefix and glob topic policies.
  */
 public class InMemoryPolicyRepository extends AbstractPolicyRepository {
 
@@ -23,8 +21,6 @@ public class InMemoryPolicyRepository extends AbstractPolicyRepository {
      */
     public InMemoryPolicyRepository(List<TopicPolicy> policies) {
         Objects.requireNonNull(policies, "Topic policy list must be non-null.");
-        isEncryptAllTopics = isWildcardPolicy(policies);
-        policyMap = policies.stream()
-                .collect(Collectors.toMap(InMemoryPolicyRepository::key, Function.identity()));
+        setPolicies(policies);
     }
 }
@@ -158,6 +158,10 @@ public class JsonPolicyLoader {
             }
             kmsPool.put(kmsName, kms);
         }
+        if (policy.isEnvelopeEncryption() && !kms.supportsKeyWrapping()) {
+            throw new IllegalArgumentException("Policy for topic, " + policy.getTopic()
+                    + ", requires envelope encryption, which its KMS does not support.");
+        }
         policy.setKms(kms);
         // return policy for method chaining
         return policy;
@@ -16,19 +16,31 @@ public class TopicPolicy {
 
     /**
      * A reserved topic name indicating that all topics are to be encrypted using
-     * one policy. This is not a regular expressions. Regex is not supported for
-     * specifying topic names.
+     * one policy, unless a more specific policy applies. Topic names may also be
+     * prefixes ending in '*', or globs using '*' and '?' (see
+     * TopicPolicyMatcher). Regex is not supported for specifying topic names.
      */
     public static final String ALL_TOPICS = "*";
 
+    /**
+     * AES-GCM with the key held by the KMS. The default encryption method.
+     */
+    public static final String ENC_METHOD_AES_GCM_V1 = "AesGcmV1";
+
+    /**
+     * AES-GCM with data keys generated by the proxy and wrapped by the KMS key,
+     * the wrapped data key being stored with each record (envelope encryption).
+     */
+    public static final String ENC_METHOD_AES_GCM_ENVELOPE_V1 = "AesGcmEnvelopeV1";
+
     /**
      * The name of the topic to encrypt. Required.
      */
     private String topic;
 
     /**
-     * A string indicating the encryption method. Optional. Currently only one
-     * method is supported: AES-GCM.
+     * A string indicating the encryption method. Optional, defaulting to
+     * AesGcmV1. AesGcmEnvelopeV1 selects envelope encryption.
      */
     private String encMethod;
 
@@ -55,6 +67,25 @@ public class TopicPolicy {
      */
     private String credential;
 
+    /**
+     * Key rotation triggers, for envelope encryption only. Optional, 0 meaning
+     * no trigger. Once the topic's data key has encrypted this many bytes or
+     * records, or was generated this many milliseconds ago, a new data key is
+     * prepared in the background and swapped in. Other methods encrypt with
+     * the KMS key itself, which only the KMS can replace.
+     */
+    private long rotateAfterBytes;
+    private long rotateAfterRecords;
+    private long rotateAfterMs;
+
+    /**
+     * Whether the topic is compacted, for envelope encryption only. Optional.
+     * The records of a batch otherwise carry the wrapped data key once, later
+     * records referring to it, and the log cleaner may remove the record
+     * carrying it. Records of compacted topics each carry the wrapped key.
+     */
+    private boolean compacted;
+
     /**
      * Returns the topic name to which this policy applies.
      * 
@@ -96,6 +127,14 @@ public class TopicPolicy {
         return this;
     }
 
+    /**
+     * @return true if the topic is encrypted with data keys wrapped by the KMS
+     *         key, rather than with the KMS key itself.
+     */
+    public boolean isEnvelopeEncryption() {
+        return ENC_METHOD_AES_GCM_ENVELOPE_V1.equals(encMethod);
+    }
+
     /**
      * Return the key reference used to identify the key within the key management
      * system to be used for this topic.
@@ -180,6 +219,54 @@ public class TopicPolicy {
         return this;
     }
 
+    /**
+     * @return the number of bytes after which the key is rotated, or 0 for no limit.
+     */
+    public long getRotateAfterBytes() {
+        return rotateAfterBytes;
+    }
+
+    public TopicPolicy setRotateAfterBytes(long rotateAfterBytes) {
+        this.rotateAfterBytes = rotateAfterBytes;
+        return this;
+    }
+
+    /**
+     * @return the number of records after which the key is rotated, or 0 for no limit.
+     */
+    public long getRotateAfterRecords() {
+        return rotateAfterRecords;
+    }
+
+    public TopicPolicy setRotateAfterRecords(long rotateAfterRecords) {
+        this.rotateAfterRecords = rotateAfterRecords;
+        return this;
+    }
+
+    /**
+     * @return the age in milliseconds at which the key is rotated, or 0 for no limit.
+     */
+    public long getRotateAfterMs() {
+        return rotateAfterMs;
+    }
+
+    public TopicPolicy setRotateAfterMs(long rotateAfterMs) {
+        this.rotateAfterMs = rotateAfterMs;
+        return this;
+    }
+
+    /**
+     * @return true if each record carries its wrapped data key, the topic being compacted.
+     */
+    public boolean isCompacted() {
+        return compacted;
+    }
+
+    public TopicPolicy setCompacted(boolean compacted) {
+        this.compacted = compacted;
+        return this;
+    }
+
     /**
      * Validate this policy. Asserts that all required properties are present. If
      * the policy is not valid, an IllegalArgumentException exception is thrown
@@ -202,6 +289,27 @@ public class TopicPolicy {
                     getTopic());
             throw new IllegalArgumentException(msg);
         }
+        if (!Strings.isNullOrEmpty(getEncMethod())
+                && !ENC_METHOD_AES_GCM_V1.equals(getEncMethod())
+                && !ENC_METHOD_AES_GCM_ENVELOPE_V1.equals(getEncMethod())) {
+            String msg = String.format(
+                    "Policy for topic %s has an unknown encryption method: %s",
+                    getTopic(), getEncMethod());
+            throw new IllegalArgumentException(msg);
+        }
+        if (getRotateAfterBytes() < 0 || getRotateAfterRecords() < 0 || getRotateAfterMs() < 0) {
+            String msg = String.format(
+                    "Policy for topic %s has a negative key rotation trigger.",
+                    getTopic());
+            throw new IllegalArgumentException(msg);
+        }
+        if (!isEnvelopeEncryption()
+                && (getRotateAfterBytes() > 0 || getRotateAfterRecords() > 0 || getRotateAfterMs() > 0)) {
+            String msg = String.format(
+                    "Policy for topic %s has key rotation triggers, which require encryption method %s.",
+                    getTopic(), ENC_METHOD_AES_GCM_ENVELOPE_V1);
+            throw new IllegalArgumentException(msg);
+        }
         return this;
     }
 
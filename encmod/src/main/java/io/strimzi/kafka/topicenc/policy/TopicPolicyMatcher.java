@@ -0,0 +1,175 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.policy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import io.strimzi.kafka.topicenc.common.Strings;
+
+/**
+ * An immutable, compiled set of topic policies, matching topic names to
+ * policies. A policy's topic may be:
+ * <ul>
+ * <li>an exact topic name, e.g. <code>orders</code></li>
+ * <li>a prefix, ending in a single '*', e.g. <code>orders.*</code></li>
+ * <li>a glob, with '*' matching any characters and '?' any one character,
+ * e.g. <code>*.pii.?</code></li>
+ * <li>the wildcard <code>*</code>, matching all topics</li>
+ * </ul>
+ * Where several policies match a topic, an exact name takes precedence over the
+ * longest matching prefix, which takes precedence over the first matching glob
+ * in definition order, which takes precedence over the wildcard. Topic names
+ * are matched case-insensitively.
+ * <p>
+ * Decisions, including the absence of a policy, are cached so that repeated
+ * lookups of a topic cost one hash lookup. The cache is bounded and is cleared
+ * when full.
+ */
+public class TopicPolicyMatcher {
+
+    public static final int DEFAULT_MAX_CACHED_DECISIONS = 10000;
+
+    private static final TopicPolicyMatcher EMPTY = new TopicPolicyMatcher(Collections.emptyList());
+
+    private final Map<String, TopicPolicy> exact = new HashMap<>();
+    private final Map<String, TopicPolicy> prefixes = new HashMap<>();
+    // distinct prefix lengths, longest first:
+    private final int[] prefixLengths;
+    private final List<Pattern> globs = new ArrayList<>();
+    private final List<TopicPolicy> globPolicies = new ArrayList<>();
+    private TopicPolicy allTopics;
+
+    private final Map<String, Optional<TopicPolicy>> decisions = new ConcurrentHashMap<>();
+    private final int maxCachedDecisions;
+
+    /**
+     * @param policies the policies to match
+     * @throws IllegalArgumentException if two policies have the same topic
+     */
+    public TopicPolicyMatcher(List<TopicPolicy> policies) {
+        this(policies, DEFAULT_MAX_CACHED_DECISIONS);
+    }
+
+    /**
+     * @param policies the policies to match
+     * @param maxCachedDecisions the bound on the number of cached decisions
+     * @throws IllegalArgumentException if two policies have the same topic
+     */
+    public TopicPolicyMatcher(List<TopicPolicy> policies, int maxCachedDecisions) {
+        this.maxCachedDecisions = maxCachedDecisions;
+        TreeSet<Integer> lengths = new TreeSet<>(Collections.reverseOrder());
+        Map<String, TopicPolicy> globTopics = new HashMap<>();
+        for (TopicPolicy policy : policies) {
+            String topic = normalize(policy.getTopic());
+            int wildcards = topic.indexOf('*') < 0 ? 0 : topic.length() - topic.replace("*", "").length();
+            boolean hasSingleCharWildcard = topic.indexOf('?') >= 0;
+            if (topic.equals(TopicPolicy.ALL_TOPICS)) {
+                if (allTopics != null) {
+                    throw duplicate(topic);
+                }
+                allTopics = policy;
+            } else if (wildcards == 0 && !hasSingleCharWildcard) {
+                if (exact.putIfAbsent(topic, policy) != null) {
+                    throw duplicate(topic);
+                }
+            } else if (wildcards == 1 && !hasSingleCharWildcard && topic.endsWith("*")) {
+                String prefix = topic.substring(0, topic.length() - 1);
+                if (prefixes.putIfAbsent(prefix, policy) != null) {
+                    throw duplicate(topic);
+                }
+                lengths.add(prefix.length());
+            } else {
+                if (globTopics.putIfAbsent(topic, policy) != null) {
+                    throw duplicate(topic);
+                }
+                globs.add(compileGlob(topic));
+                globPolicies.add(policy);
+            }
+        }
+        prefixLengths = lengths.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return a matcher without policies.
+     */
+    public static TopicPolicyMatcher empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Returns the policy for a topic.
+     *
+     * @param topicName the topic name
+     * @return the policy, or null if no policy matches the topic
+     */
+    public TopicPolicy match(String topicName) {
+        Optional<TopicPolicy> decision = decisions.get(topicName);
+        if (decision == null) {
+            decision = Optional.ofNullable(resolve(normalize(topicName)));
+            if (decisions.size() >= maxCachedDecisions) {
+                decisions.clear();
+            }
+            decisions.put(topicName, decision);
+        }
+        return decision.orElse(null);
+    }
+
+    private TopicPolicy resolve(String topic) {
+        TopicPolicy policy = exact.get(topic);
+        if (policy != null) {
+            return policy;
+        }
+        for (int len : prefixLengths) {
+            if (len <= topic.length()) {
+                policy = prefixes.get(topic.substring(0, len));
+                if (policy != null) {
+                    return policy;
+                }
+            }
+        }
+        for (int i = 0; i < globs.size(); i++) {
+            if (globs.get(i).matcher(topic).matches()) {
+                return globPolicies.get(i);
+            }
+        }
+        return allTopics;
+    }
+
+    private static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(glob.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+        if (literalStart < glob.length()) {
+            regex.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    private static String normalize(String topic) {
+        return Strings.createKey(topic, Locale.ROOT);
+    }
+
+    private static IllegalArgumentException duplicate(String topic) {
+        return new IllegalArgumentException("More than one policy defined for topic " + topic);
+    }
+}
@@ -4,21 +4,82 @@
  */
 package io.strimzi.kafka.topicenc.ser;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.MemoryRecordsBuilder;
 import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.utils.BufferSupplier;
+import org.apache.kafka.common.utils.ByteBufferOutputStream;
 
 import io.strimzi.kafka.topicenc.enc.EncData;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.kms.KmsException;
 
 /**
  * Serializes and deserializes messages encrypted with AES GCM.
  * Actually we need access to requests so we can access headers if needed.
+ * <p>
+ * Serialization version 1 consists of the IV length, IV, ciphertext length and
+ * ciphertext. Version 2 additionally records the compression type and the
+ * uncompressed length of a plaintext which was compressed before encryption.
+ * Version 2 is only written when compression actually reduces the size of the
+ * message. Version 3, for envelope encryption, starts with the length and bytes
+ * of the data key wrapped by the KMS, followed by the fields of version 2.
+ * Version 4 refers to the data key of an earlier message of its batch by a
+ * digest of the wrapped key, in place of the wrapped key itself, so that a
+ * batch carries its wrapped key once.
+ * <p>
+ * In versions 2 to 4, the fields preceding the IV are authenticated with the
+ * ciphertext as GCM additional authenticated data, so that tampering with the
+ * compression type, uncompressed length or wrapped key fails decryption.
+ * Uncompressed lengths are read before authentication, so they are bounded
+ * before buffers are sized by them.
  */
 public class AesGcmV1SerDer implements EncSerDer {
 
 	public static final short VERSION = 1;
+	public static final short VERSION_COMPRESSED = 2;
+	public static final short VERSION_ENVELOPE = 3;
+	public static final short VERSION_ENVELOPE_REF = 4;
+	// the leading bytes of the SHA-256 digest of a wrapped key, which refer to it.
+	// Collisions only fail authentication, the digest being authenticated:
+	public static final int KEY_DIGEST_LEN = 8;
+	// below this size, compression cannot outweigh the codecs' framing overhead.
+	// Larger values are compressed only where it reduces their size.
+	public static final int MIN_COMPRESSIBLE_LEN = 64;
+	// Kafka's default fetch.max.bytes, the most a consumer fetches at once by default.
+	public static final int DEFAULT_MAX_UNCOMPRESSED_LEN = 50 * 1024 * 1024;
+	private static final int COPY_CHUNK_LEN = 8192;
 	private static final String VERSION_ERRMSG = "Unsupported serialization version: %d, expected %d";
+
+	private final int maxUncompressedLen;
+	// the digest of the wrapped key last referred to, records of a batch sharing one:
+	private volatile KeyDigest lastKeyDigest;
+
+	public AesGcmV1SerDer() {
+		this(DEFAULT_MAX_UNCOMPRESSED_LEN);
+	}
+
+	/**
+	 * @param maxUncompressedLen the largest uncompressed length accepted from a
+	 *                           compressed message
+	 */
+	public AesGcmV1SerDer(int maxUncompressedLen) {
+		if (maxUncompressedLen <= 0) {
+			throw new IllegalArgumentException("Maximum length must be positive: " + maxUncompressedLen);
+		}
+		this.maxUncompressedLen = maxUncompressedLen;
+	}
 	
 	@Override
 	public byte[] serialize(EncData md) throws EncSerDerException {
@@ -49,42 +110,344 @@ public class AesGcmV1SerDer implements EncSerDer {
 	@Override
 	public EncData deserialize(byte[] msg) throws EncSerDerException {
 		ByteBuffer buf = ByteBuffer.wrap(msg);
+		Header header = readHeader(buf);
+		if (header.compression != CompressionType.NONE) {
+			// the plaintext must be decompressed after decryption, which EncData cannot express.
+			throw new EncSerDerException("Compressed message, use deserializeAndDecrypt().");
+		}
+		if (header.wrappedKey != null || header.keyDigest != null) {
+			throw new EncSerDerException("Envelope-encrypted message, use deserializeAndDecrypt().");
+		}
+		byte[] ciphertext = new byte[buf.remaining()];
+		buf.get(ciphertext);
+		EncData result = new EncData(header.iv, ciphertext);
+		return result;
+	}
+
+	@Override
+	public int getSerializedLength(EncrypterDecrypter enc, int plaintextLength) {
+		return getSerializedLength(enc, plaintextLength, false);
+	}
+
+	@Override
+	public int getSerializedLength(EncrypterDecrypter enc, int plaintextLength, boolean referToKey) {
+		byte[] wrappedKey = enc.getWrappedKey();
+		return (wrappedKey == null ? 0 :
+			   referToKey ? KEY_DIGEST_LEN :               // key digest (version 4)
+			   Short.BYTES + wrappedKey.length) +          // wrapped key (version 3)
+			   Short.BYTES +                               // version
+			   Byte.BYTES +                                // compression (version 2)
+			   Integer.BYTES +                             // uncompressed len (version 2)
+			   Short.BYTES +                               // iv length
+			   enc.getIvLength() +                         // iv
+			   Integer.BYTES +                             // data len
+			   enc.getCiphertextLength(plaintextLength);   // data
+	}
+
+	@Override
+	public int encryptAndSerialize(EncrypterDecrypter enc, ByteBuffer plaintext, ByteBuffer dst)
+			throws EncSerDerException, GeneralSecurityException {
+		return encryptAndSerialize(enc, plaintext, dst, CompressionType.NONE);
+	}
+
+	@Override
+	public int encryptAndSerialize(EncrypterDecrypter enc, ByteBuffer plaintext, ByteBuffer dst,
+			CompressionType compression) throws EncSerDerException, GeneralSecurityException {
+		return encryptAndSerialize(enc, plaintext, dst, compression, false);
+	}
+
+	@Override
+	public int encryptAndSerialize(EncrypterDecrypter enc, ByteBuffer plaintext, ByteBuffer dst,
+			CompressionType compression, boolean referToKey) throws EncSerDerException, GeneralSecurityException {
+		int start = dst.position();
+		ByteBuffer compressed = null;
+		// values longer than readers accept compressed are written uncompressed:
+		if (compression != CompressionType.NONE && plaintext.remaining() >= MIN_COMPRESSIBLE_LEN
+				&& plaintext.remaining() <= maxUncompressedLen) {
+			compressed = compress(plaintext.duplicate(), compression);
+			if (compressed.remaining() >= plaintext.remaining()) {
+				// incompressible, not worth the decompression on the way out.
+				compressed = null;
+			}
+		}
+		byte[] iv = enc.createIv();
+		byte[] wrappedKey = enc.getWrappedKey();
+		ByteBuffer aad = null;
+		if (wrappedKey != null) {
+			if (referToKey) {
+				dst.putShort(VERSION_ENVELOPE_REF);
+				dst.put(digestKey(wrappedKey));
+			} else {
+				dst.putShort(VERSION_ENVELOPE);
+				dst.putShort((short) wrappedKey.length);
+				dst.put(wrappedKey);
+			}
+			dst.put((byte) (compressed == null ? CompressionType.NONE : compression).id);
+			dst.putInt(compressed == null ? 0 : plaintext.remaining());
+			if (compressed != null) {
+				plaintext.position(plaintext.limit());
+			}
+		} else if (compressed == null) {
+			dst.putShort(VERSION);
+		} else {
+			dst.putShort(VERSION_COMPRESSED);
+			dst.put((byte) compression.id);
+			dst.putInt(plaintext.remaining());
+			plaintext.position(plaintext.limit());
+		}
+		if (dst.position() - start > Short.BYTES) {
+			// versions 2 to 4: the fields written so far.
+			aad = dst.duplicate().limit(dst.position()).position(start);
+		}
+		dst.putShort((short) iv.length);
+		dst.put(iv);
+		// reserve the data length, written once the ciphertext is in place:
+		int lenPos = dst.position();
+		dst.position(lenPos + Integer.BYTES);
+		int ciphertextLen = enc.encrypt(compressed == null ? plaintext : compressed, dst, iv, aad);
+		dst.putInt(lenPos, ciphertextLen);
+		return dst.position() - start;
+	}
+
+	@Override
+	public CompressionType getCompression(ByteBuffer msg) throws EncSerDerException {
+		return readHeader(msg.duplicate()).compression;
+	}
+
+	@Override
+	public ByteBuffer getWrappedKey(ByteBuffer msg) throws EncSerDerException {
+		return readHeader(msg.duplicate()).wrappedKey;
+	}
+
+	@Override
+	public ByteBuffer getKeyDigest(ByteBuffer msg) throws EncSerDerException {
+		return readHeader(msg.duplicate()).keyDigest;
+	}
+
+	@Override
+	public byte[] digestKey(byte[] wrappedKey) {
+		KeyDigest last = lastKeyDigest;
+		if (last != null && Arrays.equals(last.wrappedKey, wrappedKey)) {
+			return last.digest;
+		}
+		MessageDigest sha256;
+		try {
+			sha256 = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform implements SHA-256.
+			throw new IllegalStateException(e);
+		}
+		byte[] digest = Arrays.copyOf(sha256.digest(wrappedKey), KEY_DIGEST_LEN);
+		lastKeyDigest = new KeyDigest(wrappedKey, digest);
+		return digest;
+	}
+
+	@Override
+	public int getMaxPlaintextLength(ByteBuffer msg) throws EncSerDerException {
+		Header header = readHeader(msg.duplicate());
+		return Math.max(header.uncompressedLen, msg.remaining());
+	}
+
+	@Override
+	public int deserializeAndDecrypt(EncrypterDecrypter enc, ByteBuffer msg, ByteBuffer dst)
+			throws EncSerDerException, GeneralSecurityException {
+		Header header = readHeader(msg);
+		if (header.wrappedKey != null || header.keyDigest != null) {
+			throw new EncSerDerException("Envelope-encrypted message, the data key is required.");
+		}
+		return decrypt(enc, header, msg, dst);
+	}
+
+	@Override
+	public int deserializeAndDecrypt(DecrypterResolver resolver, ByteBuffer msg, ByteBuffer dst)
+			throws EncSerDerException, GeneralSecurityException, KmsException {
+		Header header = readHeader(msg);
+		if (header.keyDigest != null) {
+			EncrypterDecrypter enc = resolver.resolveDigest(header.keyDigest);
+			if (enc == null) {
+				throw new EncSerDerException("No decrypter for message: its data key is not known. "
+						+ "The message carrying the key may have been removed by compaction.");
+			}
+			return decrypt(enc, header, msg, dst);
+		}
+		EncrypterDecrypter enc = resolver.resolve(header.wrappedKey);
+		if (enc == null) {
+			throw new EncSerDerException("No decrypter for message.");
+		}
+		return decrypt(enc, header, msg, dst);
+	}
+
+	private static int decrypt(EncrypterDecrypter enc, Header header, ByteBuffer msg, ByteBuffer dst)
+			throws EncSerDerException, GeneralSecurityException {
+		if (header.compression == CompressionType.NONE) {
+			return enc.decrypt(msg, dst, header.iv, header.aad);
+		}
+		ByteBuffer compressed = ByteBuffer.allocate(msg.remaining());
+		enc.decrypt(msg, compressed, header.iv, header.aad);
+		compressed.flip();
+		return decompress(compressed, header.compression, header.uncompressedLen, dst);
+	}
+
+	private static ByteBuffer compress(ByteBuffer plaintext, CompressionType compression)
+			throws EncSerDerException {
+		ByteBufferOutputStream compressed = new ByteBufferOutputStream(plaintext.remaining());
+		try (OutputStream out = compression.wrapForOutput(compressed, RecordBatch.CURRENT_MAGIC_VALUE)) {
+			if (plaintext.hasArray()) {
+				out.write(plaintext.array(), plaintext.arrayOffset() + plaintext.position(), plaintext.remaining());
+			} else {
+				byte[] chunk = new byte[Math.min(plaintext.remaining(), COPY_CHUNK_LEN)];
+				while (plaintext.hasRemaining()) {
+					int len = Math.min(plaintext.remaining(), chunk.length);
+					plaintext.get(chunk, 0, len);
+					out.write(chunk, 0, len);
+				}
+			}
+		} catch (IOException | KafkaException e) {
+			throw new EncSerDerException("Error compressing message with " + compression.name, e);
+		}
+		return compressed.buffer().flip();
+	}
+
+	private static int decompress(ByteBuffer compressed, CompressionType compression,
+			int uncompressedLen, ByteBuffer dst) throws EncSerDerException {
+		if (dst.remaining() < uncompressedLen) {
+			throw new EncSerDerException("Insufficient space for decompressed message.");
+		}
+		int total = 0;
+		try (InputStream in = compression.wrapForInput(compressed, RecordBatch.CURRENT_MAGIC_VALUE,
+				BufferSupplier.NO_CACHING)) {
+			byte[] chunk = dst.hasArray() ? null : new byte[Math.min(uncompressedLen, COPY_CHUNK_LEN)];
+			while (total < uncompressedLen) {
+				int n;
+				if (chunk == null) {
+					n = in.read(dst.array(), dst.arrayOffset() + dst.position(), uncompressedLen - total);
+					if (n > 0) {
+						dst.position(dst.position() + n);
+					}
+				} else {
+					n = in.read(chunk, 0, Math.min(chunk.length, uncompressedLen - total));
+					if (n > 0) {
+						dst.put(chunk, 0, n);
+					}
+				}
+				if (n < 0) {
+					break;
+				}
+				total += n;
+			}
+		} catch (IOException | KafkaException e) {
+			throw new EncSerDerException("Error decompressing message with " + compression.name, e);
+		}
+		if (total != uncompressedLen) {
+			throw new EncSerDerException("Invalid message: decompressed length does not match.");
+		}
+		return total;
+	}
+
+	/**
+	 * Reads and validates the framing preceding the ciphertext. On return, the
+	 * buffer's position is at the start of the ciphertext and its limit at the
+	 * end of the ciphertext.
+	 * 
+	 * @param buf the serialized message
+	 * @return the framing fields
+	 * @throws EncSerDerException if the framing is invalid
+	 */
+	private Header readHeader(ByteBuffer buf) throws EncSerDerException {
+		int start = buf.position();
 		int bufLen = buf.remaining();
 		
 		if (bufLen < 2*Short.BYTES) {
 			throw new EncSerDerException("Message too small, cannot deserialize.");
 		}
+		Header header = new Header();
 		short version = buf.getShort();
-		if (version != VERSION) {
+		if (version == VERSION_ENVELOPE) {
+			short wrappedKeyLen = buf.getShort();
+			if (wrappedKeyLen <= 0 || wrappedKeyLen > buf.remaining()) {
+				throw new EncSerDerException("Invalid message: invalid wrapped key length.");
+			}
+			header.wrappedKey = buf.slice();
+			header.wrappedKey.limit(wrappedKeyLen);
+			buf.position(buf.position() + wrappedKeyLen);
+		} else if (version == VERSION_ENVELOPE_REF) {
+			if (buf.remaining() < KEY_DIGEST_LEN) {
+				throw new EncSerDerException("Invalid message: message too short.");
+			}
+			header.keyDigest = buf.slice();
+			header.keyDigest.limit(KEY_DIGEST_LEN);
+			buf.position(buf.position() + KEY_DIGEST_LEN);
+		}
+		if (version == VERSION_COMPRESSED || version == VERSION_ENVELOPE || version == VERSION_ENVELOPE_REF) {
+			if (buf.remaining() < Byte.BYTES + Integer.BYTES + Short.BYTES) {
+				throw new EncSerDerException("Invalid message: message too short.");
+			}
+			try {
+				header.compression = CompressionType.forId(buf.get());
+			} catch (IllegalArgumentException e) {
+				throw new EncSerDerException("Invalid message: unknown compression type.");
+			}
+			header.uncompressedLen = buf.getInt();
+			if (header.uncompressedLen < 0) {
+				throw new EncSerDerException("Invalid message: negative uncompressed length.");
+			}
+			if (header.uncompressedLen > maxUncompressedLen) {
+				throw new EncSerDerException("Invalid message: uncompressed length "
+						+ header.uncompressedLen + " exceeds the maximum " + maxUncompressedLen);
+			}
+			header.aad = buf.duplicate().limit(buf.position()).position(start);
+		} else if (version != VERSION) {
 			String errMsg = createVersionErrMsg(version, VERSION);
 			throw new EncSerDerException(errMsg);
 		}
 		
 		short ivLen = buf.getShort();
-		if (ivLen == 0) {
+		if (ivLen <= 0) {
 			throw new EncSerDerException("Invalid message: IV length is 0.");
 		}
-		if (ivLen > bufLen) {
+		if (ivLen > buf.remaining()) {
 			throw new EncSerDerException("Invalid message: IV length exceeds message length.");
 		}
 		
-		byte[] iv = new byte[ivLen];
-		buf.get(iv);
+		header.iv = new byte[ivLen];
+		buf.get(header.iv);
 	
-		if ((buf.position() + Integer.BYTES) > bufLen) {
+		if (buf.remaining() < Integer.BYTES) {
 			throw new EncSerDerException("Invalid message: message too short.");
 		}
 		int ciphertextLen = buf.getInt();
 		if (ciphertextLen < 0) {
 			throw new EncSerDerException("Invalid message: negative ciphertext length.");
-		} else if ((buf.position() + ciphertextLen) > bufLen) {
+		} else if (ciphertextLen > buf.remaining()) {
 			throw new EncSerDerException("Invalid message: ciphertext length exceeds message length");			
 		}
-		
-		byte[] ciphertext = new byte[ciphertextLen];
-		buf.get(ciphertext);
-		EncData result = new EncData(iv, ciphertext);
-		return result;
+		buf.limit(buf.position() + ciphertextLen);
+		return header;
+	}
+
+	/**
+	 * The framing fields preceding the ciphertext.
+	 */
+	private static final class Header {
+		CompressionType compression = CompressionType.NONE;
+		int uncompressedLen;
+		byte[] iv;
+		// the data key wrapped by the KMS, for version 3:
+		ByteBuffer wrappedKey;
+		// the digest of the wrapped data key, for version 4:
+		ByteBuffer keyDigest;
+		// the authenticated fields, for versions 2 to 4:
+		ByteBuffer aad;
+	}
+
+	private static final class KeyDigest {
+		final byte[] wrappedKey;
+		final byte[] digest;
+
+		KeyDigest(byte[] wrappedKey, byte[] digest) {
+			this.wrappedKey = wrappedKey;
+			this.digest = digest;
+		}
 	}
 	
 	private static String createVersionErrMsg(short rcvd, short expected) {
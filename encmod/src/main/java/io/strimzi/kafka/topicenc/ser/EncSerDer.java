@@ -4,16 +4,154 @@
  */
 package io.strimzi.kafka.topicenc.ser;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.MemoryRecordsBuilder;
 import org.apache.kafka.common.record.Record;
 
 import io.strimzi.kafka.topicenc.enc.EncData;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.kms.KmsException;
 
 public interface EncSerDer {
 
+	/**
+	 * Provides the decrypter of a message, according to its framing.
+	 */
+	interface DecrypterResolver {
+
+		/**
+		 * @param wrappedKey the data key wrapped by the KMS, read from a message
+		 *                   encrypted with envelope encryption, or null for a
+		 *                   message encrypted with the KMS key itself
+		 * @return the decrypter
+		 */
+		EncrypterDecrypter resolve(ByteBuffer wrappedKey) throws GeneralSecurityException, KmsException;
+
+		/**
+		 * @param keyDigest the digest of a wrapped data key, read from a message
+		 *                  referring to the key of an earlier message
+		 * @return the decrypter, or null if the key is not known
+		 */
+		EncrypterDecrypter resolveDigest(ByteBuffer keyDigest) throws GeneralSecurityException, KmsException;
+	}
+
 	byte[] serialize(EncData md) throws EncSerDerException;
 	
 	void serialize(MemoryRecordsBuilder builder, Record r, EncData md) throws EncSerDerException;
 	
 	EncData deserialize(byte[] msg) throws EncSerDerException;
+
+	/**
+	 * @param enc the encrypter to be used
+	 * @param plaintextLength the length of the plaintext
+	 * @return the maximum number of bytes encryptAndSerialize() writes for a plaintext of the given length.
+	 */
+	int getSerializedLength(EncrypterDecrypter enc, int plaintextLength);
+
+	/**
+	 * @param referToKey whether the message refers to the wrapped data key rather than carrying it
+	 * @return the maximum number of bytes encryptAndSerialize() writes for a
+	 *         plaintext of the given length, passed the same referToKey.
+	 */
+	int getSerializedLength(EncrypterDecrypter enc, int plaintextLength, boolean referToKey);
+
+	/**
+	 * Encrypt the remaining bytes of plaintext, writing the serialized
+	 * metadata and ciphertext directly into dst. No intermediate arrays
+	 * are allocated for the ciphertext.
+	 * 
+	 * @param enc the encrypter
+	 * @param plaintext the plaintext, which is consumed
+	 * @param dst the destination, with at least getSerializedLength() bytes remaining
+	 * @return the number of bytes written to dst
+	 */
+	int encryptAndSerialize(EncrypterDecrypter enc, ByteBuffer plaintext, ByteBuffer dst)
+			throws EncSerDerException, GeneralSecurityException;
+
+	/**
+	 * As encryptAndSerialize(EncrypterDecrypter, ByteBuffer, ByteBuffer), first
+	 * compressing the plaintext with the given compression type where this
+	 * reduces its size.
+	 * 
+	 * @param enc the encrypter
+	 * @param plaintext the plaintext, which is consumed
+	 * @param dst the destination, with at least getSerializedLength() bytes remaining
+	 * @param compression the compression to apply before encryption
+	 * @return the number of bytes written to dst
+	 */
+	int encryptAndSerialize(EncrypterDecrypter enc, ByteBuffer plaintext, ByteBuffer dst,
+			CompressionType compression) throws EncSerDerException, GeneralSecurityException;
+
+	/**
+	 * As encryptAndSerialize(EncrypterDecrypter, ByteBuffer, ByteBuffer, CompressionType),
+	 * optionally referring to the wrapped data key of the encrypter rather than
+	 * carrying it, for messages following one which carries it. getSerializedLength()
+	 * remains an upper bound.
+	 * 
+	 * @param referToKey whether to write the digest of the wrapped key in its place.
+	 *                   Ignored for encrypters without a wrapped key.
+	 */
+	int encryptAndSerialize(EncrypterDecrypter enc, ByteBuffer plaintext, ByteBuffer dst,
+			CompressionType compression, boolean referToKey) throws EncSerDerException, GeneralSecurityException;
+
+	/**
+	 * @param msg a serialized message. Its position is not modified.
+	 * @return the compression applied to the plaintext before encryption.
+	 */
+	CompressionType getCompression(ByteBuffer msg) throws EncSerDerException;
+
+	/**
+	 * @param msg a serialized message. Its position is not modified.
+	 * @return the wrapped data key the message was encrypted with, or null if
+	 *         it was encrypted with the KMS key.
+	 */
+	ByteBuffer getWrappedKey(ByteBuffer msg) throws EncSerDerException;
+
+	/**
+	 * @param msg a serialized message. Its position is not modified.
+	 * @return the digest of the wrapped data key the message refers to, or null
+	 *         if it carries its key or was encrypted with the KMS key.
+	 */
+	ByteBuffer getKeyDigest(ByteBuffer msg) throws EncSerDerException;
+
+	/**
+	 * @param wrappedKey a wrapped data key
+	 * @return the digest by which messages refer to the key
+	 */
+	byte[] digestKey(byte[] wrappedKey);
+
+	/**
+	 * @param msg a serialized message. Its position is not modified.
+	 * @return the maximum number of bytes deserializeAndDecrypt() writes for the
+	 *         message, which is bounded whatever the message claims.
+	 */
+	int getMaxPlaintextLength(ByteBuffer msg) throws EncSerDerException;
+
+	/**
+	 * Deserialize the metadata at the position of msg and decrypt the
+	 * ciphertext which follows it directly into dst.
+	 * 
+	 * @param enc the decrypter
+	 * @param msg the serialized message, which is consumed
+	 * @param dst the destination for the plaintext, with at least getMaxPlaintextLength() bytes remaining
+	 * @return the number of bytes written to dst
+	 */
+	int deserializeAndDecrypt(EncrypterDecrypter enc, ByteBuffer msg, ByteBuffer dst)
+			throws EncSerDerException, GeneralSecurityException;
+
+	/**
+	 * As deserializeAndDecrypt(EncrypterDecrypter, ByteBuffer, ByteBuffer), for
+	 * messages encrypted with or without envelope encryption, obtaining the
+	 * decrypter from the resolver.
+	 * 
+	 * @param resolver provides the decrypter according to the message's framing
+	 * @param msg the serialized message, which is consumed
+	 * @param dst the destination for the plaintext, with at least getMaxPlaintextLength() bytes remaining
+	 * @return the number of bytes written to dst
+	 */
+	int deserializeAndDecrypt(DecrypterResolver resolver, ByteBuffer msg, ByteBuffer dst)
+			throws EncSerDerException, GeneralSecurityException, KmsException;
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.kafka.common.message.FetchResponseData;
+import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.topicenc.policy.TestPolicyRepository;
+
+public class DecryptedBatchCacheTest {
+
+    TestPolicyRepository policyRepo;
+
+    @Before
+    public void testsSetup() throws Exception {
+        policyRepo = new TestPolicyRepository();
+    }
+
+    /**
+     * @return a batch of the given number of records, encrypted as produced.
+     */
+    private MemoryRecords encryptedBatch(int numRecords) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(1024 + numRecords * 64);
+        MemoryRecordsBuilder builder = MemoryRecords.builder(buf, CompressionType.NONE,
+                TimestampType.CREATE_TIME, 0L);
+        for (int i = 0; i < numRecords; i++) {
+            builder.append(1000L + i, ("k" + i).getBytes(), ("v" + i).getBytes());
+        }
+        TopicProduceData topicData = new TopicProduceData().setName("test");
+        topicData.partitionData().add(new PartitionProduceData().setRecords(builder.build()));
+        new EncryptionModule(policyRepo).encrypt(topicData);
+        return (MemoryRecords) topicData.partitionData().get(0).records();
+    }
+
+    private MemoryRecords decrypt(EncryptionModule encMod, MemoryRecords encrypted, int partition,
+            Map<Integer, Long> fetchOffsets) throws Exception {
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse().setTopic("test");
+        topicRsp.partitions().add(new FetchResponseData.PartitionData().setPartitionIndex(partition)
+                .setRecords(MemoryRecords.readableRecords(encrypted.buffer().duplicate())));
+        Assert.assertTrue(encMod.decrypt(topicRsp, fetchOffsets));
+        return (MemoryRecords) topicRsp.partitions().get(0).records();
+    }
+
+    private static void assertDecrypted(MemoryRecords decrypted, int numRecords) {
+        int n = 0;
+        for (Record r : decrypted.records()) {
+            Assert.assertEquals(ByteBuffer.wrap(("v" + r.offset()).getBytes()), r.value());
+            n++;
+        }
+        Assert.assertEquals(numRecords, n);
+    }
+
+    /**
+     * A batch fetched again is served from the cache.
+     */
+    @Test
+    public void hitTest() throws Exception {
+        DecryptedBatchCache cache = new DecryptedBatchCache(1 << 20);
+        EncryptionModule encMod = new EncryptionModule(policyRepo,
+                new EncrypterCache(10, Duration.ofMinutes(1)), cache);
+        MemoryRecords encrypted = encryptedBatch(5);
+
+        assertDecrypted(decrypt(encMod, encrypted, 0, Collections.emptyMap()), 5);
+        Assert.assertEquals(0, cache.hits());
+        Assert.assertEquals(1, cache.size());
+        assertDecrypted(decrypt(encMod, encrypted, 0, Collections.emptyMap()), 5);
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(0.5, cache.hitRate(), 0.0);
+
+        // another partition's batch at the same offset is not a hit:
+        decrypt(encMod, encrypted, 1, Collections.emptyMap());
+        Assert.assertEquals(1, cache.hits());
+        Assert.assertEquals(2, cache.size());
+
+        // purging the key drops its plaintext:
+        encMod.purgeKey("test");
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.sizeInBytes());
+    }
+
+    /**
+     * Batches trimmed to the fetch offset are not cached, but a cached batch
+     * serves fetches from within it.
+     */
+    @Test
+    public void fetchOffsetTest() throws Exception {
+        DecryptedBatchCache cache = new DecryptedBatchCache(1 << 20);
+        EncryptionModule encMod = new EncryptionModule(policyRepo,
+                new EncrypterCache(10, Duration.ofMinutes(1)), cache);
+        MemoryRecords encrypted = encryptedBatch(5);
+
+        assertDecrypted(decrypt(encMod, encrypted, 0, Collections.singletonMap(0, 3L)), 2);
+        Assert.assertEquals(0, cache.size());
+        decrypt(encMod, encrypted, 0, Collections.emptyMap());
+        assertDecrypted(decrypt(encMod, encrypted, 0, Collections.singletonMap(0, 3L)), 5);
+        Assert.assertEquals(1, cache.hits());
+    }
+
+    /**
+     * The least recently used batches are evicted to stay within the size.
+     */
+    @Test
+    public void evictionTest() throws Exception {
+        MemoryRecords encrypted = encryptedBatch(5);
+        int batchSize = decrypt(new EncryptionModule(policyRepo), encrypted, 0,
+                Collections.emptyMap()).sizeInBytes();
+        DecryptedBatchCache cache = new DecryptedBatchCache(2 * batchSize);
+        EncryptionModule encMod = new EncryptionModule(policyRepo,
+                new EncrypterCache(10, Duration.ofMinutes(1)), cache);
+
+        decrypt(encMod, encrypted, 0, Collections.emptyMap());
+        decrypt(encMod, encrypted, 1, Collections.emptyMap());
+        // partition 0 is now the most recently used:
+        decrypt(encMod, encrypted, 0, Collections.emptyMap());
+        decrypt(encMod, encrypted, 2, Collections.emptyMap());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.evictions());
+        Assert.assertEquals(2 * batchSize, cache.sizeInBytes());
+
+        decrypt(encMod, encrypted, 0, Collections.emptyMap());
+        Assert.assertEquals(2, cache.hits());
+        decrypt(encMod, encrypted, 1, Collections.emptyMap());
+        Assert.assertEquals(2, cache.hits());
+
+        // striped, each stripe evicting its own batches:
+        DecryptedBatchCache striped = new DecryptedBatchCache(4 * batchSize, 2);
+        EncryptionModule stripedMod = new EncryptionModule(policyRepo,
+                new EncrypterCache(10, Duration.ofMinutes(1)), striped);
+        for (int partition = 0; partition < 8; partition++) {
+            decrypt(stripedMod, encrypted, partition, Collections.emptyMap());
+        }
+        Assert.assertTrue(striped.size() <= 4);
+        Assert.assertEquals(8 - striped.size(), striped.evictions());
+        Assert.assertEquals(striped.size() * batchSize, striped.sizeInBytes());
+
+        // batches larger than the cache are not cached:
+        DecryptedBatchCache small = new DecryptedBatchCache(batchSize - 1);
+        decrypt(new EncryptionModule(policyRepo, new EncrypterCache(10, Duration.ofMinutes(1)),
+                small), encrypted, 0, Collections.emptyMap());
+        Assert.assertEquals(0, small.size());
+    }
+}
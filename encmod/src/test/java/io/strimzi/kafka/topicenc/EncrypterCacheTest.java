@@ -0,0 +1,181 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.topicenc.enc.AesGcmEncrypter;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
+import io.strimzi.kafka.topicenc.kms.KmsException;
+import io.strimzi.kafka.topicenc.policy.TestPolicyRepository;
+
+public class EncrypterCacheTest {
+
+    KeyMgtSystem kms;
+    AtomicInteger loads;
+
+    @Before
+    public void testsSetup() throws KmsException {
+        kms = new TestPolicyRepository().getTopicPolicy("test").getKms();
+        loads = new AtomicInteger();
+    }
+
+    /**
+     * Concurrent misses for one key are served by a single load.
+     */
+    @Test
+    public void singleFlightTest() throws Exception {
+        EncrypterCache cache = new EncrypterCache(10, Duration.ofMinutes(1));
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<EncrypterDecrypter>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get(kms, "test", this::slowLoad);
+                }));
+            }
+            start.countDown();
+            EncrypterDecrypter first = results.get(0).get();
+            for (Future<EncrypterDecrypter> result : results) {
+                Assert.assertSame(first, result.get());
+            }
+            Assert.assertEquals(1, loads.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Entries are reloaded after expiry, invalidation and failed loads, and the
+     * cache does not grow beyond its bound.
+     */
+    @Test
+    public void evictionTest() throws Exception {
+        EncrypterCache cache = new EncrypterCache(2, Duration.ofMillis(200));
+        EncrypterDecrypter enc = cache.get(kms, "a", this::load);
+        Assert.assertSame(enc, cache.get(kms, "a", this::load));
+        Assert.assertEquals(1, loads.get());
+
+        // expiry:
+        Thread.sleep(250);
+        Assert.assertNotSame(enc, cache.get(kms, "a", this::load));
+        Assert.assertEquals(2, loads.get());
+
+        // invalidation:
+        enc = cache.get(kms, "a", this::load);
+        cache.invalidate(enc);
+        Assert.assertNotSame(enc, cache.get(kms, "a", this::load));
+        cache.purge("a");
+        Assert.assertEquals(0, cache.size());
+
+        // size bound:
+        cache.get(kms, "a", this::load);
+        cache.get(kms, "b", this::load);
+        cache.get(kms, "c", this::load);
+        Assert.assertEquals(2, cache.size());
+
+        // failures are not cached:
+        try {
+            cache.get(kms, "d", () -> {
+                throw new KmsException("unavailable");
+            });
+            Assert.fail("Expected the load failure");
+        } catch (KmsException e) {
+            // expected
+        }
+        Assert.assertNotNull(cache.get(kms, "d", this::load));
+    }
+
+    /**
+     * Asynchronous loads do not block the caller and are shared by concurrent
+     * requests for the key.
+     */
+    @Test
+    public void asyncLoadTest() throws Exception {
+        EncrypterCache cache = new EncrypterCache(10, Duration.ofMinutes(1));
+        CompletableFuture<EncrypterDecrypter> pending = new CompletableFuture<>();
+        CompletableFuture<EncrypterDecrypter> first = cache.getAsync(kms, "test", () -> {
+            loads.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<EncrypterDecrypter> second = cache.getAsync(kms, "test", () -> {
+            loads.incrementAndGet();
+            return pending;
+        });
+        Assert.assertFalse(first.isDone());
+        Assert.assertSame(first, second);
+
+        EncrypterDecrypter enc = load();
+        pending.complete(enc);
+        Assert.assertSame(enc, first.get());
+        Assert.assertSame(enc, cache.get(kms, "test", this::load));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    /**
+     * A rotated encrypter is served, and its use tracked, until its
+     * replacement is loaded.
+     */
+    @Test
+    public void rotateTest() throws Exception {
+        EncrypterCache cache = new EncrypterCache(10, Duration.ofMinutes(1));
+        EncrypterDecrypter enc = cache.get(kms, "test", this::load);
+        Assert.assertEquals(2, cache.recordUse(kms, "test", enc, 2, 100).records());
+        EncrypterCache.Usage usage = cache.recordUse(kms, "test", enc, 1, 100);
+        Assert.assertEquals(3, usage.records());
+        Assert.assertEquals(200, usage.bytes());
+
+        CompletableFuture<EncrypterDecrypter> pending = new CompletableFuture<>();
+        CompletableFuture<Thread> loaderThread = new CompletableFuture<>();
+        CompletableFuture<EncrypterDecrypter> rotated = cache.rotate(kms, "test", enc, () -> {
+            loaderThread.complete(Thread.currentThread());
+            return pending;
+        });
+        Assert.assertNotNull(rotated);
+        // a rotation at a time:
+        Assert.assertNull(cache.rotate(kms, "test", enc, () -> pending));
+        Assert.assertSame(enc, cache.get(kms, "test", this::load));
+
+        EncrypterDecrypter replacement = load();
+        pending.complete(replacement);
+        Assert.assertSame(replacement, rotated.get());
+        // the caller does not run the loader:
+        Assert.assertNotSame(Thread.currentThread(), loaderThread.get());
+        Assert.assertSame(replacement, cache.get(kms, "test", this::load));
+        Assert.assertEquals(0, cache.recordUse(kms, "test", replacement, 0, 0).records());
+        // the replaced encrypter is no longer tracked:
+        Assert.assertNull(cache.recordUse(kms, "test", enc, 1, 1));
+        Assert.assertNull(cache.rotate(kms, "test", enc, () -> pending));
+        Assert.assertEquals(2, loads.get());
+    }
+
+    private EncrypterDecrypter load() throws KmsException {
+        loads.incrementAndGet();
+        SecretKey key = kms.getKey("test");
+        return new AesGcmEncrypter(key);
+    }
+
+    private EncrypterDecrypter slowLoad() throws Exception {
+        Thread.sleep(100);
+        return load();
+    }
+}
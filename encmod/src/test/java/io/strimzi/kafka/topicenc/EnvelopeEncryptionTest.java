@@ -0,0 +1,334 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import org.apache.kafka.common.message.FetchResponseData;
+import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
+import io.strimzi.kafka.topicenc.kms.KmsDefinition;
+import io.strimzi.kafka.topicenc.kms.KmsException;
+import io.strimzi.kafka.topicenc.kms.test.TestKms;
+import io.strimzi.kafka.topicenc.policy.PolicyRepository;
+import io.strimzi.kafka.topicenc.policy.TopicPolicy;
+import io.strimzi.kafka.topicenc.ser.AesGcmV1SerDer;
+import io.strimzi.kafka.topicenc.ser.EncSerDerException;
+
+public class EnvelopeEncryptionTest {
+
+    /**
+     * The test KMS, counting the data keys it wraps and unwraps.
+     */
+    static class CountingKms implements KeyMgtSystem {
+        final TestKms kms = new TestKms(new KmsDefinition());
+        final AtomicInteger wraps = new AtomicInteger();
+        final AtomicInteger unwraps = new AtomicInteger();
+
+        @Override
+        public SecretKey getKey(String keyReference) {
+            return kms.getKey(keyReference);
+        }
+
+        @Override
+        public boolean supportsKeyWrapping() {
+            return kms.supportsKeyWrapping();
+        }
+
+        @Override
+        public byte[] wrapKey(String keyReference, SecretKey dataKey) throws KmsException {
+            wraps.incrementAndGet();
+            return kms.wrapKey(keyReference, dataKey);
+        }
+
+        @Override
+        public SecretKey unwrapKey(String keyReference, byte[] wrappedKey) throws KmsException {
+            unwraps.incrementAndGet();
+            return kms.unwrapKey(keyReference, wrappedKey);
+        }
+    }
+
+    CountingKms kms;
+
+    @Before
+    public void testsSetup() {
+        kms = new CountingKms();
+    }
+
+    private PolicyRepository policyRepo(String encMethod) {
+        TopicPolicy policy = new TopicPolicy()
+                .setEncMethod(encMethod)
+                .setKeyReference("test")
+                .setTopic(TopicPolicy.ALL_TOPICS)
+                .setKms(kms);
+        return topicName -> policy;
+    }
+
+    private static EncryptionModule module(PolicyRepository policyRepo) {
+        return new EncryptionModule(policyRepo, new EncrypterCache(10, Duration.ofMinutes(1)));
+    }
+
+    private static MemoryRecords encrypt(EncryptionModule encMod, int numRecords) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(1024 + numRecords * 64);
+        MemoryRecordsBuilder builder = MemoryRecords.builder(buf, CompressionType.NONE,
+                TimestampType.CREATE_TIME, 0L);
+        for (int i = 0; i < numRecords; i++) {
+            builder.append(1000L + i, ("k" + i).getBytes(), ("v" + i).getBytes());
+        }
+        TopicProduceData topicData = new TopicProduceData().setName("test");
+        topicData.partitionData().add(new PartitionProduceData().setRecords(builder.build()));
+        Assert.assertTrue(encMod.encrypt(topicData));
+        return (MemoryRecords) topicData.partitionData().get(0).records();
+    }
+
+    private static FetchableTopicResponse fetched(MemoryRecords... encrypted) {
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse().setTopic("test");
+        for (MemoryRecords recs : encrypted) {
+            topicRsp.partitions().add(new FetchResponseData.PartitionData()
+                    .setRecords(MemoryRecords.readableRecords(recs.buffer().duplicate())));
+        }
+        return topicRsp;
+    }
+
+    private static void assertDecrypted(EncryptionModule encMod, MemoryRecords encrypted,
+            int numRecords) throws Exception {
+        FetchableTopicResponse topicRsp = fetched(encrypted);
+        Assert.assertTrue(encMod.decrypt(topicRsp));
+        int n = 0;
+        for (Record r : ((MemoryRecords) topicRsp.partitions().get(0).records()).records()) {
+            Assert.assertEquals(ByteBuffer.wrap(("v" + r.offset()).getBytes()), r.value());
+            n++;
+        }
+        Assert.assertEquals(numRecords, n);
+    }
+
+    private static short version(MemoryRecords encrypted) {
+        return encrypted.records().iterator().next().value().getShort();
+    }
+
+    /**
+     * @return the records without the first, as the log cleaner leaves a batch.
+     */
+    private static MemoryRecords compactFirst(MemoryRecords encrypted) {
+        MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(encrypted.sizeInBytes()),
+                CompressionType.NONE, TimestampType.CREATE_TIME, 0L);
+        for (Record r : encrypted.records()) {
+            if (r.offset() > 0) {
+                builder.appendWithOffset(r.offset(), r.timestamp(), r.key(), r.value(), r.headers());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Records carry the wrapped data key, which is unwrapped once per module.
+     */
+    @Test
+    public void roundTripTest() throws Exception {
+        PolicyRepository policyRepo = policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1);
+        EncryptionModule producer = module(policyRepo);
+        MemoryRecords first = encrypt(producer, 5);
+        MemoryRecords second = encrypt(producer, 3);
+        Assert.assertEquals(1, kms.wraps.get());
+        Assert.assertEquals(AesGcmV1SerDer.VERSION_ENVELOPE, version(first));
+
+        // the producing module knows its data key:
+        assertDecrypted(producer, first, 5);
+        Assert.assertEquals(0, kms.unwraps.get());
+
+        EncryptionModule consumer = module(policyRepo);
+        // the data keys of the fetched records are unwrapped ahead of decryption:
+        consumer.loadDecrypters(Collections.singleton(fetched(first, second)))
+                .toCompletableFuture().get();
+        Assert.assertEquals(1, kms.unwraps.get());
+        assertDecrypted(consumer, first, 5);
+        assertDecrypted(consumer, second, 3);
+        Assert.assertEquals(1, kms.unwraps.get());
+        // consumers do not generate data keys:
+        Assert.assertEquals(1, kms.wraps.get());
+    }
+
+    /**
+     * The first record of a batch carries the wrapped data key, later records
+     * referring to it by digest. Once the log cleaner removes the first record,
+     * only modules which have seen the key decrypt the batch.
+     */
+    @Test
+    public void keyDigestTest() throws Exception {
+        PolicyRepository policyRepo = policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1);
+        EncryptionModule producer = module(policyRepo);
+        MemoryRecords encrypted = encrypt(producer, 5);
+        AesGcmV1SerDer serder = new AesGcmV1SerDer();
+        Iterator<Record> records = encrypted.records().iterator();
+        ByteBuffer first = records.next().value();
+        int wrappedKeyLen = serder.getWrappedKey(first).remaining();
+        Assert.assertNull(serder.getKeyDigest(first));
+        while (records.hasNext()) {
+            ByteBuffer value = records.next().value();
+            Assert.assertEquals(AesGcmV1SerDer.VERSION_ENVELOPE_REF, value.getShort(value.position()));
+            Assert.assertNull(serder.getWrappedKey(value));
+            Assert.assertEquals(first.remaining() - Short.BYTES - wrappedKeyLen + AesGcmV1SerDer.KEY_DIGEST_LEN,
+                    value.remaining());
+        }
+        EncryptionModule consumer = module(policyRepo);
+        assertDecrypted(consumer, encrypted, 5);
+        Assert.assertEquals(1, kms.unwraps.get());
+
+        MemoryRecords compacted = compactFirst(encrypt(producer, 5));
+        assertDecrypted(producer, compacted, 4);
+        // the consumer saw the data key in the first batch:
+        assertDecrypted(consumer, compacted, 4);
+        try {
+            module(policyRepo).decrypt(fetched(compacted));
+            Assert.fail("Decrypted records referring to an unknown data key");
+        } catch (EncSerDerException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Each record of a compacted topic carries the wrapped data key, so that
+     * its batches remain readable whatever records the log cleaner removes.
+     */
+    @Test
+    public void compactedTopicTest() throws Exception {
+        TopicPolicy policy = new TopicPolicy()
+                .setEncMethod(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1)
+                .setKeyReference("test")
+                .setTopic(TopicPolicy.ALL_TOPICS)
+                .setKms(kms)
+                .setCompacted(true);
+        MemoryRecords encrypted = encrypt(module(topicName -> policy), 5);
+        for (Record r : encrypted.records()) {
+            Assert.assertEquals(AesGcmV1SerDer.VERSION_ENVELOPE, r.value().getShort(r.value().position()));
+        }
+        assertDecrypted(module(topicName -> policy), compactFirst(encrypted), 4);
+    }
+
+    /**
+     * Purging the KMS key drops the data keys it wrapped.
+     */
+    @Test
+    public void purgeTest() throws Exception {
+        EncryptionModule encMod = module(policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1));
+        MemoryRecords first = encrypt(encMod, 2);
+        encMod.purgeKey("test");
+        MemoryRecords second = encrypt(encMod, 2);
+        Assert.assertEquals(2, kms.wraps.get());
+        Assert.assertNotEquals(first.records().iterator().next().value(),
+                second.records().iterator().next().value());
+
+        assertDecrypted(encMod, first, 2);
+        Assert.assertEquals(1, kms.unwraps.get());
+        assertDecrypted(encMod, second, 2);
+        Assert.assertEquals(1, kms.unwraps.get());
+    }
+
+    /**
+     * Values of compressed batches are compressed before encryption, and the
+     * batch is then written uncompressed rather than compressing ciphertext.
+     */
+    @Test
+    public void compressedBatchTest() throws Exception {
+        EncryptionModule encMod = module(policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1));
+        String value = String.join("", Collections.nCopies(64, "value"));
+        MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(4096),
+                CompressionType.GZIP, TimestampType.CREATE_TIME, 0L);
+        for (int i = 0; i < 3; i++) {
+            builder.append(1000L + i, ("k" + i).getBytes(), (value + i).getBytes());
+        }
+        TopicProduceData topicData = new TopicProduceData().setName("test");
+        topicData.partitionData().add(new PartitionProduceData().setRecords(builder.build()));
+        Assert.assertTrue(encMod.encrypt(topicData));
+        MemoryRecords encrypted = (MemoryRecords) topicData.partitionData().get(0).records();
+        Assert.assertEquals(CompressionType.NONE,
+                encrypted.batches().iterator().next().compressionType());
+
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse().setTopic("test");
+        topicRsp.partitions().add(new FetchResponseData.PartitionData()
+                .setRecords(MemoryRecords.readableRecords(encrypted.buffer().duplicate())));
+        Assert.assertTrue(encMod.decrypt(topicRsp));
+        for (Record r : ((MemoryRecords) topicRsp.partitions().get(0).records()).records()) {
+            Assert.assertEquals(ByteBuffer.wrap((value + r.offset()).getBytes()), r.value());
+        }
+    }
+
+    /**
+     * Where compressing values saves little, values are encrypted uncompressed
+     * and the batch keeps its codec.
+     */
+    @Test
+    public void smallValuesBatchTest() throws Exception {
+        EncryptionModule encMod = module(policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1));
+        Random random = new Random(1);
+        MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(64 * 1024),
+                CompressionType.GZIP, TimestampType.CREATE_TIME, 0L);
+        for (int i = 0; i < 200; i++) {
+            // short, barely compressible on its own:
+            StringBuilder value = new StringBuilder();
+            while (value.length() < 100) {
+                value.append(String.format("{\"id\":%d,\"name\":\"user%d\",\"status\":\"active\",\"ts\":%d}",
+                        random.nextInt(100000), random.nextInt(1000), 1700000000000L + random.nextInt(1000000)));
+            }
+            builder.append(1000L + i, ("k" + i).getBytes(), value.substring(0, 100).getBytes());
+        }
+        MemoryRecords records = builder.build();
+        TopicProduceData topicData = new TopicProduceData().setName("test");
+        topicData.partitionData().add(new PartitionProduceData()
+                .setRecords(MemoryRecords.readableRecords(records.buffer().duplicate())));
+        Assert.assertTrue(encMod.encrypt(topicData));
+        MemoryRecords encrypted = (MemoryRecords) topicData.partitionData().get(0).records();
+        Assert.assertEquals(CompressionType.GZIP,
+                encrypted.batches().iterator().next().compressionType());
+        AesGcmV1SerDer serder = new AesGcmV1SerDer();
+        for (Record r : encrypted.records()) {
+            Assert.assertEquals(CompressionType.NONE, serder.getCompression(r.value()));
+        }
+
+        FetchableTopicResponse topicRsp = fetched(encrypted);
+        Assert.assertTrue(encMod.decrypt(topicRsp));
+        Iterator<Record> expected = records.records().iterator();
+        for (Record r : ((MemoryRecords) topicRsp.partitions().get(0).records()).records()) {
+            Assert.assertEquals(expected.next().value(), r.value());
+        }
+        Assert.assertFalse(expected.hasNext());
+    }
+
+    /**
+     * Records encrypted before or after switching a topic between methods
+     * remain readable.
+     */
+    @Test
+    public void mixedMethodsTest() throws Exception {
+        MemoryRecords direct = encrypt(module(policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_V1)), 4);
+        MemoryRecords envelope = encrypt(module(policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1)), 4);
+        Assert.assertEquals(AesGcmV1SerDer.VERSION, version(direct));
+
+        EncryptionModule envelopeMod = module(policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1));
+        assertDecrypted(envelopeMod, direct, 4);
+        assertDecrypted(envelopeMod, envelope, 4);
+        EncryptionModule directMod = module(policyRepo(TopicPolicy.ENC_METHOD_AES_GCM_V1));
+        assertDecrypted(directMod, direct, 4);
+        assertDecrypted(directMod, envelope, 4);
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.crypto.SecretKey;
+
+import org.apache.kafka.common.message.FetchResponseData;
+import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.topicenc.EnvelopeEncryptionTest.CountingKms;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
+import io.strimzi.kafka.topicenc.policy.TopicPolicy;
+
+public class KeyRotationTest {
+
+    /**
+     * The test KMS, wrapping keys asynchronously when the test completes the
+     * pending wrap.
+     */
+    static class SlowKms extends CountingKms {
+        volatile CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+
+        @Override
+        public CompletionStage<byte[]> wrapKeyAsync(String keyReference, SecretKey dataKey) {
+            return pending.thenCompose(v -> super.wrapKeyAsync(keyReference, dataKey));
+        }
+    }
+
+    SlowKms kms;
+    TopicPolicy policy;
+    EncryptionModule encMod;
+
+    @Before
+    public void testsSetup() {
+        kms = new SlowKms();
+        policy = new TopicPolicy()
+                .setEncMethod(TopicPolicy.ENC_METHOD_AES_GCM_ENVELOPE_V1)
+                .setKeyReference("test")
+                .setTopic(TopicPolicy.ALL_TOPICS)
+                .setKms(kms);
+        encMod = new EncryptionModule(topicName -> policy,
+                new EncrypterCache(10, Duration.ofMinutes(1)));
+    }
+
+    private MemoryRecords encrypt(int numRecords) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(1024 + numRecords * 64);
+        MemoryRecordsBuilder builder = MemoryRecords.builder(buf, CompressionType.NONE,
+                TimestampType.CREATE_TIME, 0L);
+        for (int i = 0; i < numRecords; i++) {
+            builder.append(1000L + i, ("k" + i).getBytes(), ("v" + i).getBytes());
+        }
+        TopicProduceData topicData = new TopicProduceData().setName("test");
+        topicData.partitionData().add(new PartitionProduceData().setRecords(builder.build()));
+        Assert.assertTrue(encMod.encrypt(topicData));
+        return (MemoryRecords) topicData.partitionData().get(0).records();
+    }
+
+    private void assertDecrypted(MemoryRecords encrypted) throws Exception {
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse().setTopic("test");
+        topicRsp.partitions().add(new FetchResponseData.PartitionData()
+                .setRecords(MemoryRecords.readableRecords(encrypted.buffer().duplicate())));
+        Assert.assertTrue(encMod.decrypt(topicRsp));
+        for (Record r : ((MemoryRecords) topicRsp.partitions().get(0).records()).records()) {
+            Assert.assertEquals(ByteBuffer.wrap(("v" + r.offset()).getBytes()), r.value());
+        }
+    }
+
+    /**
+     * Waits for the topic's encrypter to be replaced, rotations completing
+     * in the background.
+     *
+     * @return the replacement
+     */
+    private EncrypterDecrypter awaitRotation(EncrypterDecrypter enc) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        EncrypterDecrypter current;
+        while ((current = encMod.getTopicEncrypter("test")) == enc) {
+            Assert.assertTrue("Key not rotated", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        return current;
+    }
+
+    /**
+     * @return the wrapped data key the records were encrypted with.
+     */
+    private static ByteBuffer dataKey(MemoryRecords encrypted) {
+        ByteBuffer value = encrypted.records().iterator().next().value();
+        value.getShort(); // version
+        byte[] wrapped = new byte[value.getShort()];
+        value.get(wrapped);
+        return ByteBuffer.wrap(wrapped);
+    }
+
+    /**
+     * Once the record budget is spent, the current key keeps encrypting until
+     * its replacement is ready.
+     */
+    @Test
+    public void recordTriggerTest() throws Exception {
+        policy.setRotateAfterRecords(5);
+        MemoryRecords first = encrypt(3);
+        Assert.assertEquals(1, kms.wraps.get());
+        EncrypterDecrypter enc = encMod.getTopicEncrypter("test");
+
+        kms.pending = new CompletableFuture<>();
+        // spends the budget, starting the rotation:
+        MemoryRecords second = encrypt(3);
+        // the new key is not ready, and is not waited for:
+        MemoryRecords third = encrypt(3);
+        Assert.assertEquals(dataKey(first), dataKey(second));
+        Assert.assertEquals(dataKey(first), dataKey(third));
+        Assert.assertEquals(1, kms.wraps.get());
+
+        kms.pending.complete(null);
+        awaitRotation(enc);
+        Assert.assertEquals(2, kms.wraps.get());
+        MemoryRecords fourth = encrypt(3);
+        Assert.assertNotEquals(dataKey(first), dataKey(fourth));
+
+        // the budget applies to the new key:
+        encrypt(1);
+        Assert.assertEquals(2, kms.wraps.get());
+
+        assertDecrypted(first);
+        assertDecrypted(third);
+        assertDecrypted(fourth);
+    }
+
+    /**
+     * Rotation triggers only apply to data keys, the KMS key being replaced
+     * by the KMS alone.
+     */
+    @Test
+    public void triggersRequireEnvelopeTest() {
+        policy.setKmsName("test").setRotateAfterRecords(5);
+        policy.validate();
+        policy.setEncMethod(TopicPolicy.ENC_METHOD_AES_GCM_V1);
+        try {
+            policy.validate();
+            Assert.fail("Rotation triggers accepted without envelope encryption");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        policy.setRotateAfterRecords(0);
+        policy.validate();
+    }
+
+    /**
+     * A KMS key keeps counting its nonces when it is reloaded, after expiry and
+     * by a recreated KMS instance, rather than starting afresh with a new
+     * encrypter. Purging the key, once replaced in its KMS, drops its count.
+     */
+    @Test
+    public void kmsKeyNoncesTest() throws Exception {
+        policy.setEncMethod(TopicPolicy.ENC_METHOD_AES_GCM_V1);
+        EncryptionModule module = new EncryptionModule(topicName -> policy,
+                new EncrypterCache(10, Duration.ofMillis(50)));
+        EncrypterDecrypter first = module.getTopicEncrypter("test");
+        Thread.sleep(100);
+        policy.setKms(new SlowKms());
+        EncrypterDecrypter reloaded = module.getTopicEncrypter("test");
+        Assert.assertNotSame(first, reloaded);
+
+        ByteBuffer iv1 = ByteBuffer.wrap(first.createIv());
+        ByteBuffer iv2 = ByteBuffer.wrap(reloaded.createIv());
+        // same fixed field, next counter:
+        Assert.assertEquals(iv1.getInt(), iv2.getInt());
+        Assert.assertEquals(iv1.getLong() + 1, iv2.getLong());
+
+        module.purgeKey("test");
+        ByteBuffer iv3 = ByteBuffer.wrap(module.getTopicEncrypter("test").createIv());
+        // a new generator, starting from a random counter:
+        Assert.assertNotEquals(iv2.getLong(Integer.BYTES) + 1, iv3.getLong(Integer.BYTES));
+    }
+
+    /**
+     * Keys are rotated by the bytes they encrypted, by age, and when a wrap
+     * fails the current key remains in use.
+     */
+    @Test
+    public void bytesAndAgeTriggerTest() throws Exception {
+        policy.setRotateAfterBytes(1);
+        EncrypterDecrypter enc = encMod.getTopicEncrypter("test");
+        MemoryRecords first = encrypt(1);
+        enc = awaitRotation(enc);
+        Assert.assertNotEquals(dataKey(first), dataKey(encrypt(1)));
+        awaitRotation(enc);
+        Assert.assertEquals(3, kms.wraps.get());
+
+        policy.setRotateAfterBytes(0).setRotateAfterMs(50);
+        MemoryRecords young = encrypt(1);
+        Assert.assertEquals(dataKey(young), dataKey(encrypt(1)));
+        Thread.sleep(100);
+
+        kms.pending = CompletableFuture.failedFuture(new IllegalStateException("unavailable"));
+        MemoryRecords old = encrypt(1);
+        Assert.assertEquals(dataKey(young), dataKey(old));
+        Assert.assertEquals(dataKey(young), dataKey(encrypt(1)));
+
+        kms.pending = CompletableFuture.completedFuture(null);
+        // rotated by an encryption once the failed rotation is over:
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dataKey(young).equals(dataKey(encrypt(1)))) {
+            Assert.assertTrue("Key not rotated", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -6,12 +6,22 @@ package io.strimzi.kafka.topicenc.enc;
 
 import static org.junit.Assert.fail;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.SecretKey;
 
+import org.apache.kafka.common.record.CompressionType;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -70,6 +80,229 @@ public class AesGcmEncTests {
         }
     }
 
+    /**
+     * Ciphertext produced with per-thread cipher reuse must be decryptable
+     * without reuse and vice versa, across repeated operations on several
+     * threads.
+     */
+    @Test
+    public void reusedCiphersTestAesGcm() throws Exception {
+        SecretKey key = kms.getKey("test");
+        AesGcmEncrypter pooled = new AesGcmEncrypter(key, true);
+        Assert.assertTrue(pooled.isReuseCiphers());
+        Assert.assertFalse(enc.isReuseCiphers());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        byte[] msg = EncUtils.createRandom(i + 1);
+                        Assert.assertArrayEquals(msg, enc.decrypt(pooled.encrypt(msg)));
+                        Assert.assertArrayEquals(msg, pooled.decrypt(enc.encrypt(msg)));
+                        Assert.assertArrayEquals(msg, pooled.decrypt(pooled.encrypt(msg)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Counter-based nonces are unique across threads, signal a rekey at the
+     * threshold and are refused beyond the invocation limit.
+     */
+    @Test
+    public void counterNonceTestAesGcm() throws Exception {
+        int threads = 4;
+        int perThread = 1000;
+        CounterNonceGenerator nonces = new CounterNonceGenerator(threads * perThread - 1, threads * perThread);
+        AesGcmEncrypter counterEnc = new AesGcmEncrypter(kms.getKey("test"), true, nonces);
+
+        Set<ByteBuffer> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        byte[] iv = nonces.nextNonce();
+                        Assert.assertEquals(CounterNonceGenerator.NONCE_SIZE, iv.length);
+                        Assert.assertTrue("Duplicate nonce", seen.add(ByteBuffer.wrap(iv)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue(counterEnc.isRekeyRequired());
+        try {
+            counterEnc.encrypt(TEST_MSG.getBytes(StandardCharsets.UTF_8));
+            fail("Expected encryption to fail once the nonce limit is reached");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+
+        // 96-bit nonces round trip through serialization
+        AesGcmEncrypter fresh = new AesGcmEncrypter(kms.getKey("test"), true, new CounterNonceGenerator());
+        Assert.assertFalse(fresh.isRekeyRequired());
+        byte[] msg = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+        AesGcmV1SerDer serder = new AesGcmV1SerDer();
+        Assert.assertArrayEquals(msg, enc.decrypt(serder.deserialize(serder.serialize(fresh.encrypt(msg)))));
+    }
+
+    /**
+     * Encrypting and serializing directly into buffers, heap or direct, must
+     * produce the same framing as the array based API.
+     */
+    @Test
+    public void byteBufferTestSerDer() throws Exception {
+        AesGcmV1SerDer serder = new AesGcmV1SerDer();
+        byte[] msg = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+
+        for (boolean direct : new boolean[] { false, true }) {
+            int len = serder.getSerializedLength(enc, msg.length);
+            ByteBuffer plaintext = direct ? ByteBuffer.allocateDirect(msg.length) : ByteBuffer.allocate(msg.length);
+            plaintext.put(msg).flip();
+            ByteBuffer serialized = direct ? ByteBuffer.allocateDirect(len) : ByteBuffer.allocate(len);
+
+            int written = serder.encryptAndSerialize(enc, plaintext, serialized);
+            Assert.assertEquals(written, serialized.position());
+            Assert.assertTrue(written <= len);
+            Assert.assertFalse(plaintext.hasRemaining());
+            serialized.flip();
+
+            // readable with the array API:
+            byte[] serializedBytes = new byte[serialized.remaining()];
+            serialized.duplicate().get(serializedBytes);
+            Assert.assertArrayEquals(msg, enc.decrypt(serder.deserialize(serializedBytes)));
+
+            // and with the buffer API:
+            ByteBuffer decrypted = direct ? ByteBuffer.allocateDirect(len) : ByteBuffer.allocate(len);
+            Assert.assertEquals(msg.length, serder.deserializeAndDecrypt(enc, serialized, decrypted));
+            decrypted.flip();
+            Assert.assertEquals(ByteBuffer.wrap(msg), decrypted);
+        }
+
+        // array API output readable with the buffer API:
+        ByteBuffer serialized = ByteBuffer.wrap(serder.serialize(enc.encrypt(msg)));
+        ByteBuffer decrypted = ByteBuffer.allocate(serialized.remaining());
+        serder.deserializeAndDecrypt(enc, serialized, decrypted);
+        Assert.assertEquals(ByteBuffer.wrap(msg), decrypted.flip());
+    }
+
+    /**
+     * Compressible values are compressed before encryption with the batch's
+     * codec, incompressible and small values are left as they are.
+     */
+    @Test
+    public void compressedTestSerDer() throws Exception {
+        AesGcmV1SerDer serder = new AesGcmV1SerDer();
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 16 * 1024) {
+            sb.append(TEST_MSG);
+        }
+        byte[] compressible = sb.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[compressible.length];
+        new Random().nextBytes(random);
+        byte[] small = TEST_MSG.getBytes(StandardCharsets.UTF_8);
+
+        for (CompressionType compression : CompressionType.values()) {
+            for (byte[] msg : new byte[][] { compressible, random, small }) {
+                int len = serder.getSerializedLength(enc, msg.length);
+                ByteBuffer serialized = ByteBuffer.allocate(len);
+                int written = serder.encryptAndSerialize(enc, ByteBuffer.wrap(msg), serialized, compression);
+                Assert.assertTrue(written <= len);
+                serialized.flip();
+
+                short version = serialized.getShort(0);
+                boolean expectCompressed = compression != CompressionType.NONE && msg == compressible;
+                Assert.assertEquals(expectCompressed ? AesGcmV1SerDer.VERSION_COMPRESSED : AesGcmV1SerDer.VERSION, version);
+                if (expectCompressed) {
+                    Assert.assertTrue(written < msg.length);
+                }
+
+                ByteBuffer decrypted = ByteBuffer.allocate(serder.getMaxPlaintextLength(serialized));
+                Assert.assertEquals(msg.length, serder.deserializeAndDecrypt(enc, serialized, decrypted));
+                Assert.assertEquals(ByteBuffer.wrap(msg), decrypted.flip());
+            }
+        }
+    }
+
+    /**
+     * The framing of compressed messages is authenticated, and their claimed
+     * uncompressed length bounded before it sizes any buffer.
+     */
+    @Test
+    public void compressedHeaderTestSerDer() throws Exception {
+        AesGcmV1SerDer serder = new AesGcmV1SerDer();
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 16 * 1024) {
+            sb.append(TEST_MSG);
+        }
+        byte[] msg = sb.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer serialized = ByteBuffer.allocate(serder.getSerializedLength(enc, msg.length));
+        serder.encryptAndSerialize(enc, ByteBuffer.wrap(msg), serialized, CompressionType.GZIP);
+        serialized.flip();
+        Assert.assertEquals(CompressionType.GZIP, serder.getCompression(serialized));
+
+        // the uncompressed length follows the version and compression type:
+        ByteBuffer tampered = ByteBuffer.allocate(serialized.remaining()).put(serialized.duplicate()).flip();
+        tampered.putInt(Short.BYTES + Byte.BYTES, msg.length - 1);
+        try {
+            serder.deserializeAndDecrypt(enc, tampered, ByteBuffer.allocate(msg.length));
+            fail("Tampered uncompressed length accepted");
+        } catch (GeneralSecurityException e) {
+            // expected, authentication fails
+        }
+
+        try {
+            new AesGcmV1SerDer(msg.length - 1).getMaxPlaintextLength(serialized);
+            fail("Uncompressed length above the maximum accepted");
+        } catch (EncSerDerException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Values longer than the maximum uncompressed length are written
+     * uncompressed, so that readers with the same maximum accept them.
+     */
+    @Test
+    public void compressedMaxLengthTestSerDer() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 16 * 1024) {
+            sb.append(TEST_MSG);
+        }
+        byte[] msg = sb.toString().getBytes(StandardCharsets.UTF_8);
+        AesGcmV1SerDer serder = new AesGcmV1SerDer(msg.length - 1);
+        ByteBuffer serialized = ByteBuffer.allocate(serder.getSerializedLength(enc, msg.length));
+        serder.encryptAndSerialize(enc, ByteBuffer.wrap(msg), serialized, CompressionType.GZIP);
+        serialized.flip();
+        Assert.assertEquals(AesGcmV1SerDer.VERSION, serialized.getShort(0));
+        Assert.assertEquals(CompressionType.NONE, serder.getCompression(serialized));
+
+        ByteBuffer decrypted = ByteBuffer.allocate(serder.getMaxPlaintextLength(serialized));
+        Assert.assertEquals(msg.length, serder.deserializeAndDecrypt(enc, serialized, decrypted));
+        Assert.assertEquals(ByteBuffer.wrap(msg), decrypted.flip());
+
+        // at the maximum, still compressed:
+        serder = new AesGcmV1SerDer(msg.length);
+        serialized = ByteBuffer.allocate(serder.getSerializedLength(enc, msg.length));
+        serder.encryptAndSerialize(enc, ByteBuffer.wrap(msg), serialized, CompressionType.GZIP);
+        Assert.assertEquals(AesGcmV1SerDer.VERSION_COMPRESSED, serialized.getShort(0));
+    }
+
     /**
      * Basic test of serialization, deserialization of encrypted data.
      */
@@ -0,0 +1,63 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.policy;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests matching topic names to exact, prefix, glob and wildcard policies.
+ */
+public class TopicPolicyMatcherTest {
+
+    private static TopicPolicy policy(String topic) {
+        return new TopicPolicy().setTopic(topic).setKeyReference(topic);
+    }
+
+    @Test
+    public void precedenceTest() {
+        TopicPolicy exact = policy("orders.eu.pii");
+        TopicPolicy shortPrefix = policy("orders.*");
+        TopicPolicy longPrefix = policy("orders.eu.*");
+        TopicPolicy glob = policy("*.pii.?");
+        TopicPolicy all = policy(TopicPolicy.ALL_TOPICS);
+        TopicPolicyMatcher matcher = new TopicPolicyMatcher(
+                List.of(all, glob, shortPrefix, longPrefix, exact));
+
+        assertSame(exact, matcher.match("orders.eu.pii"));
+        assertSame(exact, matcher.match("Orders.EU.PII"));
+        assertSame(longPrefix, matcher.match("orders.eu.payments"));
+        assertSame(shortPrefix, matcher.match("orders.us.pii"));
+        assertSame(shortPrefix, matcher.match("orders."));
+        assertSame(glob, matcher.match("users.pii.1"));
+        assertSame(all, matcher.match("users.pii.10"));
+        // cached decisions are the same:
+        assertSame(longPrefix, matcher.match("orders.eu.payments"));
+        assertSame(all, matcher.match("users.pii.10"));
+    }
+
+    @Test
+    public void noMatchTest() {
+        TopicPolicyMatcher matcher = new TopicPolicyMatcher(
+                List.of(policy("orders.*"), policy("a.b"), policy("x?z")), 2);
+        assertNull(matcher.match("order"));
+        assertNull(matcher.match("a.bc"));
+        assertNull(matcher.match("aXb"));
+        assertNull(matcher.match("x.zz"));
+        // the decision cache is bounded but lookups are unaffected:
+        assertNull(matcher.match("order"));
+        assertSame(matcher.match("xyz"), matcher.match("x-z"));
+        assertNull(TopicPolicyMatcher.empty().match("orders"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void duplicateTest() {
+        new TopicPolicyMatcher(List.of(policy("orders.*"), policy("ORDERS.*")));
+    }
+}
@@ -6,7 +6,12 @@ package io.strimzi.kafka.topicenc.kms.keyprotect;
 
 import static java.util.Objects.isNull;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import javax.crypto.SecretKey;
 
@@ -14,10 +19,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.ibm.cloud.ibm_key_protect_api.v2.IbmKeyProtectApi;
+import com.ibm.cloud.ibm_key_protect_api.v2.model.ActionOnKeyOptions;
 import com.ibm.cloud.ibm_key_protect_api.v2.model.GetKey;
 import com.ibm.cloud.ibm_key_protect_api.v2.model.GetKeyOptions;
+import com.ibm.cloud.ibm_key_protect_api.v2.model.KeyActionOneOfResponse;
 import com.ibm.cloud.ibm_key_protect_api.v2.model.KeyWithPayload;
 import com.ibm.cloud.sdk.core.http.Response;
+import com.ibm.cloud.sdk.core.http.ServiceCallback;
 import com.ibm.cloud.sdk.core.security.IamAuthenticator;
 
 import io.strimzi.kafka.topicenc.common.EncUtils;
@@ -55,13 +63,160 @@ public class KeyProtectKms implements KeyMgtSystem {
 
     @Override
     public SecretKey getKey(String keyReference) throws KmsException {
+        Response<GetKey> response = keyProtect.getKey(createKeyOptions(keyReference)).execute();
+        return processKeyResponse(response);
+    }
+
+    /**
+     * Retrieves the key with the SDK's asynchronous call, completing on its
+     * callback thread.
+     */
+    @Override
+    public CompletionStage<SecretKey> getKeyAsync(String keyReference) {
+        CompletableFuture<SecretKey> result = new CompletableFuture<>();
+        keyProtect.getKey(createKeyOptions(keyReference)).enqueue(new ServiceCallback<GetKey>() {
+            @Override
+            public void onResponse(Response<GetKey> response) {
+                try {
+                    result.complete(processKeyResponse(response));
+                } catch (KmsException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                result.completeExceptionally(new KmsException("Error requesting key.", e));
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public boolean supportsKeyWrapping() {
+        return true;
+    }
+
+    /**
+     * Wraps the data key with the root key identified by the key reference.
+     * The wrapped key is Key Protect's decoded ciphertext.
+     */
+    @Override
+    public byte[] wrapKey(String keyReference, SecretKey dataKey) throws KmsException {
+        Response<KeyActionOneOfResponse> response = keyProtect
+                .actionOnKey(createWrapOptions(keyReference, dataKey)).execute();
+        return processWrapResponse(response);
+    }
+
+    @Override
+    public CompletionStage<byte[]> wrapKeyAsync(String keyReference, SecretKey dataKey) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        keyProtect.actionOnKey(createWrapOptions(keyReference, dataKey))
+                .enqueue(new ServiceCallback<KeyActionOneOfResponse>() {
+                    @Override
+                    public void onResponse(Response<KeyActionOneOfResponse> response) {
+                        try {
+                            result.complete(processWrapResponse(response));
+                        } catch (KmsException e) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        result.completeExceptionally(new KmsException("Error wrapping key.", e));
+                    }
+                });
+        return result;
+    }
+
+    @Override
+    public SecretKey unwrapKey(String keyReference, byte[] wrappedKey) throws KmsException {
+        Response<KeyActionOneOfResponse> response = keyProtect
+                .actionOnKey(createUnwrapOptions(keyReference, wrappedKey)).execute();
+        return processUnwrapResponse(response);
+    }
+
+    @Override
+    public CompletionStage<SecretKey> unwrapKeyAsync(String keyReference, byte[] wrappedKey) {
+        CompletableFuture<SecretKey> result = new CompletableFuture<>();
+        keyProtect.actionOnKey(createUnwrapOptions(keyReference, wrappedKey))
+                .enqueue(new ServiceCallback<KeyActionOneOfResponse>() {
+                    @Override
+                    public void onResponse(Response<KeyActionOneOfResponse> response) {
+                        try {
+                            result.complete(processUnwrapResponse(response));
+                        } catch (KmsException e) {
+                            result.completeExceptionally(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        result.completeExceptionally(new KmsException("Error unwrapping key.", e));
+                    }
+                });
+        return result;
+    }
+
+    private ActionOnKeyOptions createWrapOptions(String keyReference, SecretKey dataKey) {
+        return createActionOptions(keyReference, ActionOnKeyOptions.Action.WRAP,
+                "plaintext", EncUtils.base64Encode(dataKey));
+    }
 
-        GetKeyOptions options = new GetKeyOptions.Builder()
+    private ActionOnKeyOptions createUnwrapOptions(String keyReference, byte[] wrappedKey) {
+        return createActionOptions(keyReference, ActionOnKeyOptions.Action.UNWRAP,
+                "ciphertext", Base64.getEncoder().encodeToString(wrappedKey));
+    }
+
+    private ActionOnKeyOptions createActionOptions(String keyReference, String action,
+            String field, String base64Value) {
+        // base64 values need no escaping:
+        String body = String.format("{\"%s\":\"%s\"}", field, base64Value);
+        return new ActionOnKeyOptions.Builder()
+                .id(keyReference)
+                .bluemixInstance(kmsDef.getInstanceId())
+                .action(action)
+                .keyActionOneOf(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)))
+                .build();
+    }
+
+    private static byte[] processWrapResponse(Response<KeyActionOneOfResponse> response)
+            throws KmsException {
+        String ciphertext = checkActionResponse(response, "wrapping").getCiphertext();
+        if (ciphertext == null) {
+            throw new KmsException("No wrapped key returned for key reference.");
+        }
+        return Base64.getDecoder().decode(ciphertext);
+    }
+
+    private static SecretKey processUnwrapResponse(Response<KeyActionOneOfResponse> response)
+            throws KmsException {
+        String plaintext = checkActionResponse(response, "unwrapping").getPlaintext();
+        if (plaintext == null) {
+            throw new KmsException("No unwrapped key returned for key reference.");
+        }
+        return EncUtils.base64Decode(plaintext);
+    }
+
+    private static KeyActionOneOfResponse checkActionResponse(
+            Response<KeyActionOneOfResponse> response, String action) throws KmsException {
+        if (response.getStatusCode() != 200) {
+            String errMsg = String.format("Error %s key: HTTP %d (%s)", action,
+                    response.getStatusCode(), response.getStatusMessage());
+            throw new KmsException(errMsg);
+        }
+        return response.getResult();
+    }
+
+    private GetKeyOptions createKeyOptions(String keyReference) {
+        return new GetKeyOptions.Builder()
                 .id(keyReference)
                 .bluemixInstance(kmsDef.getInstanceId())
                 .build();
+    }
 
-        Response<GetKey> response = keyProtect.getKey(options).execute();
+    private static SecretKey processKeyResponse(Response<GetKey> response) throws KmsException {
         if (response.getStatusCode() != 200) {
             String errMsg = String.format("Error obtaining key: HTTP %d (%s)",
                     response.getStatusCode(), response.getStatusMessage());
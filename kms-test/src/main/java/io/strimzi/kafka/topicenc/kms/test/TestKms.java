@@ -4,21 +4,28 @@
  */
 package io.strimzi.kafka.topicenc.kms.test;
 
+import java.security.GeneralSecurityException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 
 import io.strimzi.kafka.topicenc.common.EncUtils;
 import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
 import io.strimzi.kafka.topicenc.kms.KmsDefinition;
+import io.strimzi.kafka.topicenc.kms.KmsException;
 
 /**
  * An implementation KeyMgtSystem which serves up a pre-defined key. For test
- * only.
+ * only. Data keys are wrapped with the pre-defined key using AES key wrap
+ * (RFC 3394), as a KMS would do internally.
  */
 public class TestKms implements KeyMgtSystem {
 
     private static String TEST_KEY = "bfUup8fs92bnOHlghWXegCJleHhbnNaf31RZL0d6r/I=";
 
-    SecretKey key;
+    volatile SecretKey key;
 
     public TestKms(KmsDefinition kmsDef) {
         // for the test kms, we don't require anything from kmsDef.
@@ -32,6 +39,38 @@ public class TestKms implements KeyMgtSystem {
         return key;
     }
 
+    @Override
+    public CompletionStage<SecretKey> getKeyAsync(String keyReference) {
+        return CompletableFuture.completedFuture(getKey(keyReference));
+    }
+
+    @Override
+    public boolean supportsKeyWrapping() {
+        return true;
+    }
+
+    @Override
+    public byte[] wrapKey(String keyReference, SecretKey dataKey) throws KmsException {
+        try {
+            Cipher cipher = Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.WRAP_MODE, getKey(keyReference));
+            return cipher.wrap(dataKey);
+        } catch (GeneralSecurityException e) {
+            throw new KmsException("Error wrapping data key with key " + keyReference, e);
+        }
+    }
+
+    @Override
+    public SecretKey unwrapKey(String keyReference, byte[] wrappedKey) throws KmsException {
+        try {
+            Cipher cipher = Cipher.getInstance("AESWrap");
+            cipher.init(Cipher.UNWRAP_MODE, getKey(keyReference));
+            return (SecretKey) cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+        } catch (GeneralSecurityException e) {
+            throw new KmsException("Error unwrapping data key with key " + keyReference, e);
+        }
+    }
+
     private SecretKey createTestKey() {
         return EncUtils.base64Decode(TEST_KEY);
     }
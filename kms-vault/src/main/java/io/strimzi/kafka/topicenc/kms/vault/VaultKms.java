@@ -16,6 +16,9 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 import javax.crypto.SecretKey;
 
@@ -25,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import io.strimzi.kafka.topicenc.common.EncUtils;
 import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
@@ -32,7 +36,10 @@ import io.strimzi.kafka.topicenc.kms.KmsDefinition;
 import io.strimzi.kafka.topicenc.kms.KmsException;
 
 /**
- * Key Management System interface implemented with Vault.
+ * Key Management System interface implemented with Vault. Keys are read from
+ * the key/value engine at the configured URI. Data keys are wrapped and
+ * unwrapped by the transit engine, at the configured transit URI or by default
+ * at /v1/transit on the same server, where key references name transit keys.
  */
 public class VaultKms implements KeyMgtSystem {
 
@@ -41,9 +48,11 @@ public class VaultKms implements KeyMgtSystem {
     private static final Logger LOGGER = LoggerFactory.getLogger(VaultKms.class);
     private static final ObjectMapper OBJ_MAPPER = new ObjectMapper();
     private static final String KEY_PATH = "/data/data/%s";
+    private static final String TRANSIT_PATH = "/v1/transit";
 
     private HttpClient client;
     private KmsDefinition config;
+    private URI transitUri;
 
     public VaultKms() {
     }
@@ -65,6 +74,9 @@ public class VaultKms implements KeyMgtSystem {
             throw new IllegalArgumentException("Required argument 'token' is missing.");
         }
         this.config = config;
+        this.transitUri = isNull(config.getTransitUri())
+                ? config.getUri().resolve(TRANSIT_PATH)
+                : config.getTransitUri();
         this.client = HttpClient.newBuilder().build();
         LOGGER.debug("Vault KMS created");
     }
@@ -75,22 +87,122 @@ public class VaultKms implements KeyMgtSystem {
     @Override
     public SecretKey getKey(String keyReference) throws KmsException {
 
+        HttpRequest request = createKeyRequest(keyReference);
+        return processKeyResponse(send(request, "Error requesting key."), keyReference);
+    }
+
+    /**
+     * Return the key corresponding to the requested key reference, sending the
+     * request with the asynchronous HTTP client so that no thread waits on Vault.
+     */
+    @Override
+    public CompletionStage<SecretKey> getKeyAsync(String keyReference) {
+        HttpRequest request;
+        try {
+            request = createKeyRequest(keyReference);
+        } catch (KmsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendAsync(request, "Error requesting key.",
+                rsp -> processKeyResponse(rsp, keyReference));
+    }
+
+    @Override
+    public boolean supportsKeyWrapping() {
+        return true;
+    }
+
+    /**
+     * Wraps the data key with the transit engine's encrypt endpoint. The
+     * wrapped key is Vault's ciphertext string, which names the version of the
+     * transit key used.
+     */
+    @Override
+    public byte[] wrapKey(String keyReference, SecretKey dataKey) throws KmsException {
+        HttpRequest request = createWrapRequest(keyReference, dataKey);
+        return processWrapResponse(send(request, "Error wrapping key."), keyReference);
+    }
+
+    @Override
+    public CompletionStage<byte[]> wrapKeyAsync(String keyReference, SecretKey dataKey) {
+        HttpRequest request;
+        try {
+            request = createWrapRequest(keyReference, dataKey);
+        } catch (KmsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendAsync(request, "Error wrapping key.",
+                rsp -> processWrapResponse(rsp, keyReference));
+    }
+
+    /**
+     * Unwraps the data key with the transit engine's decrypt endpoint.
+     */
+    @Override
+    public SecretKey unwrapKey(String keyReference, byte[] wrappedKey) throws KmsException {
+        HttpRequest request = createUnwrapRequest(keyReference, wrappedKey);
+        return processUnwrapResponse(send(request, "Error unwrapping key."), keyReference);
+    }
+
+    @Override
+    public CompletionStage<SecretKey> unwrapKeyAsync(String keyReference, byte[] wrappedKey) {
+        HttpRequest request;
+        try {
+            request = createUnwrapRequest(keyReference, wrappedKey);
+        } catch (KmsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return sendAsync(request, "Error unwrapping key.",
+                rsp -> processUnwrapResponse(rsp, keyReference));
+    }
+
+    private HttpResponse<String> send(HttpRequest request, String errMsg) throws KmsException {
+        try {
+            return client.send(request, BodyHandlers.ofString());
+        } catch (IOException e) {
+            throw new KmsException(errMsg, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KmsException(errMsg, e);
+        }
+    }
+
+    /**
+     * Sends the request with the asynchronous HTTP client so that no thread
+     * waits on Vault, completing with the processed response.
+     */
+    private <T> CompletionStage<T> sendAsync(HttpRequest request, String errMsg,
+            ResponseProcessor<T> processor) {
+        return client.sendAsync(request, BodyHandlers.ofString())
+                .handle((rsp, e) -> {
+                    try {
+                        if (e != null) {
+                            throw new KmsException(errMsg, e);
+                        }
+                        return processor.process(rsp);
+                    } catch (KmsException ke) {
+                        throw new CompletionException(ke);
+                    }
+                });
+    }
+
+    @FunctionalInterface
+    private interface ResponseProcessor<T> {
+        T process(HttpResponse<String> rsp) throws KmsException;
+    }
+
+    private HttpRequest createKeyRequest(String keyReference) throws KmsException {
         URI uri = createKeyUri(config.getUri(), keyReference);
 
-        // create request
-        HttpRequest request = HttpRequest.newBuilder()
+        return HttpRequest.newBuilder()
                 .uri(uri)
                 .header(VAULT_TOKEN_HEADER, config.getCredential())
                 .GET()
                 .build();
+    }
 
-        // send request
-        HttpResponse<String> rsp;
-        try {
-            rsp = client.send(request, BodyHandlers.ofString());
-        } catch (IOException | InterruptedException e) {
-            throw new KmsException("Error requesting key.", e);
-        }
+    private SecretKey processKeyResponse(HttpResponse<String> rsp, String keyReference)
+            throws KmsException {
 
         // check HTTP status code
         if (rsp.statusCode() != 200) {
@@ -104,6 +216,73 @@ public class VaultKms implements KeyMgtSystem {
         return EncUtils.base64Decode(key);
     }
 
+    private HttpRequest createWrapRequest(String keyReference, SecretKey dataKey)
+            throws KmsException {
+        return createTransitRequest("encrypt", keyReference, "plaintext",
+                EncUtils.base64Encode(dataKey));
+    }
+
+    private HttpRequest createUnwrapRequest(String keyReference, byte[] wrappedKey)
+            throws KmsException {
+        return createTransitRequest("decrypt", keyReference, "ciphertext",
+                new String(wrappedKey, StandardCharsets.UTF_8));
+    }
+
+    private HttpRequest createTransitRequest(String operation, String keyReference,
+            String field, String value) throws KmsException {
+        URI uri = createKeyUri(URI.create(transitUri + "/" + operation), keyReference);
+        ObjectNode body = OBJ_MAPPER.createObjectNode().put(field, value);
+        String bodyStr;
+        try {
+            bodyStr = OBJ_MAPPER.writeValueAsString(body);
+        } catch (JsonProcessingException e) {
+            throw new KmsException("Error creating Vault request", e);
+        }
+        return HttpRequest.newBuilder()
+                .uri(uri)
+                .header(VAULT_TOKEN_HEADER, config.getCredential())
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(bodyStr))
+                .build();
+    }
+
+    private byte[] processWrapResponse(HttpResponse<String> rsp, String keyReference)
+            throws KmsException {
+        String ciphertext = getTransitData(rsp, "ciphertext", keyReference);
+        LOGGER.debug("Vault KMS wrapped key");
+        return ciphertext.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private SecretKey processUnwrapResponse(HttpResponse<String> rsp, String keyReference)
+            throws KmsException {
+        String plaintext = getTransitData(rsp, "plaintext", keyReference);
+        LOGGER.debug("Vault KMS unwrapped key");
+        return EncUtils.base64Decode(plaintext);
+    }
+
+    /**
+     * Returns the given field of the data of a transit engine response.
+     */
+    private String getTransitData(HttpResponse<String> rsp, String field, String keyReference)
+            throws KmsException {
+        if (rsp.statusCode() != 200) {
+            LOGGER.error("Error from Vault transit engine for key {}: HTTP {}", keyReference,
+                    rsp.statusCode());
+            throw new KmsException("Error accessing Vault instance: HTTP " + rsp.statusCode());
+        }
+        JsonNode jsonObj;
+        try {
+            jsonObj = OBJ_MAPPER.readTree(rsp.body());
+        } catch (JsonProcessingException e) {
+            throw new KmsException("Error processing KMS response", e);
+        }
+        JsonNode node = jsonObj.at("/data/" + field);
+        if (!node.isTextual()) {
+            throw new KmsException("No " + field + " returned for key " + keyReference);
+        }
+        return node.asText();
+    }
+
     public static URI createKeyUri(URI baseUri, String keyRef)
             throws KmsException {
         String uriStr;
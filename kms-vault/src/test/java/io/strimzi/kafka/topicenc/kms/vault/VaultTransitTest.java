@@ -0,0 +1,123 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.topicenc.kms.vault;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import io.strimzi.kafka.topicenc.common.EncUtils;
+import io.strimzi.kafka.topicenc.kms.KmsDefinition;
+import io.strimzi.kafka.topicenc.kms.KmsException;
+
+/**
+ * Tests wrapping data keys with Vault's transit engine, against a stub of its
+ * encrypt and decrypt endpoints which "encrypts" by prefixing.
+ */
+public class VaultTransitTest {
+
+    private static final String TOKEN = "test-token";
+    private static final String CIPHERTEXT_PREFIX = "vault:v1:";
+    private static final ObjectMapper OBJ_MAPPER = new ObjectMapper();
+
+    HttpServer server;
+    List<String> paths = new CopyOnWriteArrayList<>();
+    VaultKms vaultKms;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v1/transit/", this::handleTransit);
+        server.start();
+        URI uri = URI.create("http://localhost:" + server.getAddress().getPort() + "/v1/secret/data");
+        vaultKms = new VaultKms(new KmsDefinition()
+                .setUri(uri)
+                .setCredential(TOKEN));
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private void handleTransit(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        paths.add(path);
+        JsonNode request = OBJ_MAPPER.readTree(exchange.getRequestBody());
+        String rsp;
+        int status = 200;
+        if (!TOKEN.equals(exchange.getRequestHeaders().getFirst(VaultKms.VAULT_TOKEN_HEADER))) {
+            status = 403;
+            rsp = "{\"errors\":[\"permission denied\"]}";
+        } else if (path.startsWith("/v1/transit/encrypt/")) {
+            rsp = String.format("{\"data\":{\"ciphertext\":\"%s%s\"}}", CIPHERTEXT_PREFIX,
+                    request.get("plaintext").asText());
+        } else {
+            String ciphertext = request.get("ciphertext").asText();
+            rsp = String.format("{\"data\":{\"plaintext\":\"%s\"}}",
+                    ciphertext.substring(CIPHERTEXT_PREFIX.length()));
+        }
+        byte[] body = rsp.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Test
+    public void wrapTest() throws Exception {
+        SecretKey dataKey = EncUtils.generateAesKey(256);
+        byte[] wrapped = vaultKms.wrapKey("test", dataKey);
+        assertTrue(new String(wrapped, StandardCharsets.UTF_8).startsWith(CIPHERTEXT_PREFIX));
+        assertEquals(dataKey, vaultKms.unwrapKey("test", wrapped));
+
+        byte[] wrappedAsync = vaultKms.wrapKeyAsync("test", dataKey).toCompletableFuture().get();
+        assertEquals(dataKey, vaultKms.unwrapKeyAsync("test", wrappedAsync).toCompletableFuture().get());
+
+        assertEquals(List.of("/v1/transit/encrypt/test", "/v1/transit/decrypt/test",
+                "/v1/transit/encrypt/test", "/v1/transit/decrypt/test"), paths);
+    }
+
+    @Test
+    public void errorTest() throws Exception {
+        VaultKms unauthorized = new VaultKms(new KmsDefinition()
+                .setUri(URI.create("http://localhost:" + server.getAddress().getPort() + "/v1/secret/data"))
+                .setCredential("wrong-token"));
+        try {
+            unauthorized.wrapKey("test", EncUtils.generateAesKey(256));
+            fail("Wrapped a key without permission");
+        } catch (KmsException e) {
+            // expected
+        }
+        try {
+            unauthorized.unwrapKeyAsync("test", "vault:v1:AAAA".getBytes(StandardCharsets.UTF_8))
+                    .toCompletableFuture().get();
+            fail("Unwrapped a key without permission");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof KmsException);
+        }
+    }
+}
@@ -4,6 +4,9 @@
  */
 package io.strimzi.kafka.topicenc.kms;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 import javax.crypto.SecretKey;
 
 /**
@@ -20,4 +23,100 @@ public interface KeyMgtSystem {
      * @throws KmsException
      */
     SecretKey getKey(String keyReference) throws KmsException;
+
+    /**
+     * Retrieve the key identified by the provided key reference without blocking
+     * the calling thread. The returned stage completes exceptionally with a
+     * KmsException if the key cannot be retrieved.
+     * <p>
+     * The default implementation calls getKey() on the calling thread and should
+     * be overridden by implementations accessing remote systems.
+     * 
+     * @param keyReference an identifier in the respective KMS which identifies a key.
+     * @return a stage completed with the key
+     */
+    default CompletionStage<SecretKey> getKeyAsync(String keyReference) {
+        try {
+            return CompletableFuture.completedFuture(getKey(keyReference));
+        } catch (KmsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Whether the KMS wraps and unwraps data encryption keys itself, as
+     * envelope encryption requires. The default implementation returns false.
+     * 
+     * @return true if wrapKey() and unwrapKey() are supported
+     */
+    default boolean supportsKeyWrapping() {
+        return false;
+    }
+
+    /**
+     * Wrap (encrypt) a data encryption key with the key identified by the
+     * provided key reference, for envelope encryption. The data key is generated
+     * by the caller, and its wrapped form is stored with the data it encrypts.
+     * The key identified by the reference never leaves the KMS.
+     * <p>
+     * The default implementation throws, as not all systems wrap keys.
+     * Implementations overriding it override unwrapKey() and
+     * supportsKeyWrapping() too.
+     * 
+     * @param keyReference an identifier in the respective KMS which identifies a key.
+     * @param dataKey the data encryption key to wrap
+     * @return the wrapped key
+     * @throws KmsException
+     */
+    default byte[] wrapKey(String keyReference, SecretKey dataKey) throws KmsException {
+        throw new KmsException("Key wrapping is not supported by " + getClass().getName());
+    }
+
+    /**
+     * Unwrap (decrypt) a data encryption key wrapped by wrapKey() with the key
+     * identified by the provided key reference.
+     * 
+     * @param keyReference an identifier in the respective KMS which identifies a key.
+     * @param wrappedKey the wrapped key
+     * @return the data encryption key
+     * @throws KmsException if the key cannot be unwrapped, for example if it was
+     *                      wrapped with another key
+     */
+    default SecretKey unwrapKey(String keyReference, byte[] wrappedKey) throws KmsException {
+        throw new KmsException("Key wrapping is not supported by " + getClass().getName());
+    }
+
+    /**
+     * As wrapKey(), without blocking the calling thread. The default
+     * implementation calls wrapKey() on the calling thread and should be
+     * overridden by implementations accessing remote systems.
+     * 
+     * @param keyReference an identifier in the respective KMS which identifies a key.
+     * @param dataKey the data encryption key to wrap
+     * @return a stage completed with the wrapped key
+     */
+    default CompletionStage<byte[]> wrapKeyAsync(String keyReference, SecretKey dataKey) {
+        try {
+            return CompletableFuture.completedFuture(wrapKey(keyReference, dataKey));
+        } catch (KmsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * As unwrapKey(), without blocking the calling thread. The default
+     * implementation calls unwrapKey() on the calling thread and should be
+     * overridden by implementations accessing remote systems.
+     * 
+     * @param keyReference an identifier in the respective KMS which identifies a key.
+     * @param wrappedKey the wrapped key
+     * @return a stage completed with the data encryption key
+     */
+    default CompletionStage<SecretKey> unwrapKeyAsync(String keyReference, byte[] wrappedKey) {
+        try {
+            return CompletableFuture.completedFuture(unwrapKey(keyReference, wrappedKey));
+        } catch (KmsException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
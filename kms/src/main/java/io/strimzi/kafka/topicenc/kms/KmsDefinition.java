@@ -19,6 +19,7 @@ public class KmsDefinition {
     private String instanceId; // optional. IBM Cloud requires this
     private String credential;
     private String type;
+    private URI transitUri; // optional. Vault's transit engine, for wrapping data keys
 
     public URI getUri() {
         return uri;
@@ -65,6 +66,15 @@ public class KmsDefinition {
         return this;
     }
 
+    public URI getTransitUri() {
+        return transitUri;
+    }
+
+    public KmsDefinition setTransitUri(URI transitUri) {
+        this.transitUri = transitUri;
+        return this;
+    }
+
     public KmsDefinition validate() {
         if (Strings.isNullOrEmpty(name)) {
             throw new IllegalArgumentException("Name missing from KMS definition");
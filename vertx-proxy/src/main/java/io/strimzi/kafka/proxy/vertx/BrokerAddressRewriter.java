@@ -0,0 +1,140 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.kafka.common.message.DescribeClusterResponseData.DescribeClusterBroker;
+import org.apache.kafka.common.message.FindCoordinatorResponseData;
+import org.apache.kafka.common.message.FindCoordinatorResponseData.Coordinator;
+import org.apache.kafka.common.message.MetadataResponseData.MetadataResponseBroker;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.requests.AbstractResponse;
+import org.apache.kafka.common.requests.DescribeClusterResponse;
+import org.apache.kafka.common.requests.FindCoordinatorResponse;
+import org.apache.kafka.common.requests.MetadataResponse;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.strimzi.kafka.proxy.vertx.msg.KafkaRspMsg;
+import io.strimzi.kafka.proxy.vertx.msg.MsgUtil;
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Rewrites the broker addresses in Metadata, FindCoordinator and
+ * DescribeCluster responses to the proxy ports mapped to those brokers, so
+ * that clients following the responses connect to each broker through the
+ * proxy. Brokers without a mapping are left as they are.
+ */
+public class BrokerAddressRewriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrokerAddressRewriter.class);
+
+    private final Map<String, Integer> proxyPorts = new HashMap<>();
+    private final String advertisedHost;
+    // the unmapped brokers already warned of, each being in every metadata response:
+    private final Set<String> unmappedReported = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param config the proxy configuration, holding the broker mappings
+     */
+    public BrokerAddressRewriter(Config config) {
+        config.getBrokerMappings().forEach((broker, port) -> proxyPorts.put(key(broker), port));
+        this.advertisedHost = config.getAdvertisedHost();
+    }
+
+    /**
+     * @return true if any broker is mapped to a proxy port.
+     */
+    public boolean isEnabled() {
+        return !proxyPorts.isEmpty();
+    }
+
+    /**
+     * @param apiKey
+     * @return true if responses to requests of this type carry broker addresses.
+     */
+    public static boolean isRewritten(short apiKey) {
+        return apiKey == ApiKeys.METADATA.id
+                || apiKey == ApiKeys.FIND_COORDINATOR.id
+                || apiKey == ApiKeys.DESCRIBE_CLUSTER.id;
+    }
+
+    /**
+     * Rewrites the broker addresses of a response.
+     *
+     * @param rspMsg the response, including its length field
+     * @param reqHeader the header of the request the response answers
+     * @return the rewritten response, or rspMsg if no address was rewritten
+     */
+    public Buffer rewrite(Buffer rspMsg, RequestHeader reqHeader) {
+        KafkaRspMsg rsp = new KafkaRspMsg(rspMsg, reqHeader.apiVersion());
+        AbstractResponse parsed = AbstractResponse.parseResponse(rsp.getPayload(), reqHeader);
+        int numRewritten = 0;
+        if (parsed instanceof MetadataResponse) {
+            for (MetadataResponseBroker broker : ((MetadataResponse) parsed).data().brokers()) {
+                Integer port = proxyPort(broker.host(), broker.port());
+                if (port != null) {
+                    broker.setHost(advertisedHost).setPort(port);
+                    numRewritten++;
+                }
+            }
+        } else if (parsed instanceof FindCoordinatorResponse) {
+            FindCoordinatorResponseData data = ((FindCoordinatorResponse) parsed).data();
+            // versions 0-3 hold one coordinator, later versions a list:
+            Integer port = proxyPort(data.host(), data.port());
+            if (port != null) {
+                data.setHost(advertisedHost).setPort(port);
+                numRewritten++;
+            }
+            for (Coordinator coordinator : data.coordinators()) {
+                port = proxyPort(coordinator.host(), coordinator.port());
+                if (port != null) {
+                    coordinator.setHost(advertisedHost).setPort(port);
+                    numRewritten++;
+                }
+            }
+        } else if (parsed instanceof DescribeClusterResponse) {
+            for (DescribeClusterBroker broker : ((DescribeClusterResponse) parsed).data().brokers()) {
+                Integer port = proxyPort(broker.host(), broker.port());
+                if (port != null) {
+                    broker.setHost(advertisedHost).setPort(port);
+                    numRewritten++;
+                }
+            }
+        }
+        if (numRewritten == 0) {
+            return rspMsg;
+        }
+        return MsgUtil.toSendBuffer(parsed, reqHeader);
+    }
+
+    private Integer proxyPort(String host, int port) {
+        if (host == null || host.isEmpty() || port < 0) {
+            // e.g. a coordinator lookup which failed
+            return null;
+        }
+        String broker = key(host + ":" + port);
+        Integer proxyPort = proxyPorts.get(broker);
+        if (proxyPort == null) {
+            if (unmappedReported.add(broker)) {
+                LOGGER.warn("No proxy port mapped to broker {}:{}, clients will connect to it directly",
+                        host, port);
+            } else {
+                LOGGER.debug("No proxy port mapped to broker {}:{}", host, port);
+            }
+        }
+        return proxyPort;
+    }
+
+    private static String key(String broker) {
+        return broker.toLowerCase(Locale.ROOT);
+    }
+}
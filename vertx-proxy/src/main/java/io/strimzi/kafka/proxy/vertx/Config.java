@@ -4,6 +4,11 @@
  */
 package io.strimzi.kafka.proxy.vertx;
 
+import java.util.Collections;
+import java.util.Map;
+
+import io.strimzi.kafka.proxy.vertx.msg.MessageAccumulator;
+
 public class Config {
 
     public static final class PropertyNames {
@@ -11,15 +16,54 @@ public class Config {
         public static final String KAFKA_BROKERS = "kafka_broker";
         public static final String POLICY_REPO = "topic_policies";
         public static final String KMS_CONFIG = "kms_defs";
+        public static final String MAX_MSG_SIZE = "max_message_size";
+        public static final String VERTICLE_INSTANCES = "verticle_instances";
+        public static final String CRYPTO_WORKER_POOL_SIZE = "crypto_worker_pool_size";
+        public static final String BROKER_MAPPINGS = "broker_mappings";
+        public static final String ADVERTISED_HOST = "advertised_host";
+        public static final String UPSTREAM_CONNECTIONS_PER_BROKER = "upstream_connections_per_broker";
+        public static final String TCP_NO_DELAY = "tcp_no_delay";
+        public static final String TCP_QUICK_ACK = "tcp_quick_ack";
+        public static final String SEND_BUFFER_SIZE = "send_buffer_size";
+        public static final String RECEIVE_BUFFER_SIZE = "receive_buffer_size";
+        public static final String OPENSSL = "openssl";
+        public static final String TLS_CERT_FILE = "tls_cert_file";
+        public static final String TLS_KEY_FILE = "tls_key_file";
+        public static final String BROKER_TLS = "broker_tls";
+        public static final String BROKER_TLS_TRUST_FILE = "broker_tls_trust_file";
+        public static final String REQUEST_TIMEOUT_MS = "request_timeout_ms";
+        public static final String METRICS_LOG_INTERVAL_MS = "metrics_log_interval_ms";
+        public static final String DECRYPTED_BATCH_CACHE_BYTES = "decrypted_batch_cache_bytes";
 
         private PropertyNames() {
         }
     }
 
+    // longer than the clients' default request timeout, after which they give up:
+    public static final int DEFAULT_REQUEST_TIMEOUT_MS = 120_000;
+
     private String brokers;
     private String policyFile;
     private String kmsConfigFile;
     private int listeningPort;
+    private int maxMsgSize = MessageAccumulator.DEFAULT_MAX_MSG_SIZE;
+    private int verticleInstances = Runtime.getRuntime().availableProcessors();
+    private int cryptoWorkerPoolSize;
+    private Map<String, Integer> brokerMappings = Collections.emptyMap();
+    private String advertisedHost = "localhost";
+    private int upstreamConnectionsPerBroker;
+    private boolean tcpNoDelay = true;
+    private boolean tcpQuickAck;
+    private int sendBufferSize = -1;
+    private int receiveBufferSize = -1;
+    private boolean openSsl = true;
+    private String tlsCertFile;
+    private String tlsKeyFile;
+    private boolean brokerTls;
+    private String brokerTlsTrustFile;
+    private int requestTimeoutMs = DEFAULT_REQUEST_TIMEOUT_MS;
+    private int metricsLogIntervalMs;
+    private long decryptedBatchCacheBytes;
 
     public int getListeningPort() {
         return listeningPort;
@@ -30,6 +74,232 @@ public class Config {
         return this;
     }
 
+    /**
+     * @return the maximum size of a Kafka request or response passing through
+     *         the proxy, excluding its length field.
+     */
+    public int getMaxMsgSize() {
+        return maxMsgSize;
+    }
+
+    public Config setMaxMsgSize(int maxMsgSize) {
+        this.maxMsgSize = maxMsgSize;
+        return this;
+    }
+
+    /**
+     * @return the number of proxy verticles, each with its own event loop,
+     *         sharing the listening port.
+     */
+    public int getVerticleInstances() {
+        return verticleInstances;
+    }
+
+    public Config setVerticleInstances(int verticleInstances) {
+        this.verticleInstances = verticleInstances;
+        return this;
+    }
+
+    /**
+     * @return the number of threads encrypting and decrypting records, shared by
+     *         all verticle instances. Zero runs encryption on the event loops.
+     */
+    public int getCryptoWorkerPoolSize() {
+        return cryptoWorkerPoolSize;
+    }
+
+    public Config setCryptoWorkerPoolSize(int cryptoWorkerPoolSize) {
+        this.cryptoWorkerPoolSize = cryptoWorkerPoolSize;
+        return this;
+    }
+
+    /**
+     * @return the proxy port of each broker, keyed by the broker's
+     *         'hostname:port'. Connections to a mapped port are forwarded to
+     *         its broker, and broker addresses in responses are rewritten to
+     *         the advertised host and mapped port.
+     */
+    public Map<String, Integer> getBrokerMappings() {
+        return brokerMappings;
+    }
+
+    public Config setBrokerMappings(Map<String, Integer> brokerMappings) {
+        this.brokerMappings = brokerMappings;
+        return this;
+    }
+
+    /**
+     * @return the hostname by which clients reach the proxy.
+     */
+    public String getAdvertisedHost() {
+        return advertisedHost;
+    }
+
+    public Config setAdvertisedHost(String advertisedHost) {
+        this.advertisedHost = advertisedHost;
+        return this;
+    }
+
+    /**
+     * @return the number of broker connections, per broker and verticle
+     *         instance, shared by client connections. Zero gives each client
+     *         connection its own broker connection.
+     */
+    public int getUpstreamConnectionsPerBroker() {
+        return upstreamConnectionsPerBroker;
+    }
+
+    public Config setUpstreamConnectionsPerBroker(int upstreamConnectionsPerBroker) {
+        this.upstreamConnectionsPerBroker = upstreamConnectionsPerBroker;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public Config setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * @return whether TCP_QUICKACK is set, which requires the native epoll
+     *         transport.
+     */
+    public boolean isTcpQuickAck() {
+        return tcpQuickAck;
+    }
+
+    public Config setTcpQuickAck(boolean tcpQuickAck) {
+        this.tcpQuickAck = tcpQuickAck;
+        return this;
+    }
+
+    /**
+     * @return the socket send buffer size, or -1 for the OS default.
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public Config setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        return this;
+    }
+
+    /**
+     * @return the socket receive buffer size, or -1 for the OS default.
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public Config setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * @return whether TLS uses the OpenSSL engine, where available.
+     */
+    public boolean isOpenSsl() {
+        return openSsl;
+    }
+
+    public Config setOpenSsl(boolean openSsl) {
+        this.openSsl = openSsl;
+        return this;
+    }
+
+    /**
+     * @return the PEM certificate file of the listeners, or null if clients
+     *         connect without TLS.
+     */
+    public String getTlsCertFile() {
+        return tlsCertFile;
+    }
+
+    public Config setTlsCertFile(String tlsCertFile) {
+        this.tlsCertFile = tlsCertFile;
+        return this;
+    }
+
+    /**
+     * @return the PEM private key file of the listeners.
+     */
+    public String getTlsKeyFile() {
+        return tlsKeyFile;
+    }
+
+    public Config setTlsKeyFile(String tlsKeyFile) {
+        this.tlsKeyFile = tlsKeyFile;
+        return this;
+    }
+
+    /**
+     * @return whether broker connections use TLS.
+     */
+    public boolean isBrokerTls() {
+        return brokerTls;
+    }
+
+    public Config setBrokerTls(boolean brokerTls) {
+        this.brokerTls = brokerTls;
+        return this;
+    }
+
+    /**
+     * @return the PEM file of certificates trusted for broker connections, or
+     *         null for the JVM's default trust store.
+     */
+    public String getBrokerTlsTrustFile() {
+        return brokerTlsTrustFile;
+    }
+
+    public Config setBrokerTlsTrustFile(String brokerTlsTrustFile) {
+        this.brokerTlsTrustFile = brokerTlsTrustFile;
+        return this;
+    }
+
+    /**
+     * @return the time after which a request's response is no longer awaited.
+     */
+    public int getRequestTimeoutMs() {
+        return requestTimeoutMs;
+    }
+
+    public Config setRequestTimeoutMs(int requestTimeoutMs) {
+        this.requestTimeoutMs = requestTimeoutMs;
+        return this;
+    }
+
+    /**
+     * @return the interval of logging request metrics, or 0 if they are not
+     *         logged.
+     */
+    public int getMetricsLogIntervalMs() {
+        return metricsLogIntervalMs;
+    }
+
+    public Config setMetricsLogIntervalMs(int metricsLogIntervalMs) {
+        this.metricsLogIntervalMs = metricsLogIntervalMs;
+        return this;
+    }
+
+    /**
+     * @return the maximum size of the decrypted batches cached for consumers
+     *         fetching the same batches, or 0 if they are not cached.
+     */
+    public long getDecryptedBatchCacheBytes() {
+        return decryptedBatchCacheBytes;
+    }
+
+    public Config setDecryptedBatchCacheBytes(long decryptedBatchCacheBytes) {
+        this.decryptedBatchCacheBytes = decryptedBatchCacheBytes;
+        return this;
+    }
+
     public String kafkaHostname() {
         return brokers;
     }
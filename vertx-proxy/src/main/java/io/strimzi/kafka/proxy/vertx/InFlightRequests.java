@@ -0,0 +1,217 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The requests of a connection awaiting responses, keyed by correlation id.
+ * Each entry holds the request's API key, the time it was sent and a value
+ * needed to process its response.
+ * <p>
+ * The table uses open addressing with linear probing over primitive arrays, so
+ * that tracking a request does not box its correlation id or allocate an
+ * entry. Requests whose response has not arrived within the timeout are
+ * evicted, at most once per timeout period when a request is added. The API
+ * counts and latencies of requests are recorded to the given metrics.
+ * <p>
+ * Instances are confined to the event loop of the connection.
+ *
+ * @param <V> the type of value held per request
+ */
+public class InFlightRequests<V> {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final long timeoutNanos;
+    private final RequestMetrics metrics;
+    private int[] corrIds;
+    private short[] apiKeys;
+    private long[] sentNanos;
+    // a null value marks an empty slot:
+    private Object[] values;
+    private int mask;
+    private int size;
+    private long lastExpiryNanos;
+
+    /**
+     * @param timeoutNanos the time after which a request is no longer awaited
+     * @param metrics the metrics to record requests to
+     */
+    public InFlightRequests(long timeoutNanos, RequestMetrics metrics) {
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutNanos);
+        }
+        this.timeoutNanos = timeoutNanos;
+        this.metrics = Objects.requireNonNull(metrics);
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        corrIds = new int[capacity];
+        apiKeys = new short[capacity];
+        sentNanos = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private int slot(int corrId) {
+        int h = corrId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Adds a request, replacing any request with the same correlation id.
+     *
+     * @param corrId the request's correlation id
+     * @param apiKey the request's API key
+     * @param value the value needed to process the response, not null
+     * @param nowNanos the current {@link System#nanoTime()}
+     */
+    public void put(int corrId, short apiKey, V value, long nowNanos) {
+        Objects.requireNonNull(value);
+        if (size == 0) {
+            // nothing to expire, and nanoTime() has no fixed origin.
+            lastExpiryNanos = nowNanos;
+        } else if (nowNanos - lastExpiryNanos >= timeoutNanos) {
+            expire(nowNanos);
+        }
+        if ((size + 1) * 2 > values.length) {
+            grow();
+        }
+        int i = slot(corrId);
+        while (values[i] != null) {
+            if (corrIds[i] == corrId) {
+                // a client reusing a correlation id, the earlier request is lost.
+                metrics.requestAbandoned(apiKeys[i]);
+                size--;
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        corrIds[i] = corrId;
+        apiKeys[i] = apiKey;
+        sentNanos[i] = nowNanos;
+        values[i] = value;
+        size++;
+        metrics.requestSent(apiKey);
+    }
+
+    /**
+     * Removes the request answered by a response, recording its latency.
+     *
+     * @param corrId the response's correlation id
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return the request's value, or null if the request is unknown or expired
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int corrId, long nowNanos) {
+        int i = slot(corrId);
+        while (values[i] != null) {
+            if (corrIds[i] == corrId) {
+                V value = (V) values[i];
+                metrics.responseReceived(apiKeys[i], nowNanos - sentNanos[i]);
+                removeAt(i);
+                return value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Evicts the requests sent more than the timeout ago.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return the number of requests evicted
+     */
+    public int expire(long nowNanos) {
+        lastExpiryNanos = nowNanos;
+        int[] expired = new int[size];
+        int numExpired = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null && nowNanos - sentNanos[i] >= timeoutNanos) {
+                expired[numExpired++] = corrIds[i];
+            }
+        }
+        for (int n = 0; n < numExpired; n++) {
+            int i = slot(expired[n]);
+            while (corrIds[i] != expired[n] || values[i] == null) {
+                i = (i + 1) & mask;
+            }
+            metrics.requestExpired(apiKeys[i]);
+            removeAt(i);
+        }
+        return numExpired;
+    }
+
+    /**
+     * @return the number of requests awaiting responses.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all requests, as when the connection closes.
+     */
+    public void clear() {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                metrics.requestAbandoned(apiKeys[i]);
+            }
+        }
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Empties a slot, moving back the entries of its probe sequence which follow
+     * it so that lookups need no tombstones.
+     */
+    private void removeAt(int hole) {
+        values[hole] = null;
+        size--;
+        int j = hole;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                return;
+            }
+            int home = slot(corrIds[j]);
+            // the entry can move back if the hole is between its home slot and j:
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                corrIds[hole] = corrIds[j];
+                apiKeys[hole] = apiKeys[j];
+                sentNanos[hole] = sentNanos[j];
+                values[hole] = values[j];
+                values[j] = null;
+                hole = j;
+            }
+        }
+    }
+
+    private void grow() {
+        int[] oldCorrIds = corrIds;
+        short[] oldApiKeys = apiKeys;
+        long[] oldSentNanos = sentNanos;
+        Object[] oldValues = values;
+        allocate(oldValues.length * 2);
+        for (int n = 0; n < oldValues.length; n++) {
+            if (oldValues[n] == null) {
+                continue;
+            }
+            int i = slot(oldCorrIds[n]);
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            corrIds[i] = oldCorrIds[n];
+            apiKeys[i] = oldApiKeys[n];
+            sentNanos[i] = oldSentNanos[n];
+            values[i] = oldValues[n];
+        }
+    }
+}
@@ -11,6 +11,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.strimzi.kafka.proxy.vertx.util.ConfigUtil;
+import io.strimzi.kafka.proxy.vertx.util.NetOptionsUtil;
+import io.strimzi.kafka.topicenc.DecryptedBatchCache;
+import io.strimzi.kafka.topicenc.EncrypterCache;
 import io.strimzi.kafka.topicenc.EncryptionModule;
 import io.strimzi.kafka.topicenc.policy.InMemoryPolicyRepository;
 import io.strimzi.kafka.topicenc.policy.JsonPolicyLoader;
@@ -21,7 +24,9 @@ import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetServer;
 import io.vertx.core.net.NetServerOptions;
 
@@ -31,9 +36,34 @@ public class KafkaProxyVerticle extends AbstractVerticle {
 
     public static final String CTX_KEY_CONFIG = "topicenc.config";
     public static final String CTX_KEY_ENCMOD = "topicenc.encmod";
+    public static final String CTX_KEY_CRYPTO_EXECUTOR = "topicenc.crypto.executor";
+    public static final String CTX_KEY_ADDRESS_REWRITER = "topicenc.address.rewriter";
+    public static final String CTX_KEY_UPSTREAM_POOL = "topicenc.upstream.pool";
+    public static final String CTX_KEY_BROKER_CLIENT = "topicenc.broker.client";
+    public static final String CTX_KEY_REQUEST_METRICS = "topicenc.request.metrics";
+
+    private static final String CRYPTO_POOL_NAME = "topicenc-crypto";
 
     private Config config;
     private EncryptionModule encMod;
+    private WorkerExecutor cryptoExecutor;
+    private UpstreamPool upstreamPool;
+    private NetClient brokerClient;
+    private final RequestMetrics requestMetrics = new RequestMetrics();
+    private long metricsTimerId = -1;
+
+    public KafkaProxyVerticle() {
+    }
+
+    /**
+     * Creates a verticle using an encryption module shared with other verticle
+     * instances.
+     *
+     * @param encMod the encryption module
+     */
+    public KafkaProxyVerticle(EncryptionModule encMod) {
+        this.encMod = encMod;
+    }
 
     @Override
     public void init(Vertx vertx, Context context) {
@@ -43,6 +73,41 @@ public class KafkaProxyVerticle extends AbstractVerticle {
         this.config = ConfigUtil.toProxyConfig(jsonConfig);
         context.put(CTX_KEY_CONFIG, config);
 
+        if (encMod == null) {
+            encMod = createEncryptionModule(config);
+        }
+        context.put(CTX_KEY_ENCMOD, encMod);
+        context.put(CTX_KEY_ADDRESS_REWRITER, new BrokerAddressRewriter(config));
+        context.put(CTX_KEY_REQUEST_METRICS, requestMetrics);
+
+        if (config.getCryptoWorkerPoolSize() > 0) {
+            // the named pool is shared by all verticle instances.
+            cryptoExecutor = vertx.createSharedWorkerExecutor(CRYPTO_POOL_NAME,
+                    config.getCryptoWorkerPoolSize());
+            context.put(CTX_KEY_CRYPTO_EXECUTOR, cryptoExecutor);
+        }
+
+        // one client, and so one TLS context, for all broker connections:
+        brokerClient = vertx.createNetClient(NetOptionsUtil.clientOptions(config));
+        context.put(CTX_KEY_BROKER_CLIENT, brokerClient);
+
+        if (config.getUpstreamConnectionsPerBroker() > 0) {
+            // broker connections shared by the client connections of this verticle:
+            upstreamPool = new UpstreamPool(brokerClient,
+                    config.getUpstreamConnectionsPerBroker(), config.getMaxMsgSize());
+            context.put(CTX_KEY_UPSTREAM_POOL, upstreamPool);
+        }
+    }
+
+    /**
+     * Creates the encryption module with the policies and KMS definitions of the
+     * configuration. The module is thread-safe, so one instance can serve all
+     * verticle instances.
+     *
+     * @param config the proxy configuration
+     * @return the encryption module
+     */
+    public static EncryptionModule createEncryptionModule(Config config) {
         try {
             List<TopicPolicy> topicPolicy = JsonPolicyLoader.loadTopicPolicies(
                     new File(config.getKmsConfigFile()),
@@ -50,22 +115,42 @@ public class KafkaProxyVerticle extends AbstractVerticle {
 
             InMemoryPolicyRepository policy = new InMemoryPolicyRepository(topicPolicy);
 
-            encMod = new EncryptionModule(policy);
+            // one cache for all consumers, as the module is shared:
+            DecryptedBatchCache batchCache = config.getDecryptedBatchCacheBytes() > 0
+                    ? new DecryptedBatchCache(config.getDecryptedBatchCacheBytes())
+                    : null;
+
+            return new EncryptionModule(policy, EncrypterCache.getShared(), batchCache);
 
         } catch (Exception e) {
             throw new RuntimeException("Error initializing Encryption Module", e);
         }
-        context.put(CTX_KEY_ENCMOD, encMod);
     }
 
     @Override
     public void start(Promise<Void> promise) {
         LOGGER.debug("starting");
 
-        NetServerOptions opts = new NetServerOptions();
-        opts.setPort(config.getListeningPort());
+        // the bootstrap port, then a port per mapped broker:
+        listen(config.getListeningPort(), new TopicEncryptingSocketHandler(context));
+        config.getBrokerMappings().forEach((broker, port) ->
+                listen(port, new TopicEncryptingSocketHandler(context, broker)));
+
+        if (config.getMetricsLogIntervalMs() > 0) {
+            metricsTimerId = vertx.setPeriodic(config.getMetricsLogIntervalMs(), id -> {
+                LOGGER.info("Request metrics:{}", requestMetrics.summary());
+                DecryptedBatchCache batchCache = encMod.getDecryptedBatchCache();
+                if (batchCache != null) {
+                    LOGGER.info("Decrypted batch cache: {}", batchCache);
+                }
+            });
+        }
+    }
+
+    private void listen(int port, TopicEncryptingSocketHandler socketHandler) {
+        NetServerOptions opts = NetOptionsUtil.serverOptions(config, port);
 
-        vertx.createNetServer(opts).connectHandler(new TopicEncryptingSocketHandler(context))
+        vertx.createNetServer(opts).connectHandler(socketHandler)
                 .listen(new Handler<AsyncResult<NetServer>>() {
                     @Override
                     public void handle(AsyncResult<NetServer> event) {
@@ -77,4 +162,20 @@ public class KafkaProxyVerticle extends AbstractVerticle {
                     }
                 });
     }
+
+    @Override
+    public void stop() {
+        if (metricsTimerId != -1) {
+            vertx.cancelTimer(metricsTimerId);
+        }
+        if (cryptoExecutor != null) {
+            cryptoExecutor.close();
+        }
+        if (upstreamPool != null) {
+            upstreamPool.close();
+        }
+        if (brokerClient != null) {
+            brokerClient.close();
+        }
+    }
 }
@@ -5,16 +5,32 @@
 package io.strimzi.kafka.proxy.vertx;
 
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.kafka.common.message.FetchRequestData;
+import org.apache.kafka.common.message.FetchRequestData.FetchPartition;
+import org.apache.kafka.common.message.FetchRequestData.FetchTopic;
 import org.apache.kafka.common.message.FetchResponseData;
 import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
 import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.errors.ApiException;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
 import org.apache.kafka.common.requests.AbstractResponse;
+import org.apache.kafka.common.requests.FetchMetadata;
 import org.apache.kafka.common.requests.FetchRequest;
 import org.apache.kafka.common.requests.FetchResponse;
 import org.apache.kafka.common.requests.ProduceRequest;
@@ -26,13 +42,17 @@ import io.strimzi.kafka.proxy.vertx.msg.KafkaReqMsg;
 import io.strimzi.kafka.proxy.vertx.msg.KafkaRspMsg;
 import io.strimzi.kafka.proxy.vertx.msg.MessageAccumulator;
 import io.strimzi.kafka.proxy.vertx.msg.MsgUtil;
+import io.strimzi.kafka.proxy.vertx.msg.ProduceTopicScanner;
+import io.strimzi.kafka.proxy.vertx.util.NetOptionsUtil;
 import io.strimzi.kafka.topicenc.EncryptionModule;
 import io.strimzi.kafka.topicenc.common.LogUtils;
+import io.strimzi.kafka.topicenc.common.Strings;
 import io.strimzi.kafka.topicenc.kms.KmsException;
 import io.strimzi.kafka.topicenc.ser.EncSerDerException;
 import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.WorkerExecutor;
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetSocket;
@@ -43,7 +63,7 @@ import io.vertx.core.net.NetSocket;
  * Global objects such as the Encryption Module are passed through the vertx
  * context argument to the constructor.
  */
-public class MessageHandler implements Handler<Buffer> {
+public class MessageHandler implements Handler<Buffer>, UpstreamConnection.Listener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MessageHandler.class);
 
@@ -53,9 +73,42 @@ public class MessageHandler implements Handler<Buffer> {
     private NetSocket clientSocket;
     private NetClient brokerClient;
     private Future<NetSocket> brokerSocketFuture;
-    private Map<Integer, RequestHeader> fetchHeaderCache = new HashMap<>();
-    private MessageAccumulator currBrokerRsp = new MessageAccumulator();
-    private MessageAccumulator currClientReq = new MessageAccumulator();
+    // a broker connection shared with other client connections, if pooled:
+    private UpstreamPool upstreamPool;
+    private UpstreamConnection upstream;
+    // requests awaiting responses, by correlation id:
+    private InFlightRequests<PendingRequest> inFlight;
+    // topics named by the fetch requests of the current fetch session. Responses
+    // to incremental fetches may hold topics absent from the request.
+    private final Set<String> fetchSessionTopics = new HashSet<>();
+    private MessageAccumulator currBrokerRsp;
+    private MessageAccumulator currClientReq;
+    private WorkerExecutor cryptoExecutor;
+    private BrokerAddressRewriter addressRewriter;
+    private String brokerAddress;
+    // the tails of the chains of requests and responses being processed on this
+    // connection. Messages are processed in order, so a message waiting on a key
+    // from the KMS parks only the messages behind it on this connection.
+    private Future<Void> clientReqChain = Future.succeededFuture();
+    private Future<Void> brokerRspChain = Future.succeededFuture();
+
+    // Flow control. Reading from a socket is paused while the socket written to
+    // is not keeping up, or while too many messages from it are being processed,
+    // so that memory held per connection stays bounded.
+    static final int MAX_QUEUED_MSGS = 64;
+    // requests processed before the broker connection was established:
+    private final Deque<Buffer> unsentRequests = new ArrayDeque<>();
+    // error responses to requests which failed, each forwarded after the
+    // responses to the requests before it:
+    private final Deque<DeferredResponse> deferredResponses = new ArrayDeque<>();
+    // the number of broker responses taken up for processing:
+    private long takenResponses;
+    private int queuedRequests;
+    private int queuedResponses;
+    private boolean brokerWriteBlocked;
+    private boolean clientWriteBlocked;
+    private boolean clientPaused;
+    private boolean brokerPaused;
 
     /**
      * The real constructor, as opposed to the test constructor.
@@ -64,8 +117,22 @@ public class MessageHandler implements Handler<Buffer> {
      * @param clientSocket
      */
     public MessageHandler(Context context, NetSocket clientSocket) {
+        this(context, clientSocket, null);
+    }
+
+    /**
+     * Constructor for a connection to a given broker.
+     *
+     * @param context
+     * @param clientSocket
+     * @param brokerAddress the broker as 'hostname:port', or null for the
+     *                      configured bootstrap broker
+     */
+    public MessageHandler(Context context, NetSocket clientSocket, String brokerAddress) {
         this.context = context;
         this.clientSocket = clientSocket;
+        // the socket handler pauses the client until the broker is connected.
+        this.clientPaused = true;
 
         this.config = context.get(KafkaProxyVerticle.CTX_KEY_CONFIG);
         if (Objects.isNull(config)) {
@@ -76,6 +143,21 @@ public class MessageHandler implements Handler<Buffer> {
         if (Objects.isNull(encMod)) {
             throw new NullPointerException("No encryption module");
         }
+        // null if encryption runs on the event loop:
+        this.cryptoExecutor = context.get(KafkaProxyVerticle.CTX_KEY_CRYPTO_EXECUTOR);
+        this.addressRewriter = context.get(KafkaProxyVerticle.CTX_KEY_ADDRESS_REWRITER);
+        if (Objects.isNull(addressRewriter)) {
+            addressRewriter = new BrokerAddressRewriter(config);
+        }
+        this.brokerAddress = brokerAddress != null ? brokerAddress : config.kafkaHostname();
+        // null if each client connection has its own broker connection:
+        this.upstreamPool = context.get(KafkaProxyVerticle.CTX_KEY_UPSTREAM_POOL);
+        RequestMetrics metrics = context.get(KafkaProxyVerticle.CTX_KEY_REQUEST_METRICS);
+        this.inFlight = new InFlightRequests<>(
+                TimeUnit.MILLISECONDS.toNanos(config.getRequestTimeoutMs()),
+                metrics != null ? metrics : new RequestMetrics());
+        currBrokerRsp = new MessageAccumulator(config.getMaxMsgSize());
+        currClientReq = new MessageAccumulator(config.getMaxMsgSize());
 
         connectToBroker(clientSocket);
         LOGGER.debug("MessageHandler created. isComplete: {}", brokerSocketFuture.isComplete());
@@ -94,6 +176,12 @@ public class MessageHandler implements Handler<Buffer> {
         }
         this.encMod = encMod;
         this.config = config;
+        this.addressRewriter = new BrokerAddressRewriter(config);
+        this.brokerAddress = config.kafkaHostname();
+        this.inFlight = new InFlightRequests<>(
+                TimeUnit.MILLISECONDS.toNanos(config.getRequestTimeoutMs()), new RequestMetrics());
+        currBrokerRsp = new MessageAccumulator(config.getMaxMsgSize());
+        currClientReq = new MessageAccumulator(config.getMaxMsgSize());
     }
 
     /**
@@ -103,6 +191,12 @@ public class MessageHandler implements Handler<Buffer> {
      */
     public void close() {
         LOGGER.debug("Closing MessageHandler");
+        if (upstream != null) {
+            // the connection stays open for other clients.
+            upstream.release(this);
+            upstream = null;
+            brokerSocketFuture = null;
+        }
         if (brokerSocketFuture != null) {
             NetSocket brokerSocket = brokerSocketFuture.result();
             if (brokerSocket != null) {
@@ -112,8 +206,13 @@ public class MessageHandler implements Handler<Buffer> {
         }
         clientSocket = null;
         context = null;
-        fetchHeaderCache.clear();
-        fetchHeaderCache = null;
+        unsentRequests.clear();
+        deferredResponses.clear();
+        currClientReq.clear();
+        currBrokerRsp.clear();
+        inFlight.clear();
+        inFlight = null;
+        fetchSessionTopics.clear();
     }
 
     /**
@@ -127,7 +226,14 @@ public class MessageHandler implements Handler<Buffer> {
         LOGGER.debug("Request buffer from client arrived");
         currClientReq.append(buffer);
 
-        List<Buffer> sendBuffers = currClientReq.take();
+        List<Buffer> sendBuffers;
+        try {
+            sendBuffers = currClientReq.take();
+        } catch (IllegalStateException e) {
+            LOGGER.error("Invalid request from client, closing connection", e);
+            clientSocket.close();
+            return;
+        }
         LOGGER.debug("Number of complete Kafka msgs: {}", sendBuffers.size());
         if (sendBuffers.isEmpty()) {
             return;
@@ -135,15 +241,157 @@ public class MessageHandler implements Handler<Buffer> {
 
         for (Buffer sendBuffer : sendBuffers) {
             // We have a complete kafka msg - process it, forward to broker
+            queuedRequests++;
+            clientReqChain = clientReqChain
+                    .transform(prev -> processRequestAsync(sendBuffer))
+                    .transform(processed -> {
+                        queuedRequests--;
+                        if (processed.succeeded()) {
+                            forwardToBroker(processed.result());
+                        } else {
+                            failRequest(sendBuffer, processed.cause());
+                        }
+                        updateClientFlow();
+                        return Future.succeededFuture();
+                    });
+        }
+        updateClientFlow();
+    }
+
+    /**
+     * Pauses reading from the client while the broker connection is not
+     * established, the broker is not keeping up with writes or too many requests
+     * are queued for processing. Resumes otherwise. Over a shared broker
+     * connection, which is not paused for one client, the client is also paused
+     * while it is not keeping up with writes or too many of its requests await
+     * responses, bounding the responses queued for it.
+     */
+    private void updateClientFlow() {
+        if (clientSocket == null) {
+            return;
+        }
+        boolean pause = brokerSocketFuture == null || !brokerSocketFuture.succeeded()
+                || brokerWriteBlocked || queuedRequests >= MAX_QUEUED_MSGS
+                || (upstream != null && (clientWriteBlocked || inFlight.size() >= MAX_QUEUED_MSGS));
+        if (pause != clientPaused) {
+            clientPaused = pause;
+            if (pause) {
+                clientSocket.pause();
+            } else {
+                clientSocket.resume();
+            }
+        }
+    }
+
+    /**
+     * Pauses reading from the broker while the client is not keeping up with
+     * writes or too many responses are queued for processing. Resumes otherwise.
+     */
+    private void updateBrokerFlow() {
+        if (brokerSocketFuture == null || !brokerSocketFuture.succeeded()) {
+            return;
+        }
+        if (upstream != null) {
+            // a shared connection is not paused for the sake of one client,
+            // whose requests are paused instead.
+            updateClientFlow();
+            return;
+        }
+        boolean pause = clientWriteBlocked || queuedResponses >= MAX_QUEUED_MSGS;
+        if (pause != brokerPaused) {
+            brokerPaused = pause;
+            if (pause) {
+                brokerSocketFuture.result().pause();
+            } else {
+                brokerSocketFuture.result().resume();
+            }
+        }
+    }
+
+    /**
+     * As processRequest(), but first retrieving the keys of the topics of produce
+     * requests without blocking the event loop. Completes immediately where the
+     * keys are cached.
+     *
+     * @param buffer
+     * @return a future completed with the buffer to forward to the broker
+     */
+    private Future<Buffer> processRequestAsync(Buffer buffer) {
+        if (buffer.length() < 10 || MsgUtil.getApiKey(buffer) != ApiKeys.PRODUCE.id) {
             try {
-                sendBuffer = processRequest(sendBuffer);
+                return Future.succeededFuture(processRequest(buffer));
             } catch (EncSerDerException | GeneralSecurityException | KmsException e) {
-                LOGGER.error("Encryption error processing request", e);
-                // TODO: send back Kafka error msg
-                return;
+                return Future.failedFuture(e);
+            }
+        }
+        trackProduceRequest(buffer);
+        List<String> topicNames = ProduceTopicScanner.topicNames(buffer);
+        if (topicNames != null && !hasEncryptedTopic(topicNames)) {
+            return Future.succeededFuture(buffer);
+        }
+        KafkaReqMsg kafkaMsg = parseProduceMsg(buffer);
+        if (kafkaMsg == null) {
+            return Future.succeededFuture(buffer);
+        }
+        ProduceRequest req = ProduceRequest.parse(kafkaMsg.getPayload(),
+                kafkaMsg.getHeader().apiVersion());
+        if (topicNames == null) {
+            topicNames = new ArrayList<>();
+            if (req.data() != null && req.data().topicData() != null) {
+                for (TopicProduceData topicData : req.data().topicData()) {
+                    topicNames.add(topicData.name());
+                }
             }
-            forwardToBroker(sendBuffer);
         }
+        return whenLoaded(encMod.loadEncrypters(topicNames))
+                .compose(v -> runCrypto(() -> encryptProduceRequest(buffer, kafkaMsg, req)));
+    }
+
+    /**
+     * Encryption or decryption of a parsed message.
+     */
+    @FunctionalInterface
+    private interface CryptoTask {
+        Buffer run() throws EncSerDerException, GeneralSecurityException, KmsException;
+    }
+
+    /**
+     * Runs encryption or decryption, on the crypto worker pool if one is
+     * configured so that large batches do not hold up the event loop, otherwise
+     * inline. The result is delivered on this handler's context. Tasks need not
+     * be ordered by the pool: each connection's request and response chains
+     * already run one message at a time.
+     */
+    private Future<Buffer> runCrypto(CryptoTask task) {
+        if (cryptoExecutor == null) {
+            try {
+                return Future.succeededFuture(task.run());
+            } catch (EncSerDerException | GeneralSecurityException | KmsException e) {
+                return Future.failedFuture(e);
+            }
+        }
+        return cryptoExecutor.executeBlocking(promise -> {
+            try {
+                promise.complete(task.run());
+            } catch (Exception e) {
+                promise.fail(e);
+            }
+        }, false);
+    }
+
+    /**
+     * Awaits the loading of encrypters or decrypters, completing on this
+     * handler's context.
+     */
+    private Future<Void> whenLoaded(CompletionStage<Void> load) {
+        CompletableFuture<Void> loaded = load.toCompletableFuture();
+        if (loaded.isDone() && !loaded.isCompletedExceptionally()) {
+            // cached, carry on without a trip through the event loop.
+            return Future.succeededFuture();
+        }
+        return context == null
+                ? Future.fromCompletionStage(loaded)
+                : Future.fromCompletionStage(loaded, context);
     }
 
     /**
@@ -164,9 +412,9 @@ public class MessageHandler implements Handler<Buffer> {
             return buffer;
         }
         short apikey = MsgUtil.getApiKey(buffer);
+        int corrId = MsgUtil.getReqCorrId(buffer);
 
         if (LOGGER.isDebugEnabled()) {
-            int corrId = MsgUtil.getReqCorrId(buffer);
             String apikeyName = ApiKeys.forId(apikey).name();
             LOGGER.debug("Request: apikey = {}, corrid = {}, socket = {}", apikeyName, corrId,
                     clientSocket == null ? "null" : clientSocket.remoteAddress().toString());
@@ -176,12 +424,25 @@ public class MessageHandler implements Handler<Buffer> {
             return processProduceRequest(buffer);
         } else if (apikey == ApiKeys.FETCH.id) {
             return processFetchRequest(buffer);
+        } else if (addressRewriter.isEnabled() && BrokerAddressRewriter.isRewritten(apikey)) {
+            return processAddressRequest(buffer);
         } else {
             // not interested in the msg type - pass back as-is.
+            inFlight.put(corrId, apikey, PendingRequest.FORWARDED, System.nanoTime());
             return buffer;
         }
     }
 
+    /**
+     * Tracks a produce request, unless the broker does not answer it (acks=0).
+     */
+    private void trackProduceRequest(Buffer buffer) {
+        if (ProduceTopicScanner.acks(buffer) != 0) {
+            inFlight.put(MsgUtil.getReqCorrId(buffer), ApiKeys.PRODUCE.id,
+                    PendingRequest.FORWARDED, System.nanoTime());
+        }
+    }
+
     /**
      * Process a produce request. We introspect the request and determine whether it
      * contains topic data which should be encrypted. If so, the encrypted records
@@ -196,6 +457,42 @@ public class MessageHandler implements Handler<Buffer> {
     public Buffer processProduceRequest(Buffer buffer)
             throws EncSerDerException, GeneralSecurityException, KmsException {
 
+        trackProduceRequest(buffer);
+        List<String> topicNames = ProduceTopicScanner.topicNames(buffer);
+        if (topicNames != null && !hasEncryptedTopic(topicNames)) {
+            // nothing to encrypt, forward without deserializing the records.
+            return buffer;
+        }
+        KafkaReqMsg kafkaMsg = parseProduceMsg(buffer);
+        if (kafkaMsg == null) {
+            return buffer;
+        }
+
+        // deserialize the msg to a Produce instance:
+        ProduceRequest req = ProduceRequest.parse(kafkaMsg.getPayload(),
+                kafkaMsg.getHeader().apiVersion());
+        return encryptProduceRequest(buffer, kafkaMsg, req);
+    }
+
+    /**
+     * @return true if any of the topics has an encryption policy.
+     */
+    private boolean hasEncryptedTopic(List<String> topicNames) {
+        for (String topicName : topicNames) {
+            if (encMod.isEncrypted(topicName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the header of a produce request.
+     *
+     * @param buffer
+     * @return the request message, or null if it cannot be parsed
+     */
+    private KafkaReqMsg parseProduceMsg(Buffer buffer) {
         if (LOGGER.isDebugEnabled()) {
             LogUtils.hexDump("client->proxy: PRODUCE request", buffer.getBytes());
         }
@@ -210,12 +507,16 @@ public class MessageHandler implements Handler<Buffer> {
             if (LOGGER.isDebugEnabled()) {
                 LogUtils.hexDump("Request causing error", buffer.getBytes());
             }
-            return buffer;
+            return null;
         }
+        return kafkaMsg;
+    }
 
-        // deserialize the msg to a Produce instance:
-        ProduceRequest req = ProduceRequest.parse(kafkaMsg.getPayload(),
-                kafkaMsg.getHeader().apiVersion());
+    /**
+     * Encrypts the topic data of a parsed produce request.
+     */
+    private Buffer encryptProduceRequest(Buffer buffer, KafkaReqMsg kafkaMsg, ProduceRequest req)
+            throws EncSerDerException, GeneralSecurityException, KmsException {
 
         // iterate over the request's partitions, passing them to the
         // encryption module where they are assessed for encryptopn.
@@ -234,12 +535,36 @@ public class MessageHandler implements Handler<Buffer> {
             return buffer;
         }
         // records were altered by encryption. Serialize and return the modified message
-        return MsgUtil.toSendBuffer(kafkaMsg.getHeaderBytes(), req);
+        return MsgUtil.toSendBuffer(kafkaMsg.getHeaderSlice(), req);
+    }
+
+    /**
+     * A request awaiting its response.
+     */
+    private static final class PendingRequest {
+        // for requests whose responses are forwarded as-is:
+        static final PendingRequest FORWARDED = new PendingRequest(null, false, null);
+
+        // the header of a request whose response is processed, otherwise null:
+        final RequestHeader header;
+        // for fetches, false if none of the topics the response may hold is
+        // encrypted:
+        final boolean mayBeEncrypted;
+        // for fetches, the request, giving the offsets fetched from:
+        final FetchRequestData fetch;
+
+        PendingRequest(RequestHeader header, boolean mayBeEncrypted, FetchRequestData fetch) {
+            this.header = header;
+            this.mayBeEncrypted = mayBeEncrypted;
+            this.fetch = fetch;
+        }
     }
 
     /**
-     * Process fetch requests. We cache the fetch request headers in order to
-     * identify fetch responses on the back flow.
+     * Process fetch requests. We track the fetch request headers in order to
+     * identify fetch responses on the back flow, along with whether the
+     * response can hold encrypted records. Responses which cannot are forwarded
+     * without being parsed.
      *
      * @param kafkaMsg
      * @return
@@ -248,20 +573,22 @@ public class MessageHandler implements Handler<Buffer> {
         try {
             // cache the request header which we need later for response processing
             KafkaReqMsg req = new KafkaReqMsg(buffer);
-            fetchHeaderCache.put(req.getHeader().correlationId(), req.getHeader());
+            RequestHeader header = req.getHeader();
+            FetchRequestData fetch = FetchRequest.parse(req.getPayload(), header.apiVersion())
+                    .data();
 
-            if (LOGGER.isDebugEnabled()) {
-                FetchRequest fetch = FetchRequest.parse(req.getPayload(),
-                        req.getHeader().apiVersion());
+            LOGGER.debug("FETCH epoch = {}, session = {}",
+                    Integer.toHexString(fetch.sessionEpoch()),
+                    Integer.toHexString(fetch.sessionId()));
 
-                LOGGER.debug("FETCH epoch = {}, session = {}",
-                        Integer.toHexString(fetch.metadata().epoch()),
-                        Integer.toHexString(fetch.metadata().sessionId()));
-            }
+            inFlight.put(header.correlationId(), ApiKeys.FETCH.id,
+                    new PendingRequest(header, mayBeEncrypted(fetch), fetch), System.nanoTime());
             return req.getRawMsg();
 
         } catch (Exception e) {
             LOGGER.error("Error in processFetchRequest()", e);
+            inFlight.put(MsgUtil.getReqCorrId(buffer), ApiKeys.FETCH.id,
+                    PendingRequest.FORWARDED, System.nanoTime());
             if (LOGGER.isDebugEnabled()) {
                 LogUtils.hexDump("processFetchRequest: Error parsing buffer", buffer.getBytes());
             }
@@ -269,6 +596,52 @@ public class MessageHandler implements Handler<Buffer> {
         }
     }
 
+    /**
+     * Tracks the header of a request whose response carries broker addresses,
+     * so that the addresses can be rewritten to the proxy's.
+     */
+    private Buffer processAddressRequest(Buffer buffer) {
+        PendingRequest pending = PendingRequest.FORWARDED;
+        try {
+            pending = new PendingRequest(new KafkaReqMsg(buffer).getHeader(), false, null);
+        } catch (Exception e) {
+            LOGGER.error("Error in processAddressRequest()", e);
+        }
+        inFlight.put(MsgUtil.getReqCorrId(buffer), MsgUtil.getApiKey(buffer), pending,
+                System.nanoTime());
+        return buffer;
+    }
+
+    /**
+     * Determines whether the response to a fetch request can hold records of
+     * encrypted topics. A full fetch holds only the topics it names, an
+     * incremental fetch also those of earlier requests in its session.
+     */
+    private boolean mayBeEncrypted(FetchRequestData fetch) {
+        if (fetch.sessionEpoch() <= FetchMetadata.INITIAL_EPOCH) {
+            // a full fetch, starting a new session or without one.
+            fetchSessionTopics.clear();
+        }
+        boolean topicIds = false;
+        for (FetchTopic topic : fetch.topics()) {
+            if (Strings.isNullOrEmpty(topic.topic())) {
+                // topics identified by id (version 13+), names are unknown.
+                topicIds = true;
+            } else {
+                fetchSessionTopics.add(topic.topic());
+            }
+        }
+        if (topicIds) {
+            return true;
+        }
+        for (String topicName : fetchSessionTopics) {
+            if (encMod.isEncrypted(topicName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Once a client request is processed it is forwarded to the broker.
      * 
@@ -281,37 +654,103 @@ public class MessageHandler implements Handler<Buffer> {
             return;
         }
 
+        if (brokerSocketFuture == null) {
+            LOGGER.debug("forwardToBroker(): handler closed");
+            return;
+        }
         if (!brokerSocketFuture.isComplete()) {
-            LOGGER.info("broker socket not ready. Thread = {}", Thread.currentThread().getName());
-            // broker socket not ready.
+            LOGGER.debug("broker socket not ready, queueing request. Thread = {}",
+                    Thread.currentThread().getName());
+            // sent in order once the broker is connected.
+            unsentRequests.addLast(sendBuffer);
             return;
         }
         if (brokerSocketFuture.failed()) {
             LOGGER.error("Broker connection failed {}", brokerSocketFuture.cause());
             return;
         }
+        if (upstream != null) {
+            forwardToUpstream(sendBuffer);
+            return;
+        }
         NetSocket brokerSocket = brokerSocketFuture.result();
         brokerSocket.write(sendBuffer);
+        if (!brokerWriteBlocked && brokerSocket.writeQueueFull()) {
+            brokerWriteBlocked = true;
+            brokerSocket.drainHandler(v -> {
+                brokerWriteBlocked = false;
+                updateClientFlow();
+            });
+            updateClientFlow();
+        }
         LOGGER.debug("Forwarded message to broker");
     }
 
+    /**
+     * Sends a request over the shared broker connection.
+     *
+     * @param sendBuffer
+     */
+    private void forwardToUpstream(Buffer sendBuffer) {
+        short apikey = MsgUtil.getApiKey(sendBuffer);
+        if (apikey == ApiKeys.SASL_HANDSHAKE.id || apikey == ApiKeys.SASL_AUTHENTICATE.id) {
+            LOGGER.error("SASL authentication is not supported over pooled broker connections, "
+                    + "closing client connection");
+            if (clientSocket != null) {
+                clientSocket.close();
+            }
+            return;
+        }
+        // the broker does not respond to produce requests with acks=0:
+        boolean expectsResponse = apikey != ApiKeys.PRODUCE.id
+                || ProduceTopicScanner.acks(sendBuffer) != 0;
+        if (!upstream.send(this, sendBuffer, expectsResponse) && !brokerWriteBlocked) {
+            brokerWriteBlocked = true;
+            updateClientFlow();
+        }
+        LOGGER.debug("Forwarded message to broker");
+    }
+
+    @Override
+    public void handleUpstreamResponse(Buffer rsp) {
+        processBrokerResponse(rsp);
+    }
+
+    @Override
+    public void handleUpstreamDrain() {
+        brokerWriteBlocked = false;
+        updateClientFlow();
+    }
+
+    @Override
+    public void handleUpstreamClose() {
+        LOGGER.debug("Broker connection closed");
+        upstream = null;
+        if (clientSocket != null) {
+            clientSocket.close();
+        }
+    }
+
     /**
      * This method is the handler for broker responses. We check responses as to
      * whether they match a cached Fetch request, based on correlation ID. If so,
      * pass to the encryption module to check whether decryption is needed.
      * 
      * @param brokerRsp
-     * @throws GeneralSecurityException
-     * @throws EncSerDerException
-     * @throws KmsException
      */
-    public void processBrokerResponse(Buffer brokerRsp)
-            throws EncSerDerException, GeneralSecurityException, KmsException {
+    public void processBrokerResponse(Buffer brokerRsp) {
 
         // accumulate message fragments
         currBrokerRsp.append(brokerRsp);
 
-        List<Buffer> brokerRspMsgs = currBrokerRsp.take();
+        List<Buffer> brokerRspMsgs;
+        try {
+            brokerRspMsgs = currBrokerRsp.take();
+        } catch (IllegalStateException e) {
+            LOGGER.error("Invalid response from broker, closing connection", e);
+            clientSocket.close();
+            return;
+        }
         if (brokerRspMsgs.isEmpty()) {
             return;
         }
@@ -319,35 +758,209 @@ public class MessageHandler implements Handler<Buffer> {
         // process all the messages returned by the accumulator
         for (Buffer brokerRspMsg : brokerRspMsgs) {
             int corrId = MsgUtil.getRspCorrId(brokerRspMsg);
-            if (corrId != -1) {
-                RequestHeader reqHeader = fetchHeaderCache.remove(corrId);
-                if (reqHeader == null) {
-                    LOGGER.debug("Fetch req header not in cache corrId={}", corrId);
-                    // TODO: when to drop the connection to the client?
-                } else {
-                    // The response matches a recently cached fetch request.
-                    LOGGER.debug("Broker response matches cached FETCH req header corrId={}",
-                            corrId);
-                    // call enc module for decryption:
-                    brokerRspMsg = processFetchResponse(brokerRspMsg, reqHeader);
-                }
+            queuedResponses++;
+            brokerRspChain = brokerRspChain
+                    .transform(prev -> processBrokerResponseAsync(brokerRspMsg, corrId))
+                    .transform(processed -> {
+                        queuedResponses--;
+                        if (processed.succeeded()) {
+                            forwardToClient(processed.result(), corrId);
+                            forwardDeferredResponses();
+                        } else {
+                            // the response cannot be forwarded as it is, which could
+                            // hand the client ciphertext, nor dropped, which would
+                            // leave the client waiting on it.
+                            LOGGER.error("Error processing broker response, closing client connection",
+                                    processed.cause());
+                            closeClient();
+                        }
+                        updateBrokerFlow();
+                        return Future.succeededFuture();
+                    });
+        }
+        updateBrokerFlow();
+    }
+
+    /**
+     * Decrypts the broker response if it matches a tracked fetch request, first
+     * retrieving the keys of its topics without blocking the event loop.
+     *
+     * @param brokerRspMsg
+     * @param corrId
+     * @return a future completed with the buffer to forward to the client
+     */
+    private Future<Buffer> processBrokerResponseAsync(Buffer brokerRspMsg, int corrId) {
+        if (corrId == -1 || inFlight == null) {
+            return Future.succeededFuture(brokerRspMsg);
+        }
+        PendingRequest pending = inFlight.remove(corrId, System.nanoTime());
+        if (pending == null) {
+            // it cannot be told whether the response needs decrypting or rewriting.
+            return Future.failedFuture(new IllegalStateException(
+                    "Response without an in-flight request, or after its timeout, corrId=" + corrId));
+        }
+        takenResponses++;
+        RequestHeader reqHeader = pending.header;
+        if (reqHeader == null) {
+            return Future.succeededFuture(brokerRspMsg);
+        }
+        if (reqHeader.apiKey() != ApiKeys.FETCH) {
+            try {
+                return Future.succeededFuture(addressRewriter.rewrite(brokerRspMsg, reqHeader));
+            } catch (RuntimeException e) {
+                return Future.failedFuture(e);
             }
+        }
+        if (!pending.mayBeEncrypted) {
+            // no encrypted topics, forward the response as-is.
+            return Future.succeededFuture(brokerRspMsg);
+        }
+        // The response matches a recently tracked fetch request.
+        LOGGER.debug("Broker response matches tracked FETCH req header corrId={}", corrId);
+        KafkaRspMsg rsp = new KafkaRspMsg(brokerRspMsg, reqHeader.apiVersion());
+        FetchResponse fetch = (FetchResponse) AbstractResponse.parseResponse(rsp.getPayload(),
+                reqHeader);
+        if (fetch.data() == null) {
+            return Future.succeededFuture(brokerRspMsg);
+        }
+        // call enc module for decryption, once the keys the records need are loaded:
+        return whenLoaded(encMod.loadDecrypters(fetch.data().responses()))
+                .compose(v -> runCrypto(() -> decryptFetchResponse(brokerRspMsg, fetch, reqHeader,
+                        pending.fetch)));
+    }
 
-            // Finished with broker response processing.
-            // Forward to the Kafka client.
-            Future<Void> writeFuture = clientSocket.write(brokerRspMsg);
-
-            // logging:
-            final Buffer rspBuf = brokerRspMsg;
-            writeFuture.onSuccess(h -> {
-                if (LOGGER.isDebugEnabled()) {
-                    String msg = String.format(
-                            "proxy->client: broker response corrId=%d (%02X), thread = %s, socket=%s",
-                            corrId, corrId, Thread.currentThread().getName(),
-                            clientSocket.remoteAddress().toString());
-                    LogUtils.hexDump(msg, rspBuf.getBytes());
-                }
+    /**
+     * Once a broker response is processed it is forwarded to the client.
+     *
+     * @param brokerRspMsg
+     * @param corrId
+     */
+    private void forwardToClient(Buffer brokerRspMsg, int corrId) {
+        NetSocket clientSocket = this.clientSocket;
+        if (clientSocket == null) {
+            LOGGER.debug("forwardToClient(): handler closed");
+            return;
+        }
+        // Finished with broker response processing.
+        // Forward to the Kafka client.
+        Future<Void> writeFuture = clientSocket.write(brokerRspMsg);
+        if (!clientWriteBlocked && clientSocket.writeQueueFull()) {
+            clientWriteBlocked = true;
+            clientSocket.drainHandler(v -> {
+                clientWriteBlocked = false;
+                updateBrokerFlow();
             });
+            updateBrokerFlow();
+        }
+
+        // logging:
+        writeFuture.onSuccess(h -> {
+            if (LOGGER.isDebugEnabled()) {
+                String msg = String.format(
+                        "proxy->client: broker response corrId=%d (%02X), thread = %s, socket=%s",
+                        corrId, corrId, Thread.currentThread().getName(),
+                        clientSocket.remoteAddress().toString());
+                LogUtils.hexDump(msg, brokerRspMsg.getBytes());
+            }
+        });
+    }
+
+    /**
+     * Answers a request which could not be processed. A produce request is
+     * answered with an error for each of its partitions, after the responses to
+     * the requests before it, as the client expects its responses in order. The
+     * proxy cannot answer other requests on the broker's behalf, so the client
+     * connection is closed instead.
+     *
+     * @param request the request
+     * @param cause the failure
+     */
+    private void failRequest(Buffer request, Throwable cause) {
+        if (inFlight == null) {
+            LOGGER.debug("failRequest(): handler closed");
+            return;
+        }
+        if (request.length() < 10 || MsgUtil.getApiKey(request) != ApiKeys.PRODUCE.id) {
+            LOGGER.error("Error processing request, closing client connection", cause);
+            closeClient();
+            return;
+        }
+        LOGGER.error("Error encrypting produce request, answering with an error", cause);
+        if (ProduceTopicScanner.acks(request) == 0) {
+            // the client awaits no response.
+            return;
+        }
+        int corrId = MsgUtil.getReqCorrId(request);
+        Buffer rsp;
+        try {
+            KafkaReqMsg kafkaMsg = new KafkaReqMsg(request);
+            RequestHeader header = kafkaMsg.getHeader();
+            ProduceRequest req = ProduceRequest.parse(kafkaMsg.getPayload(), header.apiVersion());
+            rsp = MsgUtil.toSendBuffer(req.getErrorResponse(produceError(cause)), header);
+        } catch (RuntimeException e) {
+            LOGGER.error("Error answering produce request, closing client connection", e);
+            closeClient();
+            return;
+        }
+        // answered by the proxy rather than the broker:
+        inFlight.remove(corrId, System.nanoTime());
+        deferredResponses.addLast(new DeferredResponse(corrId, rsp, takenResponses + inFlight.size()));
+        // after any response being processed:
+        brokerRspChain = brokerRspChain.transform(prev -> {
+            forwardDeferredResponses();
+            return Future.succeededFuture();
+        });
+    }
+
+    /**
+     * @return the error a failed produce request is answered with. The client
+     *         retries on a KMS failure, which may pass, but not on others, such
+     *         as a key at the limit of its encryptions.
+     */
+    private static ApiException produceError(Throwable cause) {
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof KmsException
+                ? Errors.REQUEST_TIMED_OUT.exception(cause.getMessage())
+                : Errors.UNKNOWN_SERVER_ERROR.exception();
+    }
+
+    /**
+     * Forwards the error responses whose turn has come, once the responses to
+     * the requests before them have been forwarded.
+     */
+    private void forwardDeferredResponses() {
+        DeferredResponse next;
+        while ((next = deferredResponses.peekFirst()) != null && next.after <= takenResponses) {
+            deferredResponses.pollFirst();
+            forwardToClient(next.rsp, next.corrId);
+        }
+    }
+
+    /**
+     * A response made by the proxy, awaiting its turn.
+     */
+    private static final class DeferredResponse {
+        final int corrId;
+        final Buffer rsp;
+        // the number of broker responses to take up before this one is sent:
+        final long after;
+
+        DeferredResponse(int corrId, Buffer rsp, long after) {
+            this.corrId = corrId;
+            this.rsp = rsp;
+            this.after = after;
+        }
+    }
+
+    /**
+     * Closes the client connection, unless the handler is closed.
+     */
+    private void closeClient() {
+        NetSocket clientSocket = this.clientSocket;
+        if (clientSocket != null) {
+            clientSocket.close();
         }
     }
 
@@ -368,7 +981,16 @@ public class MessageHandler implements Handler<Buffer> {
         KafkaRspMsg rsp = new KafkaRspMsg(buffer, reqHeader.apiVersion());
         FetchResponse fetch = (FetchResponse) AbstractResponse.parseResponse(rsp.getPayload(),
                 reqHeader);
+        return decryptFetchResponse(buffer, fetch, reqHeader, null);
+    }
 
+    /**
+     * Decrypts the topic responses of a parsed fetch response. Records below the
+     * offsets of the fetch request, if known, are dropped rather than decrypted.
+     */
+    private Buffer decryptFetchResponse(Buffer buffer, FetchResponse fetch, RequestHeader reqHeader,
+            FetchRequestData fetchReq)
+            throws EncSerDerException, GeneralSecurityException, KmsException {
         // iterate through response records, decrypting where needed
         FetchResponseData data = fetch.data();
         if (data == null) {
@@ -377,7 +999,7 @@ public class MessageHandler implements Handler<Buffer> {
         List<FetchableTopicResponse> responses = data.responses();
         int numDecryptions = 0;
         for (FetchableTopicResponse topicRsp : responses) {
-            boolean wasDecrypted = encMod.decrypt(topicRsp);
+            boolean wasDecrypted = encMod.decrypt(topicRsp, fetchOffsets(fetchReq, topicRsp.topic()));
             if (wasDecrypted) {
                 numDecryptions++;
             }
@@ -392,6 +1014,28 @@ public class MessageHandler implements Handler<Buffer> {
         }
     }
 
+    /**
+     * @return the offsets a fetch request fetched the topic's partitions from,
+     *         by partition index. Empty if unknown, in which case responses are
+     *         decrypted whole. Partitions of incremental fetches which are not in
+     *         the request are not included.
+     */
+    private static Map<Integer, Long> fetchOffsets(FetchRequestData fetchReq, String topicName) {
+        if (fetchReq == null || topicName == null) {
+            return Collections.emptyMap();
+        }
+        for (FetchTopic topic : fetchReq.topics()) {
+            if (topicName.equals(topic.topic())) {
+                Map<Integer, Long> offsets = new HashMap<>();
+                for (FetchPartition partition : topic.partitions()) {
+                    offsets.put(partition.partition(), partition.fetchOffset());
+                }
+                return offsets;
+            }
+        }
+        return Collections.emptyMap();
+    }
+
     /**
      * Given a socket from a Kafka client, open and initialize a corresponding
      * socket to the broker.
@@ -400,8 +1044,16 @@ public class MessageHandler implements Handler<Buffer> {
      */
     private void connectToBroker(NetSocket clientSocket) {
 
-        this.brokerClient = context.owner().createNetClient();
-        String broker = config.kafkaHostname();
+        if (upstreamPool != null) {
+            connectToUpstream(clientSocket);
+            return;
+        }
+        // the verticle's client, shared by its connections:
+        this.brokerClient = context.get(KafkaProxyVerticle.CTX_KEY_BROKER_CLIENT);
+        if (brokerClient == null) {
+            this.brokerClient = context.owner().createNetClient(NetOptionsUtil.clientOptions(config));
+        }
+        String broker = brokerAddress;
         String[] tokens = broker.split(":");
         if (tokens.length != 2) {
             throw new IllegalArgumentException("Broker must be specified as 'hostname:port'");
@@ -414,22 +1066,42 @@ public class MessageHandler implements Handler<Buffer> {
         this.brokerSocketFuture = brokerClient.connect(port, hostname);
         brokerSocketFuture.onSuccess(socket -> {
             LOGGER.debug("broker connected. Thread = {}", Thread.currentThread().getName());
-            clientSocket.resume();
-            socket.handler(buffer -> {
-                try {
-                    processBrokerResponse(buffer);
-                } catch (EncSerDerException | GeneralSecurityException | KmsException e) {
-                    LOGGER.error("Error decrypting broker response", e);
-                    // TODO: forward error to client
-                }
-            }).closeHandler(brokerClose -> {
+            socket.handler(this::processBrokerResponse).closeHandler(brokerClose -> {
                 LOGGER.debug("Broker connection closed");
                 clientSocket.close();
             });
+            // send, in order, requests processed while connecting:
+            while (!unsentRequests.isEmpty()) {
+                forwardToBroker(unsentRequests.pollFirst());
+            }
+            updateClientFlow();
         }).onFailure(e -> {
             LOGGER.debug("Error connecting to broker", e);
             // TODO: return error to client
+            unsentRequests.clear();
+            clientSocket.close();
         });
     }
 
+    /**
+     * Given a socket from a Kafka client, assign it a broker connection shared
+     * with other clients.
+     *
+     * @param clientSocket
+     */
+    private void connectToUpstream(NetSocket clientSocket) {
+        upstream = upstreamPool.acquire(brokerAddress, this);
+        this.brokerSocketFuture = upstream.socketFuture();
+        brokerSocketFuture.onSuccess(socket -> {
+            LOGGER.debug("broker connected. Thread = {}", Thread.currentThread().getName());
+            // send, in order, requests processed while connecting:
+            while (!unsentRequests.isEmpty()) {
+                forwardToBroker(unsentRequests.pollFirst());
+            }
+            updateClientFlow();
+        }).onFailure(e -> {
+            // the client is closed by handleUpstreamClose()
+            unsentRequests.clear();
+        });
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.protocol.ApiKeys;
+
+/**
+ * Per-API request counts and latencies of the connections of a verticle: the
+ * number of requests awaiting a response, and the time from forwarding a
+ * request to receiving its response. Requests of unknown APIs are not counted.
+ * <p>
+ * Instances are confined to the event loop of the verticle.
+ */
+public class RequestMetrics {
+
+    private static final int NUM_API_KEYS = maxApiKey() + 1;
+
+    private final int[] inFlight = new int[NUM_API_KEYS];
+    private final long[] responses = new long[NUM_API_KEYS];
+    private final long[] totalLatencyNanos = new long[NUM_API_KEYS];
+    private final long[] maxLatencyNanos = new long[NUM_API_KEYS];
+    private final long[] expired = new long[NUM_API_KEYS];
+
+    private static int maxApiKey() {
+        int max = 0;
+        for (ApiKeys apiKey : ApiKeys.values()) {
+            max = Math.max(max, apiKey.id);
+        }
+        return max;
+    }
+
+    private static boolean isKnown(short apiKey) {
+        return apiKey >= 0 && apiKey < NUM_API_KEYS;
+    }
+
+    void requestSent(short apiKey) {
+        if (isKnown(apiKey)) {
+            inFlight[apiKey]++;
+        }
+    }
+
+    void responseReceived(short apiKey, long latencyNanos) {
+        if (isKnown(apiKey)) {
+            inFlight[apiKey]--;
+            responses[apiKey]++;
+            totalLatencyNanos[apiKey] += latencyNanos;
+            maxLatencyNanos[apiKey] = Math.max(maxLatencyNanos[apiKey], latencyNanos);
+        }
+    }
+
+    void requestExpired(short apiKey) {
+        if (isKnown(apiKey)) {
+            inFlight[apiKey]--;
+            expired[apiKey]++;
+        }
+    }
+
+    /**
+     * A request is no longer awaited, its connection having closed.
+     */
+    void requestAbandoned(short apiKey) {
+        if (isKnown(apiKey)) {
+            inFlight[apiKey]--;
+        }
+    }
+
+    /**
+     * @return the number of requests awaiting a response.
+     */
+    public int inFlight(short apiKey) {
+        return isKnown(apiKey) ? inFlight[apiKey] : 0;
+    }
+
+    /**
+     * @return the number of responses received.
+     */
+    public long responses(short apiKey) {
+        return isKnown(apiKey) ? responses[apiKey] : 0;
+    }
+
+    /**
+     * @return the mean latency of the responses received, or 0 if none.
+     */
+    public long meanLatencyNanos(short apiKey) {
+        return responses(apiKey) == 0 ? 0 : totalLatencyNanos[apiKey] / responses[apiKey];
+    }
+
+    public long maxLatencyNanos(short apiKey) {
+        return isKnown(apiKey) ? maxLatencyNanos[apiKey] : 0;
+    }
+
+    /**
+     * @return the number of requests whose response did not arrive in time.
+     */
+    public long expired(short apiKey) {
+        return isKnown(apiKey) ? expired[apiKey] : 0;
+    }
+
+    /**
+     * @return a line per API which has had requests, for logging.
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (ApiKeys apiKey : ApiKeys.values()) {
+            short id = apiKey.id;
+            if (inFlight[id] == 0 && responses[id] == 0 && expired[id] == 0) {
+                continue;
+            }
+            sb.append(System.lineSeparator())
+                    .append(apiKey.name())
+                    .append(": in-flight ").append(inFlight[id])
+                    .append(", responses ").append(responses[id])
+                    .append(", mean ").append(TimeUnit.NANOSECONDS.toMicros(meanLatencyNanos(id)))
+                    .append(" us, max ").append(TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos[id]))
+                    .append(" us, expired ").append(expired[id]);
+        }
+        return sb.toString();
+    }
+}
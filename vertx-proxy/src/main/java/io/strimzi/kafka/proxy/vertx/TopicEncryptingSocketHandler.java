@@ -32,6 +32,8 @@ public class TopicEncryptingSocketHandler implements Handler<NetSocket> {
 	private static final Logger LOGGER = LoggerFactory.getLogger(TopicEncryptingSocketHandler.class);
 	
 	final Context context;
+	// the broker to which client connections are forwarded:
+	final String brokerAddress;
 	final Map<NetSocket, MessageHandler> activeHandlers = new HashMap<>(); // concurrent map?
 	
 	/**
@@ -40,7 +42,16 @@ public class TopicEncryptingSocketHandler implements Handler<NetSocket> {
 	 * @param context
 	 */
 	public TopicEncryptingSocketHandler(Context context) {
-		//super();
+		this(context, null);
+	}
+
+	/**
+	 * Constructor for a handler forwarding connections to a given broker,
+	 * rather than the configured bootstrap broker.
+	 * @param context
+	 * @param brokerAddress the broker as 'hostname:port'
+	 */
+	public TopicEncryptingSocketHandler(Context context, String brokerAddress) {
 		this.context = context;
 		
 		// validate context contents at this early stage:
@@ -52,6 +63,7 @@ public class TopicEncryptingSocketHandler implements Handler<NetSocket> {
         if (Objects.isNull(config)) {
             throw new NullPointerException("No config object"); 
         }
+        this.brokerAddress = brokerAddress != null ? brokerAddress : config.kafkaHostname();
 	}
 	
     /**
@@ -62,7 +74,7 @@ public class TopicEncryptingSocketHandler implements Handler<NetSocket> {
 		LOGGER.info("New client socket " + clientSocket.remoteAddress().toString());
 
 		// create a message handler and store in the activeHandlers map:
-	    MessageHandler msgHandler = new MessageHandler(context, clientSocket);
+	    MessageHandler msgHandler = new MessageHandler(context, clientSocket, brokerAddress);
 	    activeHandlers.put(clientSocket, msgHandler);
 
 	    // pause until the chain of handlers is set up. client is resumed
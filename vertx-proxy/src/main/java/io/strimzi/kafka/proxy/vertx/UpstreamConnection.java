@@ -0,0 +1,216 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.strimzi.kafka.proxy.vertx.msg.MessageAccumulator;
+import io.strimzi.kafka.proxy.vertx.msg.MsgUtil;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetSocket;
+
+/**
+ * A broker connection carrying the requests of several client connections.
+ * Requests are given correlation ids unique on this connection, and responses
+ * are given back the client's correlation id and passed to the client
+ * connection's listener. The broker answers the requests of a connection in
+ * order, so each client connection's responses stay in request order.
+ * <p>
+ * Instances are confined to the event loop of the verticle owning the pool.
+ */
+public class UpstreamConnection {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UpstreamConnection.class);
+
+    // offsets of the correlation id in requests and responses, after the length field:
+    private static final int REQ_CORR_ID_OFFSET = 8;
+    private static final int RSP_CORR_ID_OFFSET = 4;
+
+    /**
+     * Receives the events of an upstream connection for one client connection.
+     */
+    public interface Listener {
+
+        /**
+         * @param rsp a complete response, with the client's correlation id
+         */
+        void handleUpstreamResponse(Buffer rsp);
+
+        /**
+         * The connection's write queue, which was full, has drained.
+         */
+        void handleUpstreamDrain();
+
+        /**
+         * The connection to the broker failed or was closed.
+         */
+        void handleUpstreamClose();
+    }
+
+    private static final class Pending {
+        final Listener listener;
+        final int clientCorrId;
+
+        Pending(Listener listener, int clientCorrId) {
+            this.listener = listener;
+            this.clientCorrId = clientCorrId;
+        }
+    }
+
+    private final String brokerAddress;
+    private final Future<NetSocket> socketFuture;
+    private final MessageAccumulator responses;
+    private final Set<Listener> listeners = new LinkedHashSet<>();
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    private final Set<Listener> drainWaiters = new LinkedHashSet<>();
+    private int nextCorrId;
+    private boolean closed;
+
+    UpstreamConnection(NetClient netClient, String brokerAddress, int maxMsgSize) {
+        this.brokerAddress = brokerAddress;
+        this.responses = new MessageAccumulator(maxMsgSize);
+        String[] tokens = brokerAddress.split(":");
+        if (tokens.length != 2) {
+            throw new IllegalArgumentException("Broker must be specified as 'hostname:port'");
+        }
+        LOGGER.debug("Opening upstream connection to broker {}", brokerAddress);
+        socketFuture = netClient.connect(Integer.valueOf(tokens[1]), tokens[0]);
+        socketFuture.onSuccess(socket -> socket
+                .handler(this::handleResponses)
+                .drainHandler(v -> handleDrain())
+                .closeHandler(v -> handleClose()))
+                .onFailure(e -> {
+                    LOGGER.info("Error connecting to broker {}", brokerAddress, e);
+                    handleClose();
+                });
+    }
+
+    /**
+     * @return the future of the broker socket.
+     */
+    public Future<NetSocket> socketFuture() {
+        return socketFuture;
+    }
+
+    /**
+     * @return the number of client connections using this connection.
+     */
+    public int numListeners() {
+        return listeners.size();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Stops delivering responses to a client connection, dropping the responses
+     * of its outstanding requests.
+     */
+    public void release(Listener listener) {
+        listeners.remove(listener);
+        drainWaiters.remove(listener);
+        pending.values().removeIf(p -> p.listener == listener);
+    }
+
+    /**
+     * Sends a request. Its correlation id is replaced by one unique on this
+     * connection.
+     *
+     * @param listener the client connection sending the request
+     * @param request a complete request, with the client's correlation id
+     * @param expectsResponse false for requests the broker does not answer, i.e.
+     *                        produce requests with acks=0
+     * @return false if the connection's write queue is full, in which case the
+     *         listener is told when it drains.
+     */
+    public boolean send(Listener listener, Buffer request, boolean expectsResponse) {
+        if (closed) {
+            return true;
+        }
+        int upstreamCorrId = nextCorrId();
+        if (expectsResponse) {
+            pending.put(upstreamCorrId, new Pending(listener, MsgUtil.getReqCorrId(request)));
+        }
+        request.setInt(REQ_CORR_ID_OFFSET, upstreamCorrId);
+        NetSocket socket = socketFuture.result();
+        socket.write(request);
+        if (socket.writeQueueFull()) {
+            drainWaiters.add(listener);
+            return false;
+        }
+        return true;
+    }
+
+    private int nextCorrId() {
+        do {
+            nextCorrId = nextCorrId == Integer.MAX_VALUE ? 0 : nextCorrId + 1;
+        } while (pending.containsKey(nextCorrId));
+        return nextCorrId;
+    }
+
+    private void handleResponses(Buffer data) {
+        responses.append(data);
+        List<Buffer> rsps;
+        try {
+            rsps = responses.take();
+        } catch (IllegalStateException e) {
+            LOGGER.error("Invalid response from broker {}, closing connection", brokerAddress, e);
+            socketFuture.result().close();
+            return;
+        }
+        for (Buffer rsp : rsps) {
+            Pending p = pending.remove(MsgUtil.getRspCorrId(rsp));
+            if (p == null) {
+                // the client connection has gone.
+                LOGGER.debug("Dropping response without a client from {}", brokerAddress);
+                continue;
+            }
+            rsp.setInt(RSP_CORR_ID_OFFSET, p.clientCorrId);
+            p.listener.handleUpstreamResponse(rsp);
+        }
+    }
+
+    private void handleDrain() {
+        List<Listener> waiters = new ArrayList<>(drainWaiters);
+        drainWaiters.clear();
+        waiters.forEach(Listener::handleUpstreamDrain);
+    }
+
+    private void handleClose() {
+        if (closed) {
+            return;
+        }
+        LOGGER.debug("Upstream connection to broker {} closed", brokerAddress);
+        closed = true;
+        List<Listener> closing = new ArrayList<>(listeners);
+        listeners.clear();
+        pending.clear();
+        drainWaiters.clear();
+        responses.clear();
+        closing.forEach(Listener::handleUpstreamClose);
+    }
+
+    void close() {
+        if (socketFuture.succeeded()) {
+            socketFuture.result().close();
+        }
+        handleClose();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.net.NetClient;
+
+/**
+ * Long-lived broker connections shared by the client connections of a
+ * verticle, so that many short-lived clients do not each cost the broker a
+ * connection and a handshake. Each client connection is assigned the least
+ * used of up to a fixed number of connections to its broker and keeps it for
+ * its lifetime.
+ * <p>
+ * A broker handles one request of a connection at a time, so a request which
+ * the broker holds, such as a fetch waiting for data, delays the requests of
+ * the other clients sharing the connection. Authentication is per connection,
+ * so clients using SASL cannot share connections.
+ * <p>
+ * Instances are confined to the event loop of the verticle owning the pool.
+ */
+public class UpstreamPool {
+
+    private final NetClient netClient;
+    private final int connectionsPerBroker;
+    private final int maxMsgSize;
+    private final Map<String, List<UpstreamConnection>> connections = new HashMap<>();
+
+    /**
+     * @param netClient the client opening broker connections
+     * @param connectionsPerBroker the maximum number of connections per broker
+     * @param maxMsgSize the maximum size of a response
+     */
+    public UpstreamPool(NetClient netClient, int connectionsPerBroker, int maxMsgSize) {
+        if (connectionsPerBroker <= 0) {
+            throw new IllegalArgumentException(
+                    "Connections per broker must be positive: " + connectionsPerBroker);
+        }
+        this.netClient = netClient;
+        this.connectionsPerBroker = connectionsPerBroker;
+        this.maxMsgSize = maxMsgSize;
+    }
+
+    /**
+     * Assigns a connection to a broker to a client connection, opening one if
+     * every open connection is in use and the limit has not been reached.
+     *
+     * @param brokerAddress the broker as 'hostname:port'
+     * @param listener the client connection
+     * @return the connection, which may still be connecting
+     */
+    public UpstreamConnection acquire(String brokerAddress, UpstreamConnection.Listener listener) {
+        List<UpstreamConnection> brokerConns = connections.computeIfAbsent(brokerAddress,
+                k -> new ArrayList<>());
+        brokerConns.removeIf(UpstreamConnection::isClosed);
+        UpstreamConnection leastUsed = null;
+        for (UpstreamConnection conn : brokerConns) {
+            if (leastUsed == null || conn.numListeners() < leastUsed.numListeners()) {
+                leastUsed = conn;
+            }
+        }
+        if (leastUsed == null
+                || (leastUsed.numListeners() > 0 && brokerConns.size() < connectionsPerBroker)) {
+            leastUsed = new UpstreamConnection(netClient, brokerAddress, maxMsgSize);
+            brokerConns.add(leastUsed);
+        }
+        leastUsed.addListener(listener);
+        return leastUsed;
+    }
+
+    /**
+     * @return the number of open or opening broker connections.
+     */
+    public int size() {
+        int size = 0;
+        for (List<UpstreamConnection> brokerConns : connections.values()) {
+            brokerConns.removeIf(UpstreamConnection::isClosed);
+            size += brokerConns.size();
+        }
+        return size;
+    }
+
+    /**
+     * Closes all broker connections. The client opening them is not closed.
+     */
+    public void close() {
+        connections.values().forEach(brokerConns -> brokerConns.forEach(UpstreamConnection::close));
+        connections.clear();
+    }
+}
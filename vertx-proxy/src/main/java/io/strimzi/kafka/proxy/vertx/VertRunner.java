@@ -6,12 +6,15 @@ package io.strimzi.kafka.proxy.vertx;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import io.strimzi.kafka.proxy.vertx.util.ConfigUtil;
+import io.strimzi.kafka.topicenc.EncryptionModule;
 import io.vertx.config.ConfigRetriever;
 import io.vertx.config.ConfigRetrieverOptions;
 import io.vertx.config.ConfigStoreOptions;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
 import io.vertx.core.json.JsonObject;
 
 public class VertRunner {
@@ -25,7 +28,9 @@ public class VertRunner {
         ConfigRetrieverOptions retrOptions = new ConfigRetrieverOptions();
         retrOptions.addStore(fileStore);
 
-        Vertx vertx = Vertx.vertx();
+        // the native transport (epoll) is used if its library is on the classpath:
+        Vertx vertx = Vertx.vertx(new VertxOptions().setPreferNativeTransport(true));
+        LOGGER.info("Native transport enabled: {}", vertx.isNativeTransportEnabled());
         ConfigRetriever retriever = ConfigRetriever.create(vertx, retrOptions);
         Future<JsonObject> configFuture = retriever.getConfig();
         configFuture.onFailure(e -> {
@@ -41,16 +46,33 @@ public class VertRunner {
     }
 
     private static void deployVerticle(Vertx vertx, JsonObject configJson) {
-        KafkaProxyVerticle proxy = new KafkaProxyVerticle();
+        // one verticle instance per event loop, all listening on the same port and
+        // sharing one encryption module, and so its cache of keys:
+        EncryptionModule encMod;
+        Config config;
+        try {
+            config = ConfigUtil.toProxyConfig(configJson);
+            encMod = KafkaProxyVerticle.createEncryptionModule(config);
+        } catch (RuntimeException e) {
+            LOGGER.error("Error initializing proxy", e);
+            vertx.close().onComplete(h -> {
+                LOGGER.info("Shutdown");
+            });
+            return;
+        }
+        DeploymentOptions options = new DeploymentOptions()
+                .setConfig(configJson)
+                .setInstances(config.getVerticleInstances());
         Future<String> deployFuture =
-                vertx.deployVerticle(proxy, new DeploymentOptions().setConfig(configJson));
+                vertx.deployVerticle(() -> new KafkaProxyVerticle(encMod), options);
         deployFuture.onFailure(e -> {
             LOGGER.error("Error deploying proxy verticle", e);
             vertx.close().onComplete(h -> {
                 LOGGER.info("Shutdown");
             });
         }).onSuccess(s -> {
-            LOGGER.info("Proxy verticle deployed {}", s);
+            LOGGER.info("Proxy verticle deployed {}, instances = {}", s,
+                    options.getInstances());
         });
     }
 }
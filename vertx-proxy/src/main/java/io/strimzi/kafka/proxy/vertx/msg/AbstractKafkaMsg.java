@@ -5,8 +5,8 @@
 package io.strimzi.kafka.proxy.vertx.msg;
 
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
+import io.netty.buffer.ByteBuf;
 import io.vertx.core.buffer.Buffer;
 
 public class AbstractKafkaMsg {
@@ -36,8 +36,9 @@ public class AbstractKafkaMsg {
 	}
 
 	protected ByteBuffer extractKafkaPayload(Buffer kafkaMsg) {
-		// copy bytes after leading 4 bytes containing message len:
-		byte[] dataBytes = Arrays.copyOfRange(kafkaMsg.getBytes(), 4, kafkaMsg.getBytes().length);
-        return ByteBuffer.wrap(dataBytes);
+		// a view of the bytes after leading 4 bytes containing message len. The
+		// message may be a slice, whose bytes start at the reader index:
+		ByteBuf buf = kafkaMsg.getByteBuf();
+		return buf.nioBuffer(buf.readerIndex() + MSG_SIZE_LEN, kafkaMsg.length() - MSG_SIZE_LEN);
 	}
 }
@@ -4,22 +4,25 @@
  */
 package io.strimzi.kafka.proxy.vertx.msg;
 
-import java.util.Arrays;
-
-import org.apache.kafka.common.protocol.ApiKeys;
 import org.apache.kafka.common.requests.RequestHeader;
 
 import io.vertx.core.buffer.Buffer;
 
 public class KafkaReqMsg extends AbstractKafkaMsg {
 
-    private final static int FIXED_HEADER_LEN = 10;
-
+    private final RequestHeaderView headerView;
     private RequestHeader header;
-    private byte[] headerBytes;
 
     public KafkaReqMsg(Buffer rawMsg) {
         super(rawMsg);
+        headerView = new RequestHeaderView(rawMsg);
+    }
+
+    /**
+     * @return a view of the header fields, decoded in place.
+     */
+    public RequestHeaderView getHeaderView() {
+        return headerView;
     }
 
     public RequestHeader getHeader() {
@@ -29,30 +32,15 @@ public class KafkaReqMsg extends AbstractKafkaMsg {
         return header;
     }
 
-    private short getApiVersion() {
-		return rawMsg.getShort(6);
-	}
-
     public byte[] getHeaderBytes() {
-        if (headerBytes == null) {
-            int tagBufferSize = 0;
-            short headerVersion = ApiKeys.forId((int)getApiKey()).requestHeaderVersion(getApiVersion());
-            if (headerVersion >= 2) {
-                tagBufferSize = 1;
-            }
-            int headerSize = FIXED_HEADER_LEN + getClientIdLen() + tagBufferSize;
-            headerBytes = Arrays.copyOfRange(rawMsg.getBytes(), MSG_SIZE_LEN, MSG_SIZE_LEN + headerSize);
-        }
-        return headerBytes;
+        return getHeaderSlice().getBytes();
     }
 
-    private int getClientIdLen() {
-        RequestHeader hdr = getHeader();
-        if (hdr == null) {
-            return 0;
-        }
-        String clientId = hdr.clientId();
-        int clientIdLen = clientId != null ? clientId.length() : 0;
-        return clientIdLen;
+    /**
+     * @return the header bytes, sharing the message's storage rather than
+     *         copying them.
+     */
+    public Buffer getHeaderSlice() {
+        return headerView.headerSlice();
     }
 }
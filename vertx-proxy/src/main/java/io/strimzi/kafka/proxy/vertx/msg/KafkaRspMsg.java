@@ -4,9 +4,6 @@
  */
 package io.strimzi.kafka.proxy.vertx.msg;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
-
 import org.apache.kafka.common.requests.ResponseHeader;
 
 import io.vertx.core.buffer.Buffer;
@@ -41,21 +38,9 @@ public class KafkaRspMsg extends AbstractKafkaMsg {
 			// TODO: test, not correct
 	    	int headerSize = FIXED_HEADER_LEN; 
 	    	int destIndex = MSG_SIZE_LEN + headerSize + 1;
-			headerBytes = Arrays.copyOfRange(rawMsg.getBytes(),
-					                         MSG_SIZE_LEN,
-					                         destIndex);
+			headerBytes = rawMsg.getBytes(MSG_SIZE_LEN, destIndex);
 		}
 		return headerBytes;
 	}
 	
-	@Override
-    protected ByteBuffer extractKafkaPayload(Buffer kafkaMsg) {
-        // copy bytes after leading 4 bytes containing message len:
-	    int msgLen = kafkaMsg.length();
-	    int headerLen = MSG_SIZE_LEN; // + FIXED_HEADER_LEN;
-	    return ByteBuffer.wrap(kafkaMsg.getBytes(headerLen, msgLen));
-        //byte[] dataBytes = Arrays.copyOfRange(kafkaMsg.getBytes(), 0, kafkaMsg.getBytes().length);
-        //return ByteBuffer.wrap(dataBytes);
-    }
-	
 }
@@ -4,12 +4,16 @@
  */
 package io.strimzi.kafka.proxy.vertx.msg;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.strimzi.kafka.topicenc.common.LogUtils;
 import io.vertx.core.buffer.Buffer;
 
@@ -17,6 +21,12 @@ import io.vertx.core.buffer.Buffer;
  * Receives and appends Kafka message fragments and answers
  * whether the message is complete based on the message length
  * in the first 4 bytes of the message.
+ * <p>
+ * Received fragments are held by reference rather than copied into one growing
+ * buffer. A message contained in a single fragment is returned as a slice of
+ * it, without copying. A message spanning fragments is copied once, into a
+ * buffer of exactly its size. Fragments are dropped as soon as they are
+ * consumed, so an idle connection holds at most one partial message.
  */
 public class MessageAccumulator {
 
@@ -27,49 +37,123 @@ public class MessageAccumulator {
     // See: https://kafka.apache.org/protocol.html#protocol_common
     private static final int SIZE_LEN = 4;
 
-    private Buffer buffer;
+    /**
+     * The default maximum message size, matching the broker's default
+     * socket.request.max.bytes.
+     */
+    public static final int DEFAULT_MAX_MSG_SIZE = 100 * 1024 * 1024;
+
+    private final int maxMsgSize;
+    private final Deque<ByteBuf> fragments = new ArrayDeque<>();
+    private long readable;
 
     public MessageAccumulator() {
-        buffer = Buffer.buffer(0);
+        this(DEFAULT_MAX_MSG_SIZE);
+    }
+
+    /**
+     * @param maxMsgSize the maximum size of a message, excluding its length
+     *                   field. Larger messages cause take() to fail.
+     */
+    public MessageAccumulator(int maxMsgSize) {
+        this.maxMsgSize = maxMsgSize;
     }
 
     public void append(Buffer buffer) {
         if (LOGGER.isDebugEnabled()) {
             LogUtils.hexDump("Msg append", buffer.getBytes());
         }
-        this.buffer.appendBuffer(buffer);
+        if (buffer.length() == 0) {
+            return;
+        }
+        // a view of the received bytes, not a copy:
+        fragments.addLast(buffer.getByteBuf());
+        readable += buffer.length();
     }
 
     /**
      * @return a list containing the complete Kafka protocol messages accumulated.
      *         These are removed from the accumulator.
+     * @throws IllegalStateException if a message exceeds the maximum message
+     *                               size. The connection can not be recovered.
      */
     public List<Buffer> take() {
-        int pos = 0;
-        int remaining = buffer.length();
         ArrayList<Buffer> result = new ArrayList<>();
-        while(remaining > 0) {
-            if (remaining < SIZE_LEN) {
-                break;
+        while (readable >= SIZE_LEN) {
+            int msgLen = peekInt();
+            if (msgLen < 0 || msgLen > maxMsgSize) {
+                throw new IllegalStateException(String.format(
+                        "Kafka message size %d exceeds the maximum of %d", msgLen, maxMsgSize));
             }
-
-            int nextMsgLen = buffer.getInt(pos) + SIZE_LEN;
-            if (nextMsgLen > remaining) {
+            int nextMsgLen = msgLen + SIZE_LEN;
+            if (nextMsgLen > readable) {
                 break;
             }
+            result.add(Buffer.buffer(read(nextMsgLen)));
+        }
+        return result;
+    }
 
-            result.add(buffer.slice(pos, pos+nextMsgLen));
+    /**
+     * Drops any partial message held.
+     */
+    public void clear() {
+        fragments.clear();
+        readable = 0;
+    }
 
-            remaining -= nextMsgLen;
-            pos += nextMsgLen;
-        }
+    /**
+     * @return the number of bytes held which are not yet part of a complete message.
+     */
+    public long pendingBytes() {
+        return readable;
+    }
 
-        if (pos == buffer.length()) {
-            buffer = Buffer.buffer(0);
-        } else {
-            buffer = buffer.getBuffer(pos, buffer.length());
+    /**
+     * Reads the length field at the start of the next message, which may span
+     * fragments.
+     */
+    private int peekInt() {
+        ByteBuf first = fragments.peekFirst();
+        if (first.readableBytes() >= SIZE_LEN) {
+            return first.getInt(first.readerIndex());
+        }
+        int value = 0;
+        int needed = SIZE_LEN;
+        for (ByteBuf fragment : fragments) {
+            for (int i = fragment.readerIndex(); i < fragment.writerIndex() && needed > 0; i++, needed--) {
+                value = (value << 8) | (fragment.getByte(i) & 0xFF);
+            }
+            if (needed == 0) {
+                break;
+            }
         }
+        return value;
+    }
 
-        return result;
+    /**
+     * Removes the next len bytes, slicing the first fragment where it holds
+     * them all and otherwise copying them into a new buffer.
+     */
+    private ByteBuf read(int len) {
+        readable -= len;
+        ByteBuf first = fragments.peekFirst();
+        if (first.readableBytes() >= len) {
+            ByteBuf msg = first.readSlice(len);
+            if (!first.isReadable()) {
+                fragments.pollFirst();
+            }
+            return msg;
+        }
+        ByteBuf msg = Unpooled.buffer(len, len);
+        while (msg.isWritable()) {
+            ByteBuf fragment = fragments.peekFirst();
+            int n = Math.min(fragment.readableBytes(), msg.writableBytes());
+            msg.writeBytes(fragment, n);
+            if (!fragment.isReadable()) {
+                fragments.pollFirst();
+            }
+        }
+        return msg;
     }
 }
@@ -5,15 +5,17 @@
 package io.strimzi.kafka.proxy.vertx.msg;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.Objects;
 
+import org.apache.kafka.common.protocol.ByteBufferAccessor;
+import org.apache.kafka.common.protocol.ObjectSerializationCache;
 import org.apache.kafka.common.requests.AbstractRequest;
-import org.apache.kafka.common.requests.FetchResponse;
+import org.apache.kafka.common.requests.AbstractResponse;
 import org.apache.kafka.common.requests.RequestHeader;
-import org.apache.kafka.common.requests.RequestUtils;
 import org.apache.kafka.common.requests.ResponseHeader;
+import org.apache.kafka.common.utils.ByteUtils;
 
+import io.netty.buffer.Unpooled;
 import io.vertx.core.buffer.Buffer;
 
 /**
@@ -33,11 +35,7 @@ public class MsgUtil {
     	if (Objects.isNull(buffer) || buffer.length() < 6) {
     		return -1;
     	}
-    	ByteBuffer bb = ByteBuffer.allocate(2);
-    	bb.order(ByteOrder.BIG_ENDIAN);
-    	bb.put(buffer.getByte(4));
-    	bb.put(buffer.getByte(5));
-    	return bb.getShort(0);
+    	return buffer.getShort(4);
     }
 
     /**
@@ -52,26 +50,14 @@ public class MsgUtil {
         if (Objects.isNull(buffer) || buffer.length() < 8) {
             return -1;
         }
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        bb.put(buffer.getByte(4));
-        bb.put(buffer.getByte(5));
-        bb.put(buffer.getByte(6));
-        bb.put(buffer.getByte(7));
-        return bb.getInt(0);
+        return buffer.getInt(4);
     }
 
     public static int getReqCorrId(Buffer buffer) {
         if (Objects.isNull(buffer) || buffer.length() < 12) {
             return -1;
         }
-        ByteBuffer bb = ByteBuffer.allocate(4);
-        bb.order(ByteOrder.BIG_ENDIAN);
-        bb.put(buffer.getByte(8));
-        bb.put(buffer.getByte(9));
-        bb.put(buffer.getByte(10));
-        bb.put(buffer.getByte(11));
-        return bb.getInt(0);
+        return buffer.getInt(8);
     }
 
     public static int getMsgLen(Buffer buffer) {
@@ -82,21 +68,59 @@ public class MsgUtil {
     }
 
     /**
-     * Serialize a request into a Kafka send buffer
+     * Reads an unsigned varint, as used by the flexible versions of the Kafka
+     * protocol.
      *
-     * @param header
+     * @param buffer
+     * @param offset the offset of the varint
+     * @return the value
+     * @throws IllegalArgumentException if the varint is longer than 5 bytes
+     */
+    public static int getUnsignedVarint(Buffer buffer, int offset) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.getByte(offset++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid varint");
+    }
+
+    /**
+     * Returns the length of a tagged fields section, as found at the end of
+     * each structure in the flexible versions of the Kafka protocol.
+     *
+     * @param buffer
+     * @param offset the offset of the section
+     * @return the length of the section in bytes
+     */
+    public static int getTaggedFieldsLength(Buffer buffer, int offset) {
+        int pos = offset;
+        int numFields = getUnsignedVarint(buffer, pos);
+        pos += ByteUtils.sizeOfUnsignedVarint(numFields);
+        for (int i = 0; i < numFields; i++) {
+            int tag = getUnsignedVarint(buffer, pos);
+            pos += ByteUtils.sizeOfUnsignedVarint(tag);
+            int size = getUnsignedVarint(buffer, pos);
+            pos += ByteUtils.sizeOfUnsignedVarint(size) + size;
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Serialize a request into a Kafka send buffer. The size of the message is
+     * computed first, so that the length field, header and request are written
+     * straight into a single buffer of exactly that size.
+     *
+     * @param header the serialized request header
      * @param req
      * @return
      */
-    public static Buffer toSendBuffer(byte[] header, AbstractRequest req) {
-    	ByteBuffer serializedReq = req.serialize();
-    	ByteBuffer msgLenBuf = ByteBuffer.allocate(Integer.BYTES);
-    	msgLenBuf.putInt(header.length + serializedReq.array().length);
-    
-    	Buffer sendBuffer = Buffer.buffer(msgLenBuf.array());
-    	sendBuffer.appendBytes(header);
-    	sendBuffer.appendBytes(serializedReq.array());
-    	return sendBuffer;
+    public static Buffer toSendBuffer(Buffer header, AbstractRequest req) {
+        // a view of the header's bytes, copied once into the send buffer:
+        return toSendBuffer(header.getByteBuf().nioBuffer(), req);
     }
 
     /**
@@ -106,28 +130,55 @@ public class MsgUtil {
      * @param req
      * @return
      */
-    public static Buffer toSendBuffer(FetchResponse fetchRsp, RequestHeader reqHeader) {
-        ByteBuffer serializedRsp = serialize(fetchRsp, reqHeader);
-        byte[] rspBytes = serializedRsp.array();
-        int bufLen = Integer.BYTES + rspBytes.length;
-        ByteBuffer bufTmp = ByteBuffer.allocate(bufLen);
-        bufTmp.putInt(rspBytes.length);
-        bufTmp.put(rspBytes);
-        return Buffer.buffer(bufTmp.array());
+    public static Buffer toSendBuffer(byte[] header, AbstractRequest req) {
+        return toSendBuffer(ByteBuffer.wrap(header), req);
     }
-    
+
+    private static Buffer toSendBuffer(ByteBuffer header, AbstractRequest req) {
+        ObjectSerializationCache cache = new ObjectSerializationCache();
+        int msgLen = header.remaining() + req.data().size(cache, req.version());
+        ByteBuffer out = ByteBuffer.allocate(Integer.BYTES + msgLen);
+        out.putInt(msgLen);
+        out.put(header);
+        req.data().write(new ByteBufferAccessor(out), cache, req.version());
+        return wrap(out);
+    }
+
     /**
+     * Serialize a response into a Kafka send buffer, in a single buffer of
+     * exactly the message's size.
+     * <p>
      * Unlike requests, the serialize() method in the base AbstractResponse
      * class is not public so we cannot call it. Therefore we have to do
      * the work here ourselves.
-     * 
-     * @param fetchRsp
+     *
+     * @param rsp
+     * @param reqHeader the header of the request the response answers
      * @return
      */
-    private static ByteBuffer serialize(FetchResponse fetchRsp, RequestHeader reqHeader) {
+    public static Buffer toSendBuffer(AbstractResponse rsp, RequestHeader reqHeader) {
         ResponseHeader rspHeader = reqHeader.toResponseHeader();
-        //System.out.println("****** req: " + reqHeader.apiVersion() + " rsp: " + rspHeader.headerVersion());
-        return RequestUtils.serialize(rspHeader.data(), rspHeader.headerVersion(), fetchRsp.data(), reqHeader.apiVersion());
+        short headerVersion = rspHeader.headerVersion();
+        short version = reqHeader.apiVersion();
+        ObjectSerializationCache cache = new ObjectSerializationCache();
+        int msgLen = rspHeader.data().size(cache, headerVersion) + rsp.data().size(cache, version);
+        ByteBuffer out = ByteBuffer.allocate(Integer.BYTES + msgLen);
+        out.putInt(msgLen);
+        ByteBufferAccessor writable = new ByteBufferAccessor(out);
+        rspHeader.data().write(writable, cache, headerVersion);
+        rsp.data().write(writable, cache, version);
+        return wrap(out);
+    }
+
+    /**
+     * Wraps a fully written buffer without copying it.
+     */
+    private static Buffer wrap(ByteBuffer out) {
+        if (out.hasRemaining()) {
+            throw new IllegalStateException("Serialized " + out.position()
+                    + " bytes, expected " + out.limit());
+        }
+        return Buffer.buffer(Unpooled.wrappedBuffer(out.array()));
     }
 
     public static boolean isBufferComplete(Buffer buffer) {
@@ -0,0 +1,200 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx.msg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.utils.ByteUtils;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Reads the topic names of a Kafka produce request directly from its wire
+ * format, skipping over the records. This is a lightweight way of deciding
+ * whether a request holds data to be encrypted without deserializing it into
+ * a ProduceRequest instance.
+ * <p>
+ * See: https://kafka.apache.org/protocol.html#The_Messages_Produce
+ */
+public class ProduceTopicScanner {
+
+    // message length, api key, api version, correlation id
+    private static final int CLIENT_ID_OFFSET = 4 + 2 + 2 + 4;
+
+    // first versions with a transactional id and with flexible (compact) encoding:
+    private static final short FIRST_TRANSACTIONAL_VERSION = 3;
+    private static final short FIRST_FLEXIBLE_VERSION = 9;
+
+    /**
+     * Returned by acks() if a request cannot be scanned.
+     */
+    public static final short UNKNOWN_ACKS = Short.MIN_VALUE;
+
+    private final Buffer buffer;
+    private int pos;
+
+    private ProduceTopicScanner(Buffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the names of the topics in a produce request.
+     *
+     * @param buffer a complete produce request, including its length field
+     * @return the topic names in request order, or null if the request cannot be
+     *         scanned, in which case it should be fully parsed.
+     */
+    public static List<String> topicNames(Buffer buffer) {
+        if (buffer == null || buffer.length() < CLIENT_ID_OFFSET + 2
+                || MsgUtil.getApiKey(buffer) != ApiKeys.PRODUCE.id) {
+            return null;
+        }
+        try {
+            return new ProduceTopicScanner(buffer).scan();
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the acks of a produce request. The broker does not respond to
+     * requests with acks=0.
+     *
+     * @param buffer a complete produce request, including its length field
+     * @return the acks, or UNKNOWN_ACKS if the request cannot be scanned.
+     */
+    public static short acks(Buffer buffer) {
+        if (buffer == null || buffer.length() < CLIENT_ID_OFFSET + 2
+                || MsgUtil.getApiKey(buffer) != ApiKeys.PRODUCE.id) {
+            return UNKNOWN_ACKS;
+        }
+        try {
+            ProduceTopicScanner scanner = new ProduceTopicScanner(buffer);
+            return scanner.skipToAcks() ? buffer.getShort(scanner.pos) : UNKNOWN_ACKS;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            return UNKNOWN_ACKS;
+        }
+    }
+
+    /**
+     * Moves to the acks field.
+     *
+     * @return false if the request version is not supported.
+     */
+    private boolean skipToAcks() {
+        short apiVersion = buffer.getShort(6);
+        if (!ApiKeys.PRODUCE.isVersionSupported(apiVersion)) {
+            return false;
+        }
+
+        // request header: the client id is never a compact string.
+        pos = CLIENT_ID_OFFSET;
+        skipBytes(buffer.getShort(pos), 2);
+        if (ApiKeys.PRODUCE.requestHeaderVersion(apiVersion) >= 2) {
+            skipTaggedFields();
+        }
+
+        // request body:
+        if (apiVersion >= FIRST_TRANSACTIONAL_VERSION) {
+            skipString(apiVersion >= FIRST_FLEXIBLE_VERSION);
+        }
+        return true;
+    }
+
+    private List<String> scan() {
+        boolean flexible = buffer.getShort(6) >= FIRST_FLEXIBLE_VERSION;
+        if (!skipToAcks()) {
+            return null;
+        }
+        pos += 2 + 4; // acks, timeout_ms
+        int numTopics = readArrayLength(flexible);
+        List<String> topicNames = new ArrayList<>(numTopics);
+        for (int t = 0; t < numTopics; t++) {
+            topicNames.add(readString(flexible));
+            int numPartitions = readArrayLength(flexible);
+            for (int p = 0; p < numPartitions; p++) {
+                pos += 4; // partition index
+                // records:
+                if (flexible) {
+                    skipBytes(readUnsignedVarint() - 1, 0);
+                    skipTaggedFields();
+                } else {
+                    skipBytes(buffer.getInt(pos), 4);
+                }
+            }
+            if (flexible) {
+                skipTaggedFields();
+            }
+        }
+        return topicNames;
+    }
+
+    private String readString(boolean flexible) {
+        int len;
+        if (flexible) {
+            len = readUnsignedVarint() - 1;
+        } else {
+            len = buffer.getShort(pos);
+            pos += 2;
+        }
+        if (len < 0) {
+            throw new IllegalArgumentException("Null topic name");
+        }
+        String s = buffer.getString(pos, pos + len, StandardCharsets.UTF_8.name());
+        pos += len;
+        return s;
+    }
+
+    private void skipString(boolean flexible) {
+        if (flexible) {
+            skipBytes(readUnsignedVarint() - 1, 0);
+        } else {
+            skipBytes(buffer.getShort(pos), 2);
+        }
+    }
+
+    /**
+     * Reads an array length, a null array being read as empty. The length is
+     * sent by the client, so it is bounded by the bytes left, each element
+     * taking at least one byte.
+     */
+    private int readArrayLength(boolean flexible) {
+        int len;
+        if (flexible) {
+            len = readUnsignedVarint() - 1;
+        } else {
+            len = buffer.getInt(pos);
+            pos += 4;
+        }
+        if (len > buffer.length() - pos) {
+            throw new IllegalArgumentException("Array length exceeds the message length");
+        }
+        return Math.max(len, 0);
+    }
+
+    /**
+     * Skips a length-prefixed field whose length has been read. A negative
+     * length denotes null.
+     */
+    private void skipBytes(int len, int lengthFieldSize) {
+        pos += lengthFieldSize + Math.max(len, 0);
+        if (pos > buffer.length()) {
+            throw new IndexOutOfBoundsException("Field exceeds the message length");
+        }
+    }
+
+    private void skipTaggedFields() {
+        skipBytes(MsgUtil.getTaggedFieldsLength(buffer, pos), 0);
+    }
+
+    private int readUnsignedVarint() {
+        int value = MsgUtil.getUnsignedVarint(buffer, pos);
+        pos += ByteUtils.sizeOfUnsignedVarint(value);
+        return value;
+    }
+}
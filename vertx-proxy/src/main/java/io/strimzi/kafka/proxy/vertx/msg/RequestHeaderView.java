@@ -0,0 +1,108 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx.msg;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.common.protocol.ApiKeys;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * A flyweight view of the header of a Kafka request, decoding its fields in
+ * place from the raw message rather than deserializing a RequestHeader
+ * instance. A view can be rewrapped around successive messages.
+ * <p>
+ * See: https://kafka.apache.org/protocol.html#protocol_messages
+ */
+public class RequestHeaderView {
+
+    // the leading length field of the message:
+    private static final int MSG_SIZE_LEN = 4;
+    // api key, api version, correlation id, client id length
+    static final int FIXED_HEADER_LEN = 2 + 2 + 4 + 2;
+
+    private Buffer buffer;
+    private int headerLen = -1;
+
+    public RequestHeaderView() {
+    }
+
+    public RequestHeaderView(Buffer buffer) {
+        wrap(buffer);
+    }
+
+    /**
+     * Points this view at a message.
+     *
+     * @param buffer a Kafka request, including its length field
+     * @return this view
+     */
+    public RequestHeaderView wrap(Buffer buffer) {
+        this.buffer = buffer;
+        this.headerLen = -1;
+        return this;
+    }
+
+    public short apiKey() {
+        return buffer.getShort(MSG_SIZE_LEN);
+    }
+
+    public short apiVersion() {
+        return buffer.getShort(MSG_SIZE_LEN + 2);
+    }
+
+    public int correlationId() {
+        return buffer.getInt(MSG_SIZE_LEN + 4);
+    }
+
+    /**
+     * @return the length in bytes of the client id, or -1 if it is null.
+     */
+    public int clientIdLength() {
+        return buffer.getShort(MSG_SIZE_LEN + 8);
+    }
+
+    /**
+     * @return the client id, decoded on each call.
+     */
+    public String clientId() {
+        int len = clientIdLength();
+        if (len < 0) {
+            return null;
+        }
+        int start = MSG_SIZE_LEN + FIXED_HEADER_LEN;
+        return buffer.getString(start, start + len, StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * @return the request header version implied by the api key and version.
+     */
+    public short headerVersion() {
+        return ApiKeys.forId(apiKey()).requestHeaderVersion(apiVersion());
+    }
+
+    /**
+     * @return the length of the header in bytes, excluding the message length
+     *         field, including any tagged fields.
+     */
+    public int headerLength() {
+        if (headerLen < 0) {
+            int len = FIXED_HEADER_LEN + Math.max(clientIdLength(), 0);
+            if (headerVersion() >= 2) {
+                len += MsgUtil.getTaggedFieldsLength(buffer, MSG_SIZE_LEN + len);
+            }
+            headerLen = len;
+        }
+        return headerLen;
+    }
+
+    /**
+     * @return the header bytes, sharing the message's storage.
+     */
+    public Buffer headerSlice() {
+        return buffer.slice(MSG_SIZE_LEN, MSG_SIZE_LEN + headerLength());
+    }
+}
@@ -4,7 +4,13 @@
  */
 package io.strimzi.kafka.proxy.vertx.util;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 import io.strimzi.kafka.proxy.vertx.Config;
+import io.strimzi.kafka.proxy.vertx.msg.MessageAccumulator;
 import io.strimzi.kafka.topicenc.common.Strings;
 import io.vertx.core.json.JsonObject;
 
@@ -27,15 +33,114 @@ public class ConfigUtil {
         int listeningPort = getIntParam(jsonConfig, Config.PropertyNames.LISTENING_PORT);
         String policyRepo = getParam(jsonConfig, Config.PropertyNames.POLICY_REPO);
         String kmsConfigFile = getParam(jsonConfig, Config.PropertyNames.KMS_CONFIG);
+        int maxMsgSize = getIntParam(jsonConfig, Config.PropertyNames.MAX_MSG_SIZE,
+                MessageAccumulator.DEFAULT_MAX_MSG_SIZE);
+        int verticleInstances = getIntParam(jsonConfig, Config.PropertyNames.VERTICLE_INSTANCES,
+                Runtime.getRuntime().availableProcessors());
+        if (verticleInstances <= 0) {
+            throw new IllegalArgumentException(
+                    Config.PropertyNames.VERTICLE_INSTANCES + " must be positive");
+        }
+        int cryptoWorkerPoolSize = getIntParam(jsonConfig,
+                Config.PropertyNames.CRYPTO_WORKER_POOL_SIZE, 0);
+        if (cryptoWorkerPoolSize < 0) {
+            throw new IllegalArgumentException(
+                    Config.PropertyNames.CRYPTO_WORKER_POOL_SIZE + " must not be negative");
+        }
+        int upstreamConnectionsPerBroker = getIntParam(jsonConfig,
+                Config.PropertyNames.UPSTREAM_CONNECTIONS_PER_BROKER, 0);
+        if (upstreamConnectionsPerBroker < 0) {
+            throw new IllegalArgumentException(
+                    Config.PropertyNames.UPSTREAM_CONNECTIONS_PER_BROKER + " must not be negative");
+        }
+        int requestTimeoutMs = getIntParam(jsonConfig, Config.PropertyNames.REQUEST_TIMEOUT_MS,
+                Config.DEFAULT_REQUEST_TIMEOUT_MS);
+        if (requestTimeoutMs <= 0) {
+            throw new IllegalArgumentException(
+                    Config.PropertyNames.REQUEST_TIMEOUT_MS + " must be positive");
+        }
+        int metricsLogIntervalMs = getIntParam(jsonConfig,
+                Config.PropertyNames.METRICS_LOG_INTERVAL_MS, 0);
+        if (metricsLogIntervalMs < 0) {
+            throw new IllegalArgumentException(
+                    Config.PropertyNames.METRICS_LOG_INTERVAL_MS + " must not be negative");
+        }
+        long decryptedBatchCacheBytes = jsonConfig.getLong(
+                Config.PropertyNames.DECRYPTED_BATCH_CACHE_BYTES, 0L);
+        if (decryptedBatchCacheBytes < 0) {
+            throw new IllegalArgumentException(
+                    Config.PropertyNames.DECRYPTED_BATCH_CACHE_BYTES + " must not be negative");
+        }
+        Map<String, Integer> brokerMappings = getBrokerMappings(jsonConfig, listeningPort);
+        String tlsCertFile = jsonConfig.getString(Config.PropertyNames.TLS_CERT_FILE);
+        String tlsKeyFile = jsonConfig.getString(Config.PropertyNames.TLS_KEY_FILE);
+        if ((tlsCertFile == null) != (tlsKeyFile == null)) {
+            throw new IllegalArgumentException(Config.PropertyNames.TLS_CERT_FILE + " and "
+                    + Config.PropertyNames.TLS_KEY_FILE + " must be set together");
+        }
+        String advertisedHost = jsonConfig.getString(Config.PropertyNames.ADVERTISED_HOST,
+                "localhost");
 
         Config config = new Config()
                 .setBrokers(brokers)
                 .setListeningPort(listeningPort)
                 .setPolicyFile(policyRepo)
-                .setKmsConfigFile(kmsConfigFile);
+                .setKmsConfigFile(kmsConfigFile)
+                .setMaxMsgSize(maxMsgSize)
+                .setVerticleInstances(verticleInstances)
+                .setCryptoWorkerPoolSize(cryptoWorkerPoolSize)
+                .setBrokerMappings(brokerMappings)
+                .setAdvertisedHost(advertisedHost)
+                .setUpstreamConnectionsPerBroker(upstreamConnectionsPerBroker)
+                .setTcpNoDelay(jsonConfig.getBoolean(Config.PropertyNames.TCP_NO_DELAY, true))
+                .setTcpQuickAck(jsonConfig.getBoolean(Config.PropertyNames.TCP_QUICK_ACK, false))
+                .setSendBufferSize(getIntParam(jsonConfig, Config.PropertyNames.SEND_BUFFER_SIZE, -1))
+                .setReceiveBufferSize(
+                        getIntParam(jsonConfig, Config.PropertyNames.RECEIVE_BUFFER_SIZE, -1))
+                .setOpenSsl(jsonConfig.getBoolean(Config.PropertyNames.OPENSSL, true))
+                .setTlsCertFile(tlsCertFile)
+                .setTlsKeyFile(tlsKeyFile)
+                .setBrokerTls(jsonConfig.getBoolean(Config.PropertyNames.BROKER_TLS, false))
+                .setBrokerTlsTrustFile(
+                        jsonConfig.getString(Config.PropertyNames.BROKER_TLS_TRUST_FILE))
+                .setRequestTimeoutMs(requestTimeoutMs)
+                .setMetricsLogIntervalMs(metricsLogIntervalMs)
+                .setDecryptedBatchCacheBytes(decryptedBatchCacheBytes);
         return config;
     }
 
+    /**
+     * Extracts the optional mapping of brokers to proxy ports, a JSON object
+     * with a 'hostname:port' field for each broker whose value is the proxy
+     * port.
+     * 
+     * @param jsonConfig the input JSON object
+     * @param listeningPort the proxy's bootstrap port, which brokers may not use
+     * @return the proxy port of each broker
+     */
+    private static Map<String, Integer> getBrokerMappings(JsonObject jsonConfig,
+            int listeningPort) {
+        JsonObject jsonMappings = jsonConfig.getJsonObject(Config.PropertyNames.BROKER_MAPPINGS);
+        Map<String, Integer> mappings = new LinkedHashMap<>();
+        if (jsonMappings == null) {
+            return mappings;
+        }
+        Set<Integer> ports = new HashSet<>();
+        ports.add(listeningPort);
+        for (String broker : jsonMappings.fieldNames()) {
+            if (broker.indexOf(':') == -1) {
+                throw new IllegalArgumentException("Broker must be specified as 'hostname:port'");
+            }
+            Integer port = jsonMappings.getInteger(broker);
+            if (port == null || !ports.add(port)) {
+                throw new IllegalArgumentException(Config.PropertyNames.BROKER_MAPPINGS
+                        + " must map each broker to a distinct port: " + broker);
+            }
+            mappings.put(broker, port);
+        }
+        return mappings;
+    }
+
     /**
      * Utility method for extracting a string field from a JSON object. Assumes the
      * field is required and throws an IllegalArgumentException if the field is not
@@ -68,4 +173,16 @@ public class ConfigUtil {
         }
         return jsonConfig.getInteger(paramName);
     }
+
+    /**
+     * Utility method for extracting an optional integer field from a JSON object.
+     * 
+     * @param jsonConfig
+     * @param paramName
+     * @param defaultValue the value if the field is not present
+     * @return
+     */
+    private static int getIntParam(JsonObject jsonConfig, String paramName, int defaultValue) {
+        return jsonConfig.getInteger(paramName, defaultValue);
+    }
 }
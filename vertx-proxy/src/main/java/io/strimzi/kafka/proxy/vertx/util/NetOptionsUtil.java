@@ -0,0 +1,92 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.strimzi.kafka.proxy.vertx.Config;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.OpenSSLEngineOptions;
+import io.vertx.core.net.PemKeyCertOptions;
+import io.vertx.core.net.PemTrustOptions;
+import io.vertx.core.net.TCPSSLOptions;
+
+/**
+ * Utility methods for creating the socket options of the proxy's listeners
+ * and broker connections from the proxy configuration.
+ * <p>
+ * TCP_QUICKACK and some other options take effect only with the native epoll
+ * transport, which is used when its library is on the classpath. The
+ * OpenSSL engine likewise needs the netty-tcnative library, falling back to
+ * the JDK's engine without it.
+ */
+public class NetOptionsUtil {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NetOptionsUtil.class);
+
+    private NetOptionsUtil() {
+    }
+
+    /**
+     * @param config the proxy configuration
+     * @param port the listening port
+     * @return the options of a listener for client connections
+     */
+    public static NetServerOptions serverOptions(Config config, int port) {
+        NetServerOptions opts = new NetServerOptions().setPort(port);
+        setTcpOptions(opts, config);
+        if (config.getTlsCertFile() != null) {
+            opts.setSsl(true)
+                    .setPemKeyCertOptions(new PemKeyCertOptions()
+                            .setCertPath(config.getTlsCertFile())
+                            .setKeyPath(config.getTlsKeyFile()));
+            setSslEngine(opts, config);
+        }
+        return opts;
+    }
+
+    /**
+     * @param config the proxy configuration
+     * @return the options of broker connections
+     */
+    public static NetClientOptions clientOptions(Config config) {
+        NetClientOptions opts = new NetClientOptions();
+        setTcpOptions(opts, config);
+        if (config.isBrokerTls()) {
+            // without a trust file, the JVM's default trust store is used.
+            opts.setSsl(true).setHostnameVerificationAlgorithm("HTTPS");
+            if (config.getBrokerTlsTrustFile() != null) {
+                opts.setPemTrustOptions(new PemTrustOptions()
+                        .addCertPath(config.getBrokerTlsTrustFile()));
+            }
+            setSslEngine(opts, config);
+        }
+        return opts;
+    }
+
+    private static void setTcpOptions(TCPSSLOptions opts, Config config) {
+        opts.setTcpNoDelay(config.isTcpNoDelay())
+                .setTcpQuickAck(config.isTcpQuickAck());
+        if (config.getSendBufferSize() > 0) {
+            opts.setSendBufferSize(config.getSendBufferSize());
+        }
+        if (config.getReceiveBufferSize() > 0) {
+            opts.setReceiveBufferSize(config.getReceiveBufferSize());
+        }
+    }
+
+    private static void setSslEngine(TCPSSLOptions opts, Config config) {
+        if (!config.isOpenSsl()) {
+            return;
+        }
+        if (OpenSSLEngineOptions.isAvailable()) {
+            opts.setSslEngineOptions(new OpenSSLEngineOptions());
+        } else {
+            LOGGER.warn("OpenSSL is not available, using the JDK TLS engine");
+        }
+    }
+}
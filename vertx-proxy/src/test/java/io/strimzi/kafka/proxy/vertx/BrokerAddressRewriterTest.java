@@ -0,0 +1,86 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.kafka.common.message.FindCoordinatorResponseData;
+import org.apache.kafka.common.message.FindCoordinatorResponseData.Coordinator;
+import org.apache.kafka.common.message.MetadataResponseData;
+import org.apache.kafka.common.message.MetadataResponseData.MetadataResponseBroker;
+import org.apache.kafka.common.message.MetadataResponseData.MetadataResponseBrokerCollection;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.requests.AbstractResponse;
+import org.apache.kafka.common.requests.FindCoordinatorResponse;
+import org.apache.kafka.common.requests.MetadataResponse;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.junit.Test;
+
+import io.strimzi.kafka.proxy.vertx.msg.KafkaRspMsg;
+import io.strimzi.kafka.proxy.vertx.msg.MsgUtil;
+import io.vertx.core.buffer.Buffer;
+
+public class BrokerAddressRewriterTest {
+
+    private final BrokerAddressRewriter rewriter = new BrokerAddressRewriter(new Config()
+            .setAdvertisedHost("proxy")
+            .setBrokerMappings(Map.of("broker-0:9092", 19092, "Broker-1:9092", 19093)));
+
+    private static AbstractResponse parse(Buffer rsp, RequestHeader reqHeader) {
+        KafkaRspMsg msg = new KafkaRspMsg(rsp, reqHeader.apiVersion());
+        return AbstractResponse.parseResponse(msg.getPayload(), reqHeader);
+    }
+
+    @Test
+    public void metadataTest() {
+        MetadataResponseBrokerCollection brokers = new MetadataResponseBrokerCollection();
+        brokers.add(new MetadataResponseBroker().setNodeId(0).setHost("broker-0").setPort(9092));
+        brokers.add(new MetadataResponseBroker().setNodeId(1).setHost("broker-1").setPort(9092));
+        brokers.add(new MetadataResponseBroker().setNodeId(2).setHost("broker-2").setPort(9092));
+        MetadataResponse rsp = new MetadataResponse(
+                new MetadataResponseData().setBrokers(brokers), (short) 12);
+        RequestHeader reqHeader = new RequestHeader(ApiKeys.METADATA, (short) 12, "client", 3);
+
+        Buffer rewritten = rewriter.rewrite(MsgUtil.toSendBuffer(rsp, reqHeader), reqHeader);
+
+        MetadataResponseData data = ((MetadataResponse) parse(rewritten, reqHeader)).data();
+        assertEquals("proxy", data.brokers().find(0).host());
+        assertEquals(19092, data.brokers().find(0).port());
+        assertEquals("proxy", data.brokers().find(1).host());
+        assertEquals(19093, data.brokers().find(1).port());
+        // unmapped:
+        assertEquals("broker-2", data.brokers().find(2).host());
+        assertEquals(9092, data.brokers().find(2).port());
+    }
+
+    @Test
+    public void findCoordinatorTest() {
+        FindCoordinatorResponse rsp = new FindCoordinatorResponse(new FindCoordinatorResponseData()
+                .setCoordinators(List.of(
+                        new Coordinator().setKey("group").setNodeId(1).setHost("broker-1").setPort(9092))));
+        RequestHeader reqHeader = new RequestHeader(ApiKeys.FIND_COORDINATOR, (short) 4, "client", 4);
+
+        Buffer rewritten = rewriter.rewrite(MsgUtil.toSendBuffer(rsp, reqHeader), reqHeader);
+
+        Coordinator coordinator = ((FindCoordinatorResponse) parse(rewritten, reqHeader)).data()
+                .coordinators().get(0);
+        assertEquals("proxy", coordinator.host());
+        assertEquals(19093, coordinator.port());
+    }
+
+    @Test
+    public void unmappedTest() {
+        FindCoordinatorResponse rsp = new FindCoordinatorResponse(new FindCoordinatorResponseData()
+                .setNodeId(-1).setHost("").setPort(-1));
+        RequestHeader reqHeader = new RequestHeader(ApiKeys.FIND_COORDINATOR, (short) 3, "client", 5);
+        Buffer rspMsg = MsgUtil.toSendBuffer(rsp, reqHeader);
+
+        assertSame(rspMsg, rewriter.rewrite(rspMsg, reqHeader));
+    }
+}
@@ -7,17 +7,32 @@ package io.strimzi.kafka.proxy.vertx;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.kafka.common.message.FetchResponseData;
 import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.record.CompressionType;
 import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.Record;
+import org.apache.kafka.common.record.RecordBatch;
+import org.apache.kafka.common.record.TimestampType;
 import org.apache.kafka.common.requests.AbstractResponse;
 import org.apache.kafka.common.requests.FetchResponse;
 import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.utils.ByteBufferOutputStream;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -25,9 +40,12 @@ import io.strimzi.kafka.proxy.vertx.msg.KafkaRspMsg;
 import io.strimzi.kafka.proxy.vertx.msg.MsgUtil;
 import io.strimzi.kafka.topicenc.EncryptionModule;
 import io.strimzi.kafka.topicenc.common.LogUtils;
+import io.strimzi.kafka.topicenc.enc.AesGcmEncrypter;
+import io.strimzi.kafka.topicenc.enc.EncrypterDecrypter;
 import io.strimzi.kafka.topicenc.kms.KmsException;
 import io.strimzi.kafka.topicenc.policy.PolicyRepository;
 import io.strimzi.kafka.topicenc.policy.TestPolicyRepository;
+import io.strimzi.kafka.topicenc.ser.AesGcmV1SerDer;
 import io.strimzi.kafka.topicenc.ser.EncSerDerException;
 import io.vertx.core.buffer.Buffer;
 
@@ -58,6 +76,30 @@ public class EncModTest {
         Assert.assertFalse("Message was not encrypted", equal);
     }
 
+    /**
+     * One encryption module is shared by all verticle instances, so it must be
+     * usable from several threads at once.
+     */
+    @Test
+    public void testSharedEncryptionModule() throws Exception {
+        EncryptionModule shared = new EncryptionModule(new TestPolicyRepository());
+        byte[] prodReq = TestDataFileUtil.hexToBin(new File("src/test/resources/produce_request.hex"));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Buffer>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                results.add(executor.submit(() -> new MessageHandler(shared, createDummyConfig())
+                        .processProduceRequest(Buffer.buffer(prodReq))));
+            }
+            for (Future<Buffer> result : results) {
+                Assert.assertFalse("Message was not encrypted",
+                        Arrays.equals(prodReq, result.get().getBytes()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     @Test
     public void testDecryption()
             throws IOException, EncSerDerException, GeneralSecurityException, KmsException,
@@ -70,6 +112,185 @@ public class EncModTest {
         testDecryption(multiFetchRsp);
     }
 
+    /**
+     * Decryption must keep the boundaries, offsets and producer state of the
+     * fetched batches, including tombstones and compacted offset gaps.
+     */
+    @Test
+    public void testDecryptionKeepsBatches() throws Exception {
+        encMod = new EncryptionModule(new TestPolicyRepository());
+
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        MemoryRecordsBuilder first = MemoryRecords.builder(buf, RecordBatch.CURRENT_MAGIC_VALUE,
+                CompressionType.NONE, TimestampType.CREATE_TIME, 100L, RecordBatch.NO_TIMESTAMP, 42L, (short) 3, 7, false, 5);
+        first.appendWithOffset(100L, 1001L, "k0".getBytes(), "v0".getBytes());
+        first.appendWithOffset(101L, 1002L, "k1".getBytes(), null);
+        first.appendWithOffset(103L, 1003L, "k3".getBytes(), "v3".getBytes());
+        first.overrideLastOffset(104L);
+        buf = first.build().buffer();
+        ByteBuffer both = ByteBuffer.allocate(2048);
+        both.put(buf);
+        MemoryRecordsBuilder second = MemoryRecords.builder(both, RecordBatch.CURRENT_MAGIC_VALUE,
+                CompressionType.NONE, TimestampType.CREATE_TIME, 105L, RecordBatch.NO_TIMESTAMP, 42L, (short) 3, 11, false, 5);
+        second.append(1005L, "k5".getBytes(), "v5".getBytes());
+        second.close();
+        both.flip();
+        MemoryRecords fetched = MemoryRecords.readableRecords(both);
+
+        // encrypt a copy of the values, as the broker would have stored them:
+        ByteBufferOutputStream out = new ByteBufferOutputStream(2048);
+        EncrypterDecrypter enc = new AesGcmEncrypter(new TestPolicyRepository()
+                .getTopicPolicy("test").getKms().getKey("test"));
+        AesGcmV1SerDer serder = new AesGcmV1SerDer();
+        for (RecordBatch batch : fetched.batches()) {
+            MemoryRecordsBuilder builder = new MemoryRecordsBuilder(out, batch.magic(),
+                    CompressionType.NONE, batch.timestampType(), batch.baseOffset(),
+                    RecordBatch.NO_TIMESTAMP, batch.producerId(), batch.producerEpoch(),
+                    batch.baseSequence(), false, false, batch.partitionLeaderEpoch(), 2048);
+            for (Record r : batch) {
+                byte[] value = null;
+                if (r.hasValue()) {
+                    byte[] plaintext = new byte[r.valueSize()];
+                    r.value().get(plaintext);
+                    value = serder.serialize(enc.encrypt(plaintext));
+                }
+                byte[] key = new byte[r.keySize()];
+                r.key().get(key);
+                builder.appendWithOffset(r.offset(), r.timestamp(), key, value);
+            }
+            builder.overrideLastOffset(batch.lastOffset());
+            builder.close();
+        }
+        MemoryRecords encrypted = MemoryRecords.readableRecords(out.buffer().flip());
+
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse().setTopic("test");
+        topicRsp.partitions().add(new FetchResponseData.PartitionData().setRecords(encrypted));
+        Assert.assertTrue(encMod.decrypt(topicRsp));
+
+        MemoryRecords decrypted = (MemoryRecords) topicRsp.partitions().get(0).records();
+        Iterator<? extends RecordBatch> expected = fetched.batches().iterator();
+        for (RecordBatch batch : decrypted.batches()) {
+            RecordBatch exp = expected.next();
+            Assert.assertEquals(exp.baseOffset(), batch.baseOffset());
+            Assert.assertEquals(exp.lastOffset(), batch.lastOffset());
+            Assert.assertEquals(exp.producerId(), batch.producerId());
+            Assert.assertEquals(exp.producerEpoch(), batch.producerEpoch());
+            Assert.assertEquals(exp.baseSequence(), batch.baseSequence());
+            Assert.assertEquals(exp.partitionLeaderEpoch(), batch.partitionLeaderEpoch());
+            Assert.assertEquals(exp.maxTimestamp(), batch.maxTimestamp());
+            Iterator<Record> expRecs = exp.iterator();
+            for (Record r : batch) {
+                Record e = expRecs.next();
+                Assert.assertEquals(e.offset(), r.offset());
+                Assert.assertEquals(e.key(), r.key());
+                Assert.assertEquals(e.value(), r.value());
+            }
+            Assert.assertFalse(expRecs.hasNext());
+        }
+        Assert.assertFalse(expected.hasNext());
+    }
+
+    /**
+     * Encryption must keep the producer id, epoch, base sequence and
+     * transactional flag of produced batches, so that idempotent and
+     * transactional producers can be used with encrypted topics.
+     */
+    @Test
+    public void testEncryptionKeepsProducerState() throws Exception {
+        encMod = new EncryptionModule(new TestPolicyRepository());
+
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        MemoryRecordsBuilder builder = MemoryRecords.builder(buf, RecordBatch.CURRENT_MAGIC_VALUE,
+                CompressionType.NONE, TimestampType.CREATE_TIME, 0L, RecordBatch.NO_TIMESTAMP,
+                42L, (short) 3, 17, true, RecordBatch.NO_PARTITION_LEADER_EPOCH);
+        builder.append(1000L, "k0".getBytes(), "v0".getBytes());
+        builder.append(1001L, "k1".getBytes(), null);
+        builder.append(1002L, "k2".getBytes(), "v2".getBytes());
+        MemoryRecords produced = builder.build();
+        RecordBatch original = produced.batches().iterator().next();
+
+        TopicProduceData topicData = new TopicProduceData().setName("test");
+        topicData.partitionData().add(new PartitionProduceData()
+                .setRecords(MemoryRecords.readableRecords(produced.buffer().duplicate())));
+        Assert.assertTrue(encMod.encrypt(topicData));
+
+        MemoryRecords encrypted = (MemoryRecords) topicData.partitionData().get(0).records();
+        RecordBatch batch = encrypted.batches().iterator().next();
+        Assert.assertEquals(original.producerId(), batch.producerId());
+        Assert.assertEquals(original.producerEpoch(), batch.producerEpoch());
+        Assert.assertEquals(original.baseSequence(), batch.baseSequence());
+        Assert.assertEquals(original.lastSequence(), batch.lastSequence());
+        Assert.assertTrue(batch.isTransactional());
+        Assert.assertEquals(3, batch.countOrNull().intValue());
+
+        // and decrypts back to the produced records:
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse().setTopic("test");
+        topicRsp.partitions().add(new FetchResponseData.PartitionData().setRecords(encrypted));
+        Assert.assertTrue(encMod.decrypt(topicRsp));
+        Iterator<Record> expected = original.iterator();
+        for (Record r : ((MemoryRecords) topicRsp.partitions().get(0).records()).records()) {
+            Record e = expected.next();
+            Assert.assertEquals(e.offset(), r.offset());
+            Assert.assertEquals(e.value(), r.value());
+        }
+        Assert.assertFalse(expected.hasNext());
+    }
+
+    /**
+     * Records below the fetch offset are dropped rather than decrypted, and a
+     * batch left without records keeps its offsets.
+     */
+    @Test
+    public void testDecryptionSkipsRecordsBelowFetchOffset() throws Exception {
+        encMod = new EncryptionModule(new TestPolicyRepository());
+
+        ByteBuffer buf = ByteBuffer.allocate(2048);
+        MemoryRecordsBuilder first = MemoryRecords.builder(buf, CompressionType.NONE,
+                TimestampType.CREATE_TIME, 0L);
+        for (int i = 0; i < 4; i++) {
+            first.append(1000L + i, ("k" + i).getBytes(), ("v" + i).getBytes());
+        }
+        first.close();
+        MemoryRecordsBuilder second = MemoryRecords.builder(buf, CompressionType.NONE,
+                TimestampType.CREATE_TIME, 4L);
+        second.append(1004L, "k4".getBytes(), "v4".getBytes());
+        second.append(1005L, "k5".getBytes(), "v5".getBytes());
+        second.close();
+        buf.flip();
+
+        TopicProduceData topicData = new TopicProduceData().setName("test");
+        topicData.partitionData().add(new PartitionProduceData()
+                .setRecords(MemoryRecords.readableRecords(buf)));
+        Assert.assertTrue(encMod.encrypt(topicData));
+        MemoryRecords encrypted = (MemoryRecords) topicData.partitionData().get(0).records();
+
+        // fetching from offset 2, within the first batch:
+        List<Long> offsets = new ArrayList<>();
+        for (Record r : decryptFrom(encrypted, 2L).records()) {
+            offsets.add(r.offset());
+            Assert.assertEquals(ByteBuffer.wrap(("v" + r.offset()).getBytes()), r.value());
+        }
+        Assert.assertEquals(Arrays.asList(2L, 3L, 4L, 5L), offsets);
+
+        // fetching from offset 4, past the first batch:
+        MemoryRecords decrypted = decryptFrom(encrypted, 4L);
+        Iterator<? extends RecordBatch> batches = decrypted.batches().iterator();
+        RecordBatch emptied = batches.next();
+        Assert.assertEquals(0L, emptied.baseOffset());
+        Assert.assertEquals(3L, emptied.lastOffset());
+        Assert.assertEquals(0, emptied.countOrNull().intValue());
+        Assert.assertEquals(4L, batches.next().baseOffset());
+        Assert.assertFalse(batches.hasNext());
+    }
+
+    private MemoryRecords decryptFrom(MemoryRecords encrypted, long fetchOffset) throws Exception {
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse().setTopic("test");
+        topicRsp.partitions().add(new FetchResponseData.PartitionData().setPartitionIndex(0)
+                .setRecords(MemoryRecords.readableRecords(encrypted.buffer().duplicate())));
+        Assert.assertTrue(encMod.decrypt(topicRsp, Collections.singletonMap(0, fetchOffset)));
+        return (MemoryRecords) topicRsp.partitions().get(0).records();
+    }
+
     private void testDecryption(File rspMsgFile)
             throws IOException, EncSerDerException, GeneralSecurityException, KmsException {
         byte[] fetchRsp = TestDataFileUtil.hexToBin(rspMsgFile);
@@ -0,0 +1,81 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.junit.Test;
+
+public class InFlightRequestsTest {
+
+    private static final long TIMEOUT = 1000;
+    private static final short FETCH = ApiKeys.FETCH.id;
+    private static final short PRODUCE = ApiKeys.PRODUCE.id;
+
+    @Test
+    public void putRemoveTest() {
+        RequestMetrics metrics = new RequestMetrics();
+        InFlightRequests<String> inFlight = new InFlightRequests<>(TIMEOUT, metrics);
+        // enough to grow the table, with negative and colliding ids:
+        for (int corrId = -500; corrId < 500; corrId++) {
+            inFlight.put(corrId, corrId < 0 ? FETCH : PRODUCE, "req" + corrId, 0);
+        }
+        assertEquals(1000, inFlight.size());
+        assertEquals(500, metrics.inFlight(FETCH));
+        // remove every other request, then check the rest are still found:
+        for (int corrId = -500; corrId < 500; corrId += 2) {
+            assertEquals("req" + corrId, inFlight.remove(corrId, 10));
+        }
+        for (int corrId = -499; corrId < 500; corrId += 2) {
+            assertEquals("req" + corrId, inFlight.remove(corrId, 30));
+        }
+        assertNull(inFlight.remove(0, 40));
+        assertEquals(0, inFlight.size());
+        assertEquals(0, metrics.inFlight(FETCH));
+        assertEquals(500, metrics.responses(PRODUCE));
+        assertEquals(20, metrics.meanLatencyNanos(PRODUCE));
+        assertEquals(30, metrics.maxLatencyNanos(PRODUCE));
+    }
+
+    @Test
+    public void reusedCorrIdTest() {
+        RequestMetrics metrics = new RequestMetrics();
+        InFlightRequests<String> inFlight = new InFlightRequests<>(TIMEOUT, metrics);
+        inFlight.put(7, FETCH, "first", 0);
+        inFlight.put(7, FETCH, "second", 0);
+        assertEquals(1, inFlight.size());
+        assertEquals(1, metrics.inFlight(FETCH));
+        assertEquals("second", inFlight.remove(7, 0));
+        assertNull(inFlight.remove(7, 0));
+    }
+
+    @Test
+    public void expiryTest() {
+        RequestMetrics metrics = new RequestMetrics();
+        InFlightRequests<String> inFlight = new InFlightRequests<>(TIMEOUT, metrics);
+        for (int corrId = 0; corrId < 100; corrId++) {
+            inFlight.put(corrId, FETCH, "old", 0);
+        }
+        inFlight.put(100, FETCH, "new", TIMEOUT / 2);
+        assertEquals(100, inFlight.expire(TIMEOUT));
+        assertEquals(1, inFlight.size());
+        assertEquals(1, metrics.inFlight(FETCH));
+        assertEquals(100, metrics.expired(FETCH));
+        assertNull(inFlight.remove(0, TIMEOUT));
+        assertEquals("new", inFlight.remove(100, TIMEOUT));
+
+        // expired when a request is added a timeout after the last expiry:
+        inFlight.put(1, FETCH, "old", TIMEOUT);
+        inFlight.put(2, FETCH, "new", 2 * TIMEOUT);
+        assertEquals(1, inFlight.size());
+        assertEquals(101, metrics.expired(FETCH));
+
+        inFlight.clear();
+        assertEquals(0, inFlight.size());
+        assertEquals(0, metrics.inFlight(FETCH));
+    }
+}
@@ -0,0 +1,719 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.SecretKey;
+
+import org.apache.kafka.common.Uuid;
+import org.apache.kafka.common.message.FetchRequestData;
+import org.apache.kafka.common.message.FetchRequestData.FetchPartition;
+import org.apache.kafka.common.message.FetchRequestData.FetchTopic;
+import org.apache.kafka.common.message.FetchResponseData;
+import org.apache.kafka.common.message.FetchResponseData.FetchableTopicResponse;
+import org.apache.kafka.common.message.ProduceRequestData;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.message.ProduceResponseData.PartitionProduceResponse;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.MemoryRecordsBuilder;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.requests.AbstractRequest;
+import org.apache.kafka.common.requests.AbstractResponse;
+import org.apache.kafka.common.requests.FetchMetadata;
+import org.apache.kafka.common.requests.FetchRequest;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.apache.kafka.common.requests.ProduceRequest;
+import org.apache.kafka.common.requests.ProduceResponse;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.proxy.vertx.msg.MessageAccumulator;
+import io.strimzi.kafka.proxy.vertx.msg.MsgUtil;
+import io.strimzi.kafka.topicenc.EncryptionModule;
+import io.strimzi.kafka.topicenc.kms.KeyMgtSystem;
+import io.strimzi.kafka.topicenc.kms.KmsDefinition;
+import io.strimzi.kafka.topicenc.kms.KmsException;
+import io.strimzi.kafka.topicenc.kms.test.TestKms;
+import io.strimzi.kafka.topicenc.policy.PolicyRepository;
+import io.strimzi.kafka.topicenc.policy.TestPolicyRepository;
+import io.strimzi.kafka.topicenc.policy.TopicPolicy;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+
+/**
+ * Tests the message handler between a client and a stand-in broker, whose
+ * behaviour each test sets. Topics whose names start with "enc" are encrypted,
+ * the KMS of topic "unavailable" fails and the KMS of topic "slow" answers
+ * once released.
+ */
+public class MessageHandlerTest {
+
+    private static final short FETCH_VERSION = 12;
+    private static final short PRODUCE_VERSION = 8;
+
+    private Vertx vertx;
+    private NetServer broker;
+    private volatile Handler<NetSocket> brokerHandler;
+    private EncryptionModule encMod;
+    private CompletableFuture<Void> kmsReleased;
+
+    @Before
+    public void setUp() throws Exception {
+        TopicPolicy policy = new TestPolicyRepository().getTopicPolicy("enc");
+        TopicPolicy unavailable = new TopicPolicy()
+                .setEncMethod(TopicPolicy.ENC_METHOD_AES_GCM_V1)
+                .setKeyReference("unavailable")
+                .setTopic("unavailable")
+                .setKms(keyRef -> {
+                    throw new KmsException("KMS unavailable");
+                });
+        kmsReleased = new CompletableFuture<>();
+        TestKms testKms = new TestKms(new KmsDefinition());
+        TopicPolicy slow = new TopicPolicy()
+                .setEncMethod(TopicPolicy.ENC_METHOD_AES_GCM_V1)
+                .setKeyReference("slow")
+                .setTopic("slow")
+                .setKms(new KeyMgtSystem() {
+                    @Override
+                    public SecretKey getKey(String keyReference) {
+                        return testKms.getKey(keyReference);
+                    }
+
+                    @Override
+                    public CompletionStage<SecretKey> getKeyAsync(String keyReference) {
+                        return kmsReleased.thenApply(v -> testKms.getKey(keyReference));
+                    }
+                });
+        PolicyRepository policyRepo = topicName -> topicName.startsWith("enc") ? policy
+                : topicName.equals("unavailable") ? unavailable
+                : topicName.equals("slow") ? slow : null;
+        encMod = new EncryptionModule(policyRepo);
+        vertx = Vertx.vertx();
+        broker = vertx.createNetServer().connectHandler(socket -> brokerHandler.handle(socket))
+                .listen(0).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Starts a proxy in front of the broker.
+     *
+     * @return the proxy's port
+     */
+    private int startProxy(Config config) throws Exception {
+        return startProxy(config, context -> { });
+    }
+
+    /**
+     * Starts a proxy in front of the broker, on a context given further
+     * resources, such as an upstream pool, by contextSetup.
+     *
+     * @return the proxy's port
+     */
+    private int startProxy(Config config, Handler<Context> contextSetup) throws Exception {
+        Context context = vertx.getOrCreateContext();
+        contextSetup.handle(context);
+        context.put(KafkaProxyVerticle.CTX_KEY_CONFIG,
+                config.setBrokers("localhost:" + broker.actualPort()));
+        context.put(KafkaProxyVerticle.CTX_KEY_ENCMOD, encMod);
+        CompletableFuture<NetServer> proxy = new CompletableFuture<>();
+        context.runOnContext(v -> vertx.createNetServer()
+                .connectHandler(new TopicEncryptingSocketHandler(context))
+                .listen(0)
+                .onComplete(listened -> {
+                    if (listened.succeeded()) {
+                        proxy.complete(listened.result());
+                    } else {
+                        proxy.completeExceptionally(listened.cause());
+                    }
+                }));
+        return proxy.get(10, TimeUnit.SECONDS).actualPort();
+    }
+
+    private NetSocket connect(int port) throws Exception {
+        return vertx.createNetClient().connect(port, "localhost")
+                .toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Calls the handler with each complete message received on a socket.
+     */
+    private static void onMessages(NetSocket socket, Handler<Buffer> handler) {
+        MessageAccumulator messages = new MessageAccumulator();
+        socket.handler(data -> {
+            messages.append(data);
+            messages.take().forEach(handler::handle);
+        });
+    }
+
+    private static Buffer request(ApiKeys apiKey, int corrId) {
+        return Buffer.buffer()
+                .appendInt(10)
+                .appendShort(apiKey.id)
+                .appendShort((short) 0)
+                .appendInt(corrId)
+                .appendShort((short) -1);
+    }
+
+    private static RequestHeader fetchHeader(int corrId) {
+        return new RequestHeader(ApiKeys.FETCH, FETCH_VERSION, "test", corrId);
+    }
+
+    private static Buffer fetchRequest(int corrId, String... topicNames) {
+        return fetchRequest(corrId, FetchMetadata.FINAL_EPOCH, topicNames);
+    }
+
+    /**
+     * @param sessionEpoch the epoch within fetch session 1, or the initial or
+     *                     final epoch for a full fetch
+     */
+    private static Buffer fetchRequest(int corrId, int sessionEpoch, String... topicNames) {
+        FetchRequestData data = new FetchRequestData().setMaxWaitMs(500).setMaxBytes(1 << 20)
+                .setSessionId(sessionEpoch > FetchMetadata.INITIAL_EPOCH ? 1 : 0)
+                .setSessionEpoch(sessionEpoch);
+        for (String topicName : topicNames) {
+            FetchTopic topic = new FetchTopic().setTopic(topicName);
+            topic.partitions().add(new FetchPartition().setPartition(0).setFetchOffset(0L));
+            data.topics().add(topic);
+        }
+        return serialize(new FetchRequest(data, FETCH_VERSION), fetchHeader(corrId));
+    }
+
+    private static Buffer produceRequest(int corrId, String topicName) {
+        return produceRequest(corrId, topicName, records("value"));
+    }
+
+    private static Buffer produceRequest(int corrId, String topicName, MemoryRecords records) {
+        ProduceRequestData data = new ProduceRequestData().setAcks((short) 1).setTimeoutMs(1000);
+        TopicProduceData topicData = new TopicProduceData().setName(topicName);
+        topicData.partitionData().add(new PartitionProduceData().setIndex(0)
+                .setRecords(records));
+        data.topicData().add(topicData);
+        return serialize(new ProduceRequest(data, PRODUCE_VERSION),
+                new RequestHeader(ApiKeys.PRODUCE, PRODUCE_VERSION, "test", corrId));
+    }
+
+    private static Buffer serialize(AbstractRequest req, RequestHeader header) {
+        ByteBuffer serialized = req.serializeWithHeader(header);
+        return Buffer.buffer().appendInt(serialized.remaining()).appendBytes(serialized.array(),
+                serialized.arrayOffset() + serialized.position(), serialized.remaining());
+    }
+
+    private static Buffer fetchResponse(int corrId, String topicName, MemoryRecords records) {
+        return fetchResponse(corrId, topicResponse(topicName, records));
+    }
+
+    private static Buffer fetchResponse(int corrId, FetchableTopicResponse... topicRsps) {
+        FetchResponseData data = new FetchResponseData();
+        data.responses().addAll(List.of(topicRsps));
+        return MsgUtil.toSendBuffer(new FetchResponse(data), fetchHeader(corrId));
+    }
+
+    private static FetchableTopicResponse topicResponse(String topicName, MemoryRecords records) {
+        FetchableTopicResponse topicRsp = new FetchableTopicResponse().setTopic(topicName);
+        topicRsp.partitions().add(new FetchResponseData.PartitionData().setPartitionIndex(0)
+                .setHighWatermark(records.sizeInBytes()).setRecords(records));
+        return topicRsp;
+    }
+
+    /**
+     * @return a response to the given request which does not parse as one.
+     */
+    private static Buffer unparseableResponse(int corrId) {
+        return Buffer.buffer().appendInt(Integer.BYTES + Long.BYTES).appendInt(corrId).appendLong(-1L);
+    }
+
+    /**
+     * @return the records of each topic of a fetch response, by topic name.
+     */
+    private static Map<String, MemoryRecords> fetchedRecords(Buffer rsp, RequestHeader reqHeader) {
+        FetchResponse fetchRsp = (FetchResponse) AbstractResponse.parseResponse(
+                ByteBuffer.wrap(rsp.getBytes(4, rsp.length())), reqHeader);
+        Map<String, MemoryRecords> records = new HashMap<>();
+        for (FetchableTopicResponse topicRsp : fetchRsp.data().responses()) {
+            records.put(topicRsp.topic(), (MemoryRecords) topicRsp.partitions().get(0).records());
+        }
+        return records;
+    }
+
+    private static ByteBuffer firstValue(MemoryRecords records) {
+        return records.records().iterator().next().value();
+    }
+
+    /**
+     * A broker answering each request with the response for its correlation id.
+     */
+    private static Handler<NetSocket> answering(Map<Integer, Buffer> rsps) {
+        return socket -> onMessages(socket, req -> socket.write(rsps.get(MsgUtil.getReqCorrId(req))));
+    }
+
+    /**
+     * @return the queue receiving the client's responses.
+     */
+    private static BlockingQueue<Buffer> responses(NetSocket client) {
+        BlockingQueue<Buffer> rsps = new LinkedBlockingQueue<>();
+        onMessages(client, rsps::add);
+        return rsps;
+    }
+
+    private static MemoryRecords records(String... values) {
+        MemoryRecordsBuilder builder = MemoryRecords.builder(ByteBuffer.allocate(1024),
+                CompressionType.NONE, TimestampType.CREATE_TIME, 0L);
+        for (String value : values) {
+            builder.append(1000L, null, value.getBytes());
+        }
+        return builder.build();
+    }
+
+    private MemoryRecords encrypted(String topicName, MemoryRecords records) throws Exception {
+        TopicProduceData topicData = new TopicProduceData().setName(topicName);
+        topicData.partitionData().add(new PartitionProduceData().setRecords(records));
+        assertTrue(encMod.encrypt(topicData));
+        return (MemoryRecords) topicData.partitionData().get(0).records();
+    }
+
+    /**
+     * A fetch response arriving after its request timed out cannot be
+     * decrypted, so the client connection is closed rather than handed the
+     * ciphertext.
+     */
+    @Test
+    public void lateFetchResponseTest() throws Exception {
+        Buffer lateRsp = fetchResponse(1, "enc", encrypted("enc", records("secret")));
+        brokerHandler = socket -> onMessages(socket, req -> {
+            // answers the timed out fetch once the next request arrives:
+            if (MsgUtil.getReqCorrId(req) == 2) {
+                socket.write(lateRsp);
+            }
+        });
+        int port = startProxy(new Config().setRequestTimeoutMs(1));
+
+        NetSocket client = connect(port);
+        List<Buffer> received = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        client.handler(received::add).closeHandler(v -> closed.complete(null));
+        client.write(fetchRequest(1, "enc"));
+        Thread.sleep(50);
+        // times out the fetch:
+        client.write(request(ApiKeys.METADATA, 2));
+
+        closed.get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(), received);
+    }
+
+    /**
+     * Over a shared broker connection, which is not paused for one client,
+     * requests from a client not reading its responses are paused instead, so
+     * that its responses do not pile up in the proxy.
+     */
+    @Test
+    public void pooledSlowClientTest() throws Exception {
+        int rspLen = 1024 * 1024;
+        int numRequests = 60;
+        AtomicInteger brokerRequests = new AtomicInteger();
+        brokerHandler = socket -> onMessages(socket, req -> {
+            brokerRequests.incrementAndGet();
+            socket.write(Buffer.buffer().appendInt(Integer.BYTES + rspLen)
+                    .appendInt(MsgUtil.getReqCorrId(req)).appendBytes(new byte[rspLen]));
+        });
+        UpstreamPool upstreamPool = new UpstreamPool(vertx.createNetClient(), 1,
+                MessageAccumulator.DEFAULT_MAX_MSG_SIZE);
+        int port = startProxy(new Config(),
+                context -> context.put(KafkaProxyVerticle.CTX_KEY_UPSTREAM_POOL, upstreamPool));
+
+        NetSocket client = connect(port);
+        List<Integer> rspCorrIds = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        onMessages(client, rsp -> {
+            rspCorrIds.add(MsgUtil.getRspCorrId(rsp));
+            if (rspCorrIds.size() == numRequests) {
+                done.complete(null);
+            }
+        });
+        client.pause();
+        for (int i = 0; i < numRequests; i++) {
+            client.write(request(ApiKeys.METADATA, i));
+            Thread.sleep(5);
+        }
+        Thread.sleep(200);
+        int forwarded = brokerRequests.get();
+        assertTrue("Forwarded " + forwarded + " requests of a client not reading responses",
+                forwarded < numRequests / 2);
+
+        client.resume();
+        done.get(30, TimeUnit.SECONDS);
+        assertEquals(numRequests, brokerRequests.get());
+        for (int i = 0; i < numRequests; i++) {
+            assertEquals(i, (int) rspCorrIds.get(i));
+        }
+    }
+
+    /**
+     * Encryption and decryption on a worker pool, where a small message may
+     * complete before a large one ahead of it, keep the order of each
+     * connection's requests and responses.
+     */
+    @Test
+    public void cryptoExecutorOrderTest() throws Exception {
+        int numRequests = 16;
+        List<String> values = new ArrayList<>();
+        List<Buffer> fetchRsps = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            // the largest first:
+            values.add(String.valueOf(i).repeat((numRequests - i) * 16 * 1024));
+            fetchRsps.add(fetchResponse(i, "enc", encrypted("enc", records(values.get(i)))));
+        }
+        List<Integer> brokerCorrIds = new CopyOnWriteArrayList<>();
+        brokerHandler = socket -> onMessages(socket, req -> {
+            int corrId = MsgUtil.getReqCorrId(req);
+            brokerCorrIds.add(corrId);
+            socket.write(MsgUtil.getApiKey(req) == ApiKeys.FETCH.id ? fetchRsps.get(corrId)
+                    : Buffer.buffer().appendInt(4).appendInt(corrId));
+        });
+        int port = startProxy(new Config(), context -> context.put(
+                KafkaProxyVerticle.CTX_KEY_CRYPTO_EXECUTOR, vertx.createSharedWorkerExecutor("crypto", 4)));
+
+        NetSocket client = connect(port);
+        List<Buffer> received = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        onMessages(client, rsp -> {
+            received.add(rsp);
+            if (received.size() == numRequests) {
+                done.complete(null);
+            }
+        });
+        Buffer requests = Buffer.buffer();
+        for (int i = 0; i < numRequests; i++) {
+            // produce requests to encrypt and fetch requests whose responses to decrypt:
+            requests.appendBuffer(i % 2 == 0 ? produceRequest(i, "enc", records(values.get(i)))
+                    : fetchRequest(i, "enc"));
+        }
+        client.write(requests);
+
+        done.get(30, TimeUnit.SECONDS);
+        List<Integer> corrIds = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            corrIds.add(i);
+        }
+        assertEquals(corrIds, brokerCorrIds);
+        for (int i = 0; i < numRequests; i++) {
+            Buffer rsp = received.get(i);
+            assertEquals(i, MsgUtil.getRspCorrId(rsp));
+            if (i % 2 == 1) {
+                assertEquals(ByteBuffer.wrap(values.get(i).getBytes()),
+                        firstValue(fetchedRecords(rsp, fetchHeader(i)).get("enc")));
+            }
+        }
+    }
+
+    /**
+     * A client not reading its responses pauses reading from the broker, whose
+     * writes then back up, until the client drains.
+     */
+    @Test
+    public void slowClientTest() throws Exception {
+        int rspLen = 1024 * 1024;
+        int numRequests = 40;
+        CompletableFuture<Void> brokerBlocked = new CompletableFuture<>();
+        CompletableFuture<Void> brokerDrained = new CompletableFuture<>();
+        brokerHandler = socket -> onMessages(socket, req -> {
+            socket.write(Buffer.buffer().appendInt(Integer.BYTES + rspLen)
+                    .appendInt(MsgUtil.getReqCorrId(req)).appendBytes(new byte[rspLen]));
+            if (socket.writeQueueFull() && brokerBlocked.complete(null)) {
+                socket.drainHandler(v -> brokerDrained.complete(null));
+            }
+        });
+        int port = startProxy(new Config());
+
+        NetSocket client = connect(port);
+        List<Integer> rspCorrIds = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        onMessages(client, rsp -> {
+            rspCorrIds.add(MsgUtil.getRspCorrId(rsp));
+            if (rspCorrIds.size() == numRequests) {
+                done.complete(null);
+            }
+        });
+        client.pause();
+        for (int i = 0; i < numRequests; i++) {
+            client.write(request(ApiKeys.METADATA, i));
+        }
+        brokerBlocked.get(10, TimeUnit.SECONDS);
+        // long enough for the proxy to take up the responses, were it reading them:
+        Thread.sleep(1000);
+        assertFalse(brokerDrained.isDone());
+
+        client.resume();
+        brokerDrained.get(10, TimeUnit.SECONDS);
+        done.get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < numRequests; i++) {
+            assertEquals(i, (int) rspCorrIds.get(i));
+        }
+    }
+
+    /**
+     * Once MAX_QUEUED_MSGS requests are queued behind one waiting on the KMS,
+     * the client is no longer read from, so that its writes back up. Reading
+     * resumes as the queue is worked off.
+     */
+    @Test
+    public void queuedRequestsTest() throws Exception {
+        int numRequests = 400;
+        List<Integer> brokerCorrIds = new CopyOnWriteArrayList<>();
+        brokerHandler = socket -> onMessages(socket, req -> {
+            int corrId = MsgUtil.getReqCorrId(req);
+            brokerCorrIds.add(corrId);
+            socket.write(Buffer.buffer().appendInt(4).appendInt(corrId));
+        });
+        int port = startProxy(new Config());
+
+        NetSocket client = connect(port);
+        List<Integer> rspCorrIds = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        onMessages(client, rsp -> {
+            rspCorrIds.add(MsgUtil.getRspCorrId(rsp));
+            if (rspCorrIds.size() == numRequests + 1) {
+                done.complete(null);
+            }
+        });
+        // parks the requests behind it until the KMS is released:
+        client.write(produceRequest(0, "slow"));
+        MemoryRecords records = records("v".repeat(100 * 1024));
+        for (int i = 1; i <= numRequests; i++) {
+            client.write(produceRequest(i, "plain", records));
+        }
+        Thread.sleep(500);
+        assertEquals(List.of(), brokerCorrIds);
+        assertTrue("Client writes did not back up", client.writeQueueFull());
+
+        CompletableFuture<Void> clientDrained = new CompletableFuture<>();
+        client.drainHandler(v -> clientDrained.complete(null));
+        kmsReleased.complete(null);
+        clientDrained.get(10, TimeUnit.SECONDS);
+        done.get(30, TimeUnit.SECONDS);
+        for (int i = 0; i <= numRequests; i++) {
+            assertEquals(i, (int) brokerCorrIds.get(i));
+            assertEquals(i, (int) rspCorrIds.get(i));
+        }
+    }
+
+    /**
+     * Requests sent while the broker connection is being established are
+     * forwarded, in order, once it is.
+     */
+    @Test
+    public void brokerConnectingTest() throws Exception {
+        List<Integer> brokerCorrIds = new CopyOnWriteArrayList<>();
+        brokerHandler = socket -> onMessages(socket, req -> {
+            int corrId = MsgUtil.getReqCorrId(req);
+            brokerCorrIds.add(corrId);
+            socket.write(Buffer.buffer().appendInt(4).appendInt(corrId));
+        });
+        // a client whose connections complete once released:
+        NetClient netClient = vertx.createNetClient();
+        Promise<Void> connectReleased = Promise.promise();
+        NetClient brokerClient = (NetClient) Proxy.newProxyInstance(NetClient.class.getClassLoader(),
+                new Class<?>[] {NetClient.class}, (proxy, method, args) -> {
+                    Object result = method.invoke(netClient, args);
+                    if (method.getName().equals("connect") && result instanceof Future) {
+                        return connectReleased.future().compose(v -> (Future<?>) result);
+                    }
+                    return result;
+                });
+        AtomicReference<Context> proxyContext = new AtomicReference<>();
+        int port = startProxy(new Config(), context -> {
+            proxyContext.set(context);
+            context.put(KafkaProxyVerticle.CTX_KEY_BROKER_CLIENT, brokerClient);
+        });
+
+        NetSocket client = connect(port);
+        List<Integer> rspCorrIds = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        onMessages(client, rsp -> {
+            rspCorrIds.add(MsgUtil.getRspCorrId(rsp));
+            if (rspCorrIds.size() == 3) {
+                done.complete(null);
+            }
+        });
+        client.write(request(ApiKeys.METADATA, 1));
+        client.write(produceRequest(2, "enc"));
+        client.write(request(ApiKeys.METADATA, 3));
+        Thread.sleep(200);
+        assertEquals(List.of(), brokerCorrIds);
+
+        // completed on the proxy's context, as a connection would be:
+        proxyContext.get().runOnContext(v -> connectReleased.complete());
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(1, 2, 3), brokerCorrIds);
+        assertEquals(List.of(1, 2, 3), rspCorrIds);
+    }
+
+    /**
+     * Responses to fetches of unencrypted topics are forwarded without being
+     * parsed.
+     */
+    @Test
+    public void plaintextFetchTest() throws Exception {
+        Buffer rsp = unparseableResponse(1);
+        brokerHandler = answering(Map.of(1, rsp));
+        NetSocket client = connect(startProxy(new Config()));
+        BlockingQueue<Buffer> rsps = responses(client);
+
+        client.write(fetchRequest(1, "plain"));
+        assertEquals(rsp, rsps.poll(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Incremental fetches omit the topics of the session which did not change,
+     * whose responses are decrypted all the same. A full fetch starts the
+     * session's topics afresh.
+     */
+    @Test
+    public void fetchSessionTest() throws Exception {
+        Map<Integer, Buffer> brokerRsps = new HashMap<>();
+        brokerRsps.put(1, fetchResponse(1, "enc", encrypted("enc", records("first"))));
+        brokerRsps.put(2, fetchResponse(2, "enc", encrypted("enc", records("second"))));
+        brokerRsps.put(3, unparseableResponse(3));
+        brokerHandler = answering(brokerRsps);
+        NetSocket client = connect(startProxy(new Config()));
+        BlockingQueue<Buffer> rsps = responses(client);
+
+        // a full fetch, starting a session:
+        client.write(fetchRequest(1, FetchMetadata.INITIAL_EPOCH, "enc"));
+        assertEquals(ByteBuffer.wrap("first".getBytes()),
+                firstValue(fetchedRecords(rsps.poll(10, TimeUnit.SECONDS), fetchHeader(1)).get("enc")));
+        // an incremental fetch, without topics:
+        client.write(fetchRequest(2, 1));
+        assertEquals(ByteBuffer.wrap("second".getBytes()),
+                firstValue(fetchedRecords(rsps.poll(10, TimeUnit.SECONDS), fetchHeader(2)).get("enc")));
+        // a new session of unencrypted topics only:
+        client.write(fetchRequest(3, FetchMetadata.INITIAL_EPOCH, "plain"));
+        assertEquals(brokerRsps.get(3), rsps.poll(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * The names of topics identified by id are unknown, so responses to fetches
+     * naming topics by id are parsed for decryption, even of an unencrypted
+     * session.
+     */
+    @Test
+    public void topicIdFetchTest() throws Exception {
+        short version = 13;
+        brokerHandler = answering(Map.of(1, fetchResponse(1, "plain", records("plaintext")),
+                2, unparseableResponse(2)));
+        NetSocket client = connect(startProxy(new Config()));
+        BlockingQueue<Buffer> rsps = responses(client);
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        client.closeHandler(v -> closed.complete(null));
+
+        client.write(fetchRequest(1, FetchMetadata.INITIAL_EPOCH, "plain"));
+        assertEquals(ByteBuffer.wrap("plaintext".getBytes()),
+                firstValue(fetchedRecords(rsps.poll(10, TimeUnit.SECONDS), fetchHeader(1)).get("plain")));
+        FetchRequestData data = new FetchRequestData().setMaxWaitMs(500).setMaxBytes(1 << 20)
+                .setSessionId(1).setSessionEpoch(1);
+        FetchTopic topic = new FetchTopic().setTopicId(Uuid.randomUuid());
+        topic.partitions().add(new FetchPartition().setPartition(0).setFetchOffset(1L));
+        data.topics().add(topic);
+        client.write(serialize(new FetchRequest(data, version),
+                new RequestHeader(ApiKeys.FETCH, version, "test", 2)));
+
+        // parsed rather than forwarded, which the client connection does not survive:
+        closed.get(10, TimeUnit.SECONDS);
+        assertEquals(0, rsps.size());
+    }
+
+    /**
+     * Only the encrypted topics of a response are decrypted, the records of
+     * others being passed on as they are.
+     */
+    @Test
+    public void mixedFetchResponseTest() throws Exception {
+        MemoryRecords plaintext = records("plaintext");
+        brokerHandler = answering(Map.of(1, fetchResponse(1,
+                topicResponse("enc", encrypted("enc", records("secret"))),
+                topicResponse("plain", MemoryRecords.readableRecords(plaintext.buffer().duplicate())))));
+        NetSocket client = connect(startProxy(new Config()));
+        BlockingQueue<Buffer> rsps = responses(client);
+
+        client.write(fetchRequest(1, "enc", "plain"));
+        Map<String, MemoryRecords> fetched = fetchedRecords(rsps.poll(10, TimeUnit.SECONDS), fetchHeader(1));
+        assertEquals(ByteBuffer.wrap("secret".getBytes()), firstValue(fetched.get("enc")));
+        assertEquals(plaintext.buffer(), fetched.get("plain").buffer());
+    }
+
+    /**
+     * A produce request which cannot be encrypted is answered with an error
+     * rather than dropped, after the responses to the requests before it.
+     */
+    @Test
+    public void produceErrorTest() throws Exception {
+        List<Integer> brokerCorrIds = new CopyOnWriteArrayList<>();
+        brokerHandler = socket -> onMessages(socket, req -> {
+            int corrId = MsgUtil.getReqCorrId(req);
+            brokerCorrIds.add(corrId);
+            // answered late, so that the error response must wait for it:
+            vertx.setTimer(200, id -> socket.write(Buffer.buffer().appendInt(4).appendInt(corrId)));
+        });
+        int port = startProxy(new Config());
+
+        NetSocket client = connect(port);
+        List<Buffer> received = new CopyOnWriteArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        onMessages(client, rsp -> {
+            received.add(rsp);
+            if (received.size() == 2) {
+                done.complete(null);
+            }
+        });
+        client.write(request(ApiKeys.METADATA, 1));
+        client.write(produceRequest(2, "unavailable"));
+
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(1), brokerCorrIds);
+        assertEquals(1, MsgUtil.getRspCorrId(received.get(0)));
+        Buffer errorRsp = received.get(1);
+        assertEquals(2, MsgUtil.getRspCorrId(errorRsp));
+        ProduceResponse produceRsp = ProduceResponse.parse(
+                ByteBuffer.wrap(errorRsp.getBytes(8, errorRsp.length())), PRODUCE_VERSION);
+        PartitionProduceResponse partitionRsp = produceRsp.data().responses().iterator().next()
+                .partitionResponses().get(0);
+        assertEquals(Errors.REQUEST_TIMED_OUT.code(), partitionRsp.errorCode());
+        assertEquals("KMS unavailable", partitionRsp.errorMessage());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.proxy.vertx.msg.MessageAccumulator;
+import io.strimzi.kafka.proxy.vertx.msg.MsgUtil;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetServer;
+
+/**
+ * Tests sharing a broker connection between client connections, against a
+ * stand-in broker answering each request, except produce requests, with a
+ * response carrying the request's correlation id.
+ */
+public class UpstreamPoolTest {
+
+    private Vertx vertx;
+    private NetServer broker;
+
+    private static final class Listener implements UpstreamConnection.Listener {
+        final List<Integer> corrIds = new CopyOnWriteArrayList<>();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final int expected;
+
+        Listener(int expected) {
+            this.expected = expected;
+        }
+
+        @Override
+        public void handleUpstreamResponse(Buffer rsp) {
+            corrIds.add(MsgUtil.getRspCorrId(rsp));
+            if (corrIds.size() == expected) {
+                done.complete(null);
+            }
+        }
+
+        @Override
+        public void handleUpstreamDrain() {
+        }
+
+        @Override
+        public void handleUpstreamClose() {
+        }
+    }
+
+    private static Buffer request(ApiKeys apiKey, int corrId) {
+        return Buffer.buffer()
+                .appendInt(10)
+                .appendShort(apiKey.id)
+                .appendShort((short) 0)
+                .appendInt(corrId)
+                .appendShort((short) -1);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        broker = vertx.createNetServer().connectHandler(socket -> {
+            MessageAccumulator requests = new MessageAccumulator();
+            socket.handler(data -> {
+                requests.append(data);
+                for (Buffer req : requests.take()) {
+                    if (MsgUtil.getApiKey(req) != ApiKeys.PRODUCE.id) {
+                        socket.write(Buffer.buffer().appendInt(4).appendInt(MsgUtil.getReqCorrId(req)));
+                    }
+                }
+            });
+        }).listen(0).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void multiplexingTest() throws Exception {
+        String brokerAddress = "localhost:" + broker.actualPort();
+        Listener a = new Listener(2);
+        Listener b = new Listener(1);
+        Context context = vertx.getOrCreateContext();
+        context.runOnContext(v -> {
+            UpstreamPool pool = new UpstreamPool(vertx.createNetClient(), 1, 1024);
+            UpstreamConnection conn = pool.acquire(brokerAddress, a);
+            if (conn != pool.acquire(brokerAddress, b)) {
+                a.done.completeExceptionally(new AssertionError("Expected one shared connection"));
+            }
+            conn.socketFuture().onSuccess(socket -> {
+                // both clients use correlation id 5:
+                conn.send(a, request(ApiKeys.METADATA, 5), true);
+                conn.send(b, request(ApiKeys.METADATA, 5), true);
+                // acks=0, without a response:
+                conn.send(a, request(ApiKeys.PRODUCE, 6), false);
+                conn.send(a, request(ApiKeys.METADATA, 7), true);
+            });
+        });
+        CompletableFuture.allOf(a.done, b.done).get(10, TimeUnit.SECONDS);
+        assertEquals(List.of(5, 7), a.corrIds);
+        assertEquals(List.of(5), b.corrIds);
+    }
+
+    @Test
+    public void connectionLimitTest() throws Exception {
+        String brokerAddress = "localhost:" + broker.actualPort();
+        CompletableFuture<Void> checked = new CompletableFuture<>();
+        vertx.getOrCreateContext().runOnContext(v -> {
+            try {
+                UpstreamPool pool = new UpstreamPool(vertx.createNetClient(), 2, 1024);
+                UpstreamConnection first = pool.acquire(brokerAddress, new Listener(0));
+                Listener secondListener = new Listener(0);
+                UpstreamConnection second = pool.acquire(brokerAddress, secondListener);
+                assertNotSame(first, second);
+                assertSame(first, pool.acquire(brokerAddress, new Listener(0)));
+                assertEquals(2, pool.size());
+                // the least used connection is assigned:
+                second.release(secondListener);
+                assertSame(second, pool.acquire(brokerAddress, new Listener(0)));
+                checked.complete(null);
+            } catch (Throwable t) {
+                checked.completeExceptionally(t);
+            }
+        });
+        checked.get(10, TimeUnit.SECONDS);
+    }
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import org.apache.kafka.common.message.ProduceRequestData;
@@ -13,8 +14,11 @@ import org.apache.kafka.common.protocol.DataOutputStreamWritable;
 import org.apache.kafka.common.protocol.ObjectSerializationCache;
 import org.apache.kafka.common.requests.ProduceRequest;
 import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.utils.Utils;
 import org.junit.Test;
 
+import io.vertx.core.buffer.Buffer;
+
 public class KafkaReqMsgTest {
 
     @Test
@@ -30,6 +34,28 @@ public class KafkaReqMsgTest {
         assertEquals(expectedRH, actualRH);
     }
 
+    /**
+     * Messages arriving together are slices of one buffer, each parsed from its own start.
+     */
+    @Test
+    public void getHeaderOfAccumulatedMsg() {
+        RequestHeader firstRH = new RequestHeader(ApiKeys.PRODUCE, (short) 8, "first", 1);
+        RequestHeader secondRH = new RequestHeader(ApiKeys.PRODUCE, (short) 8, "second", 2);
+        ProduceRequest pr = new ProduceRequest.Builder((short) 8, (short) 8,
+                new ProduceRequestData().setAcks((short) 1)).build();
+        MessageAccumulator accumulator = new MessageAccumulator();
+        ByteBuffer first = pr.serializeWithHeader(firstRH);
+        ByteBuffer second = pr.serializeWithHeader(secondRH);
+        accumulator.append(Buffer.buffer()
+                .appendInt(first.remaining()).appendBytes(Utils.toArray(first))
+                .appendInt(second.remaining()).appendBytes(Utils.toArray(second)));
+
+        KafkaReqMsg reqMsg = new KafkaReqMsg(accumulator.take().get(1));
+
+        assertEquals(secondRH, reqMsg.getHeader());
+        assertEquals(1, ProduceRequest.parse(reqMsg.getPayload(), secondRH.apiVersion()).acks());
+    }
+
     @Test
     public void getHeaderBytes() {
         short[] requestVersions = new short[] {
@@ -3,6 +3,7 @@ package io.strimzi.kafka.proxy.vertx.msg;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -121,4 +122,30 @@ public class MessageAccumulatorTest {
                 actualMessages.get(0).getBytes());
         assertEquals(Collections.EMPTY_LIST, acc.take()); // no more messages
     }
+
+    @Test
+    public void messageSplitAcrossManyFragments() {
+        MessageAccumulator acc = new MessageAccumulator();
+        byte[] msg = new byte[1004];
+        msg[3] = (byte) 0xE8;
+        msg[2] = 0x03; // length 1000
+        for (int i = 4; i < msg.length; i++) {
+            msg[i] = (byte) i;
+        }
+        // fragments of 3 bytes, splitting the length field too:
+        for (int i = 0; i < msg.length; i += 3) {
+            acc.append(Buffer.buffer(Arrays.copyOfRange(msg, i, Math.min(i + 3, msg.length))));
+        }
+        List<Buffer> actualMessages = acc.take();
+        assertEquals(1, actualMessages.size());
+        assertArrayEquals(msg, actualMessages.get(0).getBytes());
+        assertEquals(0, acc.pendingBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void messageExceedingMaximumSize() {
+        MessageAccumulator acc = new MessageAccumulator(16);
+        acc.append(Buffer.buffer(new byte[] { 0x00, 0x00, 0x00, 0x11 }));
+        acc.take();
+    }
 }
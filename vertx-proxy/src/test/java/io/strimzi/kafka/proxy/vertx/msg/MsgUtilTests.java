@@ -8,8 +8,17 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 
+import org.apache.kafka.common.message.ProduceRequestData;
 import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.Errors;
+import org.apache.kafka.common.requests.FetchResponse;
+import org.apache.kafka.common.requests.ProduceRequest;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.requests.RequestUtils;
+import org.apache.kafka.common.requests.ResponseHeader;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -53,4 +62,31 @@ public class MsgUtilTests {
         int corrId = MsgUtil.getRspCorrId(rspBuf);
         Assert.assertEquals("Correlation ID", (int) 0x4B, corrId);
     }
+
+    @Test
+    public void testToSendBuffer() {
+        // request, with the header as received:
+        RequestHeader rh = new RequestHeader(ApiKeys.PRODUCE, (short) 9, "clientId", 7);
+        ProduceRequest req = new ProduceRequest.Builder(rh.apiVersion(), rh.apiVersion(),
+                new ProduceRequestData().setAcks((short) 1).setTimeoutMs(100)).build();
+        ByteBuffer expected = RequestUtils.serialize(rh.data(), rh.headerVersion(), req.data(),
+                rh.apiVersion());
+        Buffer header = Buffer.buffer().appendBytes(expected.array(), 0, rh.size());
+
+        Buffer sendBuffer = MsgUtil.toSendBuffer(header, req);
+        Assert.assertEquals(expected.remaining(), MsgUtil.getMsgLen(sendBuffer));
+        Assert.assertArrayEquals(expected.array(), sendBuffer.getBytes(4, sendBuffer.length()));
+
+        // response:
+        RequestHeader fetchHeader = new RequestHeader(ApiKeys.FETCH, (short) 12, "clientId", 8);
+        FetchResponse rsp = FetchResponse.of(Errors.NONE, 10, 123, new LinkedHashMap<>());
+        ResponseHeader rspHeader = fetchHeader.toResponseHeader();
+        expected = RequestUtils.serialize(rspHeader.data(), rspHeader.headerVersion(), rsp.data(),
+                fetchHeader.apiVersion());
+
+        sendBuffer = MsgUtil.toSendBuffer(rsp, fetchHeader);
+        Assert.assertEquals(expected.remaining(), MsgUtil.getMsgLen(sendBuffer));
+        Assert.assertEquals(8, MsgUtil.getRspCorrId(sendBuffer));
+        Assert.assertArrayEquals(expected.array(), sendBuffer.getBytes(4, sendBuffer.length()));
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx.msg;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.apache.kafka.common.message.ProduceRequestData;
+import org.apache.kafka.common.message.ProduceRequestData.PartitionProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceData;
+import org.apache.kafka.common.message.ProduceRequestData.TopicProduceDataCollection;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.record.CompressionType;
+import org.apache.kafka.common.record.MemoryRecords;
+import org.apache.kafka.common.record.SimpleRecord;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.requests.RequestUtils;
+import org.junit.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+public class ProduceTopicScannerTest {
+
+    private static Buffer produceRequest(short version, String transactionalId) {
+        return produceRequest(version, transactionalId, (short) -1);
+    }
+
+    private static Buffer produceRequest(short version, String transactionalId, short acks) {
+        TopicProduceDataCollection topics = new TopicProduceDataCollection();
+        for (String topic : List.of("orders", "payments")) {
+            TopicProduceData topicData = new TopicProduceData().setName(topic);
+            for (int partition = 0; partition < 2; partition++) {
+                MemoryRecords recs = MemoryRecords.withRecords(CompressionType.NONE,
+                        new SimpleRecord("value".getBytes(StandardCharsets.UTF_8)));
+                topicData.partitionData().add(
+                        new PartitionProduceData().setIndex(partition).setRecords(recs));
+            }
+            topics.add(topicData);
+        }
+        ProduceRequestData data = new ProduceRequestData()
+                .setTransactionalId(transactionalId)
+                .setAcks(acks)
+                .setTimeoutMs(1000)
+                .setTopicData(topics);
+        RequestHeader rh = new RequestHeader(ApiKeys.PRODUCE, version, "clientId", 7);
+        ByteBuffer bb = RequestUtils.serialize(rh.data(), rh.headerVersion(), data, version);
+        return Buffer.buffer().appendInt(bb.remaining()).appendBytes(bb.array(), 0, bb.remaining());
+    }
+
+    @Test
+    public void topicNamesTest() {
+        short[] versions = { 3, 8, 9 };
+        for (short version : versions) {
+            assertEquals("version " + version, List.of("orders", "payments"),
+                    ProduceTopicScanner.topicNames(produceRequest(version, "txn")));
+            assertEquals("version " + version, List.of("orders", "payments"),
+                    ProduceTopicScanner.topicNames(produceRequest(version, null)));
+        }
+    }
+
+    @Test
+    public void acksTest() {
+        short[] versions = { 3, 8, 9 };
+        for (short version : versions) {
+            assertEquals(0, ProduceTopicScanner.acks(produceRequest(version, "txn", (short) 0)));
+            assertEquals(1, ProduceTopicScanner.acks(produceRequest(version, null, (short) 1)));
+        }
+        assertEquals(ProduceTopicScanner.UNKNOWN_ACKS,
+                ProduceTopicScanner.acks(Buffer.buffer(new byte[8])));
+    }
+
+    @Test
+    public void malformedRequestTest() {
+        Buffer req = produceRequest((short) 9, "txn");
+        assertNull(ProduceTopicScanner.topicNames(req.getBuffer(0, req.length() - 10)));
+        assertNull(ProduceTopicScanner.topicNames(Buffer.buffer(new byte[8])));
+    }
+
+    /**
+     * Array lengths sent by the client are not trusted beyond the bytes of the
+     * request.
+     */
+    @Test
+    public void oversizedArrayTest() {
+        Buffer req = produceRequest((short) 8, null);
+        // length, api key, version, correlation id, client id, null transactional id, acks, timeout:
+        int topicsPos = 4 + 2 + 2 + 4 + 2 + "clientId".length() + 2 + 2 + 4;
+        assertEquals(2, req.getInt(topicsPos));
+        req.setInt(topicsPos, Integer.MAX_VALUE);
+        assertNull(ProduceTopicScanner.topicNames(req));
+    }
+}
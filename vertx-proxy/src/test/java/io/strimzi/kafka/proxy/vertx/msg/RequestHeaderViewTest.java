@@ -0,0 +1,67 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx.msg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.message.ProduceRequestData;
+import org.apache.kafka.common.message.RequestHeaderData;
+import org.apache.kafka.common.protocol.ApiKeys;
+import org.apache.kafka.common.protocol.types.RawTaggedField;
+import org.apache.kafka.common.requests.RequestHeader;
+import org.apache.kafka.common.requests.RequestUtils;
+import org.junit.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+public class RequestHeaderViewTest {
+
+    private static Buffer serialize(RequestHeader rh) {
+        ByteBuffer bb = RequestUtils.serialize(rh.data(), rh.headerVersion(),
+                new ProduceRequestData(), rh.apiVersion());
+        return Buffer.buffer().appendInt(bb.remaining()).appendBytes(bb.array(), 0, bb.remaining());
+    }
+
+    @Test
+    public void headerFieldsTest() {
+        RequestHeaderView view = new RequestHeaderView();
+        short[] versions = { 8, 9 };
+        String[] clientIds = { "clientId", "cli\u00ebnt", null };
+        for (short version : versions) {
+            for (String clientId : clientIds) {
+                RequestHeader rh = new RequestHeader(ApiKeys.PRODUCE, version, clientId, 42);
+                Buffer msg = serialize(rh);
+                view.wrap(msg);
+
+                assertEquals(ApiKeys.PRODUCE.id, view.apiKey());
+                assertEquals(version, view.apiVersion());
+                assertEquals(42, view.correlationId());
+                assertEquals(clientId, view.clientId());
+                assertEquals(rh.headerVersion(), view.headerVersion());
+                assertEquals(rh.size(), view.headerLength());
+                assertArrayEquals(msg.getBytes(4, 4 + rh.size()), view.headerSlice().getBytes());
+            }
+        }
+    }
+
+    @Test
+    public void taggedFieldsTest() {
+        RequestHeaderData data = new RequestHeaderData()
+                .setRequestApiKey(ApiKeys.PRODUCE.id)
+                .setRequestApiVersion((short) 9)
+                .setCorrelationId(7)
+                .setClientId("clientId");
+        data.unknownTaggedFields().add(new RawTaggedField(5, new byte[200]));
+        RequestHeader rh = new RequestHeader(data, (short) 2);
+
+        RequestHeaderView view = new RequestHeaderView(serialize(rh));
+
+        assertEquals(rh.size(), view.headerLength());
+        assertEquals(7, view.correlationId());
+    }
+}
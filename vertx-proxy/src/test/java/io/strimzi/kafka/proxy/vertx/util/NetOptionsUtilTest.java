@@ -0,0 +1,91 @@
+/*
+ * Copyright Strimzi authors.
+ * License: Apache License 2.0 (see the file LICENSE or http://apache.org/licenses/LICENSE-2.0.html).
+ */
+package io.strimzi.kafka.proxy.vertx.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.strimzi.kafka.proxy.vertx.Config;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.NetSocket;
+
+public class NetOptionsUtilTest {
+
+    private static final String CERT_FILE = "src/test/resources/localhost-cert.pem";
+    private static final String KEY_FILE = "src/test/resources/localhost-key.pem";
+
+    private Vertx vertx;
+
+    @Before
+    public void setUp() {
+        vertx = Vertx.vertx();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void tcpOptionsTest() {
+        Config config = new Config()
+                .setTcpNoDelay(false)
+                .setSendBufferSize(65536);
+        NetServerOptions serverOpts = NetOptionsUtil.serverOptions(config, 1234);
+        assertEquals(1234, serverOpts.getPort());
+        assertFalse(serverOpts.isTcpNoDelay());
+        assertEquals(65536, serverOpts.getSendBufferSize());
+        assertFalse(serverOpts.isSsl());
+
+        NetClientOptions clientOpts = NetOptionsUtil.clientOptions(config);
+        assertFalse(clientOpts.isTcpNoDelay());
+        assertEquals(NetClientOptions.DEFAULT_RECEIVE_BUFFER_SIZE, clientOpts.getReceiveBufferSize());
+        assertFalse(clientOpts.isSsl());
+    }
+
+    @Test
+    public void tlsRoundTripTest() throws Exception {
+        // a self-signed certificate for 'localhost', trusted by the client:
+        Config config = new Config()
+                .setTlsCertFile(CERT_FILE)
+                .setTlsKeyFile(KEY_FILE)
+                .setBrokerTls(true)
+                .setBrokerTlsTrustFile(CERT_FILE);
+
+        NetServer server = vertx.createNetServer(NetOptionsUtil.serverOptions(config, 0))
+                .connectHandler(socket -> socket.handler(socket::write))
+                .listen().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+
+        NetClientOptions clientOpts = NetOptionsUtil.clientOptions(config);
+        assertTrue(clientOpts.isSsl());
+        NetSocket socket = vertx.createNetClient(clientOpts)
+                .connect(server.actualPort(), "localhost")
+                .toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertTrue(socket.isSsl());
+
+        Buffer echoed = Buffer.buffer();
+        CompletableFuture<Buffer> done = new CompletableFuture<>();
+        socket.handler(data -> {
+            echoed.appendBuffer(data);
+            if (echoed.length() == 4) {
+                done.complete(echoed);
+            }
+        });
+        socket.write(Buffer.buffer().appendInt(42));
+        assertEquals(42, done.get(10, TimeUnit.SECONDS).getInt(0));
+    }
+}